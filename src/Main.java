@@ -1,30 +1,153 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
 import java.io.*;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 import javax.swing.*;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.plaf.basic.BasicScrollBarUI;
 import javax.swing.text.*;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLEditorKit;
+import javax.swing.text.html.parser.ParserDelegator;
 import javax.swing.text.rtf.RTFEditorKit;
 
 public class Main {
     public static void main(String[] args) {
+        // "new" and "show" are UI commands; any other argument runs without the tray UI
+        String command = args.length == 1 && ("new".equals(args[0]) || "show".equals(args[0])) ? args[0] : null;
+        if ((args.length > 0 && command == null) || GraphicsEnvironment.isHeadless()) {
+            System.exit(HeadlessCommands.run(args));
+        }
+
+        // Hand off to the running instance before paying for any UI start-up
+        File dataDir = NotesManager.getDataDirectory();
+        if (!SingleInstance.acquire(dataDir)) {
+            if (SingleInstance.send(dataDir, command != null ? command : "show")) {
+                System.exit(0);
+            }
+            JOptionPane.showMessageDialog(null, "The notes in " + dataDir.getAbsolutePath()
+                    + " are in use by another process.");
+            System.exit(1);
+        }
+        SingleInstance.listen(dataDir, received -> SwingUtilities.invokeLater(() -> handleCommand(received)));
+
         SwingUtilities.invokeLater(() -> {
             if (!SystemTray.isSupported()) {
                 JOptionPane.showMessageDialog(null, "SystemTray not supported on this system.");
                 return;
             }
             AppSettings.loadGlobalSettings();
+            if (!unlockStore(NotesManager.getStore())) System.exit(1);
+            NotesManager.getStore().startBackgroundWriter();
             NotesManager.loadNotes();
+            NotesManager.startReminders();
+            NotesManager.startFeed();
+            new StoreWatcher(NotesManager.getStore()).start();
+            if (!AppSettings.syncFolder.isEmpty() && NotesManager.getStore().getCrypto() != null) {
+                System.err.println("Sync: off while the notes are encrypted");
+            } else if (!AppSettings.syncFolder.isEmpty()) {
+                new SyncEngine(new File(AppSettings.syncFolder), NotesManager.getDataDirectory())
+                        .start(AppSettings.SYNC_INTERVAL_SECONDS);
+            }
             createSystemTrayIcon();
+            if (AppSettings.automationPort > 0) {
+                AutomationServer.start(AppSettings.automationPort);
+            }
+            if (command != null) handleCommand(command);
         });
     }
 
+    // Commands handed over by later launches (see SingleInstance)
+    static void handleCommand(String command) {
+        if ("new".equals(command)) {
+            NotesManager.createNewNote();
+        } else if ("show".equals(command)) {
+            NotesManager.showNotesList();
+        } else if (command.startsWith("import ")) {
+            NotesManager.importFiles(new File(command.substring("import ".length())));
+        }
+    }
+
+
+    // An encrypted store needs its passphrase before anything can be read; asked once per session
+    private static boolean unlockStore(NoteStore store) {
+        File dataDir = store.getDataDirectory();
+        try {
+            store.finishRekey();
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(null, "Could not finish changing the passphrase: " + e.getMessage());
+            return false;
+        }
+        if (!NoteCrypto.isConfigured(dataDir)) return true;
+        String message = "Passphrase for the notes in " + dataDir.getAbsolutePath() + ":";
+        while (true) {
+            JPasswordField field = new JPasswordField(20);
+            int choice = JOptionPane.showConfirmDialog(null, new Object[] {message, field}, "Unlock Notes",
+                    JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+            if (choice != JOptionPane.OK_OPTION) return false;
+            try {
+                NoteCrypto crypto = NoteCrypto.unlock(dataDir, field.getPassword());
+                if (crypto != null) {
+                    store.setCrypto(crypto);
+                    return true;
+                }
+                message = "Wrong passphrase. Try again:";
+            } catch (IOException e) {
+                e.printStackTrace();
+                JOptionPane.showMessageDialog(null, "Could not read " + NoteCrypto.KEY_FILE + ": " + e.getMessage());
+                return false;
+            }
+        }
+    }
 
     private static void createSystemTrayIcon() {
         try {
@@ -42,6 +165,18 @@ public class Main {
             notesListItem.addActionListener(e -> NotesManager.showNotesList());
             popup.add(notesListItem);
 
+            MenuItem tileItem = new MenuItem("Tile Notes");
+            tileItem.addActionListener(e -> NotesManager.tileNotes());
+            popup.add(tileItem);
+
+            MenuItem cascadeItem = new MenuItem("Cascade Notes");
+            cascadeItem.addActionListener(e -> NotesManager.cascadeNotes());
+            popup.add(cascadeItem);
+
+            MenuItem duplicatesItem = new MenuItem("Find Duplicates");
+            duplicatesItem.addActionListener(e -> NotesManager.showDuplicates());
+            popup.add(duplicatesItem);
+
             MenuItem settingsItem = new MenuItem("Settings");
             settingsItem.addActionListener(e -> GlobalSettingsWindow.showGlobalSettings());
             popup.add(settingsItem);
@@ -49,6 +184,8 @@ public class Main {
             MenuItem quitItem = new MenuItem("Quit");
             quitItem.addActionListener(e -> {
                 NotesManager.saveNotes();
+                NotesManager.closeFeed();
+                NotesManager.getStore().flush();
                 AppSettings.saveGlobalSettings();
                 System.exit(0);
             });
@@ -65,223 +202,7416 @@ public class Main {
 // ----------------------------------------------------------------
 // NOTES MANAGER
 class NotesManager {
-    private static final List<NoteWindow> NOTES = new ArrayList<>();
-    private static final File NOTES_DATA_FILE = new File("notes_data.properties");
+    private static final List<NoteModel> NOTES = new ArrayList<>();
+    private static final Map<String, NoteModel> NOTES_BY_ID = new HashMap<>();
+    private static final Map<String, NoteWindow> WINDOWS = new HashMap<>();
+    // Bounds of the visible note windows (see NoteWindow's component listener)
+    private static final NoteLayout LAYOUT = new NoteLayout();
+    // Tags, notebooks, colors and flags of every note, for the Notes List filter
+    private static final NoteIndex INDEX = new NoteIndex();
+    // MinHash signatures of every note, for Find Duplicates
+    private static final NoteDuplicates DUPLICATES = new NoteDuplicates();
+    // Previews for the Notes List, rendered off the EDT
+    private static final NoteThumbnails THUMBNAILS = new NoteThumbnails();
+    // Reminder and hide times of every note; fires onto the EDT
+    private static final ReminderScheduler REMINDERS =
+            new ReminderScheduler(key -> SwingUtilities.invokeLater(() -> reminderDue(key)));
+    private static NoteStore store = new NoteStore(new File("notes_data.properties"), false);
+    // Change events for other tools; null until startFeed()
+    private static NoteFeed feed;
+
+    // While a batch is open, saveNotes() only marks the store dirty (EDT only)
+    private static int batchDepth = 0;
+    private static boolean savePending = false;
+    // While applying changes read from disk, saveNotes() does nothing (EDT only)
+    private static int externalDepth = 0;
+    // Set by headless commands, which use the manager without ever opening a note window
+    private static boolean windowless = false;
 
     public static void createNewNote() {
-        NoteData data = new NoteData();
-        data.id = UUID.randomUUID().toString();
-        data.title = "Title Here";
-        data.content = "";
-        data.x = 100;
-        data.y = 100;
-        data.width = 300;
-        data.height = 300;
-        data.isLocked = false;
-        data.alwaysOnTop = false;
-        data.transparency = 1.0f;
-        data.noteBackground = AppSettings.globalBgColor;
-        data.toolbarColor = AppSettings.globalToolbarColor;
-        data.fontFamily = AppSettings.globalFontFamily;
-        data.fontSize = AppSettings.globalFontSize;
-        // Set initial width and height as the lower bound for resizing
-        data.minWidth = data.width;
-        data.minHeight = data.height;
+        NoteData data = NoteStore.newNoteData();
+        // Next to the windows already on the screen under the pointer, instead of on top of them
+        List<Rectangle> areas = NoteLayout.screenAreas();
+        if (!areas.isEmpty()) {
+            PointerInfo pointer = MouseInfo.getPointerInfo();
+            Rectangle area = NoteLayout.areaAt(pointer != null ? pointer.getLocation() : new Point(data.x, data.y), areas);
+            Point spot = LAYOUT.place(area, data.width, data.height);
+            data.x = spot.x;
+            data.y = spot.y;
+        }
+        addNote(new NoteModel(data));
+    }
+
+    public static NoteIndex getIndex() {
+        return INDEX;
+    }
+
+    // Call after changing a note's tags, notebook, colors, fonts, lock or always-on-top flag
+    public static void updateIndex(NoteData data) {
+        INDEX.update(data);
+        THUMBNAILS.invalidate(data.id);
+    }
+
+    // After loadNotes(): the notes loaded are the feed's baseline
+    public static void startFeed() {
+        feed = new NoteFeed(getDataDirectory());
+        feed.start(NOTES);
+    }
+
+    public static NoteFeed getFeed() {
+        return feed;
+    }
+
+    public static void closeFeed() {
+        if (feed != null) feed.close();
+    }
+
+    public static void startReminders() {
+        REMINDERS.start();
+    }
+
+    // Call after changing a note's reminder fields
+    public static void scheduleReminders(NoteData data) {
+        if (data.remindAt > 0) {
+            REMINDERS.schedule("remind:" + data.id, data.remindAt);
+        } else {
+            REMINDERS.cancel("remind:" + data.id);
+        }
+        if (data.hideAt > 0) {
+            REMINDERS.schedule("hide:" + data.id, data.hideAt);
+        } else {
+            REMINDERS.cancel("hide:" + data.id);
+        }
+    }
+
+    // A reminder that was missed while the computer slept or the app was closed fires once, and a
+    // repeating one moves on to its next time still ahead
+    private static void reminderDue(String key) {
+        boolean remind = key.startsWith("remind:");
+        NoteModel model = findNote(key.substring(key.indexOf(':') + 1));
+        if (model == null) return;
+        NoteData data = model.getNoteData();
+        long now = System.currentTimeMillis();
+        if (remind) {
+            if (data.remindAt == 0 || data.remindAt > now) return;
+            data.remindAt = data.repeatMillis > 0
+                    ? data.remindAt + ((now - data.remindAt) / data.repeatMillis + 1) * data.repeatMillis
+                    : 0;
+            if (data.showForMillis > 0) data.hideAt = now + data.showForMillis;
+            NoteWindow window = getWindow(model);
+            if (window != null) {
+                window.setVisible(true);
+                window.toFront();
+            }
+        } else {
+            if (data.hideAt == 0 || data.hideAt > now) return;
+            data.hideAt = 0;
+            NoteWindow window = WINDOWS.get(data.id);
+            if (window != null) window.setVisible(false);
+        }
+        scheduleReminders(data);
+        saveNotes();
+    }
+
+    public static NoteLayout getLayout() {
+        return LAYOUT;
+    }
+
+    // Notes whose windows overlap region, for the automation API's region query
+    public static List<NoteModel> findNotesIn(Rectangle region) {
+        List<NoteModel> found = new ArrayList<>();
+        for (String id : LAYOUT.query(region)) {
+            NoteModel model = NOTES_BY_ID.get(id);
+            if (model != null) found.add(model);
+        }
+        return found;
+    }
+
+    public static void tileNotes() {
+        arrangeNotes(true);
+    }
+
+    public static void cascadeNotes() {
+        arrangeNotes(false);
+    }
+
+    private static void arrangeNotes(boolean tile) {
+        beginBatch();
+        try {
+            for (Map.Entry<String, Rectangle> entry : LAYOUT.arrange(NoteLayout.screenAreas(), tile).entrySet()) {
+                NoteWindow window = WINDOWS.get(entry.getKey());
+                if (window != null) window.setBounds(entry.getValue());
+                LAYOUT.put(entry.getKey(), entry.getValue());
+            }
+            saveNotes();
+        } finally {
+            endBatch();
+        }
+    }
+
+    public static void addNote(NoteModel model) {
+        addNote(model, !windowless);
+    }
+
+    public static void addNote(NoteModel model, boolean show) {
+        String id = model.getNoteData().id;
+        model.getStyledDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { contentEdited(); }
+            public void removeUpdate(DocumentEvent e) { contentEdited(); }
+            public void changedUpdate(DocumentEvent e) { contentEdited(); }
+            private void contentEdited() {
+                if (feed != null) feed.contentEdited(id);
+            }
+        });
+        if (feed != null) feed.noteAdded(model.getNoteData());
+        NOTES.add(model);
+        NOTES_BY_ID.put(model.getNoteData().id, model);
+        INDEX.update(model.getNoteData());
+        scheduleReminders(model.getNoteData());
+        NoteWindow noteWindow = show ? getWindow(model) : null;
+        if (noteWindow != null) noteWindow.setVisible(true);
+    }
+
+    public static File getDataDirectory() {
+        return store.getDataFile().getAbsoluteFile().getParentFile();
+    }
+
+    // Reads and converts files off the EDT, then adds them as hidden notes in one batch
+    public static void importFiles(File root) {
+        Thread worker = new Thread(() -> {
+            List<File> files = new ArrayList<>();
+            HeadlessCommands.collectFiles(root, files);
+            List<NoteModel> imported = new ArrayList<>();
+            files.parallelStream().map(file -> {
+                try {
+                    return NoteFormats.toNote(file.getName(),
+                            new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+                } catch (IOException | BadLocationException e) {
+                    System.err.println("Skipped " + file + " (" + e + ")");
+                    return null;
+                }
+            }).filter(Objects::nonNull).forEachOrdered(imported::add);
+            SwingUtilities.invokeLater(() -> {
+                beginBatch();
+                for (NoteModel model : imported) {
+                    addNote(model, false);
+                }
+                saveNotes();
+                endBatch();
+            });
+        }, "import");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public static List<NoteModel> getNotes() {
+        return Collections.unmodifiableList(NOTES);
+    }
+
+    public static NoteModel findNote(String id) {
+        return NOTES_BY_ID.get(id);
+    }
+
+    public static void refreshWindow(NoteModel model) {
+        if (feed != null) feed.propertiesChanged();
+        INDEX.update(model.getNoteData());
+        THUMBNAILS.invalidate(model.getNoteData().id);
+        scheduleReminders(model.getNoteData());
+        NoteWindow noteWindow = WINDOWS.get(model.getNoteData().id);
+        if (noteWindow != null) noteWindow.refreshFromData();
+    }
+
+    public static void setSpellChecking(boolean on) {
+        for (NoteWindow noteWindow : WINDOWS.values()) noteWindow.setSpellChecking(on);
+    }
+
+    public static void setTitle(NoteModel model, String title) {
+        model.getNoteData().title = title;
+        NoteWindow noteWindow = WINDOWS.get(model.getNoteData().id);
+        if (noteWindow != null) noteWindow.setTitleText(title);
+    }
+
+    // Windows are views over the models and are only created when there is a display
+    public static NoteWindow getWindow(NoteModel model) {
+        NoteWindow window = WINDOWS.get(model.getNoteData().id);
+        if (window == null && !windowless && !GraphicsEnvironment.isHeadless()) {
+            window = new NoteWindow(model);
+            WINDOWS.put(model.getNoteData().id, window);
+        }
+        return window;
+    }
+
+    // Restyled runs applied per EDT event; a note is never split across events
+    private static final int RESTYLE_CHUNK = 2000;
+
+    // Plans the changes off the EDT, then applies them a few notes per EDT event inside one batch,
+    // so each window repaints once and the store is saved once; done gets the number of notes changed
+    public static void restyleNotes(List<NoteModel> targets, NoteRestyle restyle, Consumer<Integer> done) {
+        List<NoteModel> notes = new ArrayList<>(targets);
+        Thread worker = new Thread(() -> {
+            List<NoteRestyle.Plan> plans = new ArrayList<>();
+            notes.parallelStream().map(restyle::plan).filter(NoteRestyle.Plan::hasChanges).forEachOrdered(plans::add);
+            SwingUtilities.invokeLater(() -> {
+                beginBatch();
+                applyRestyle(restyle, plans, 0, done);
+            });
+        }, "restyle");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private static void applyRestyle(NoteRestyle restyle, List<NoteRestyle.Plan> plans, int from, Consumer<Integer> done) {
+        int i = from;
+        for (int runs = 0; i < plans.size() && runs < RESTYLE_CHUNK; i++) {
+            NoteRestyle.Plan plan = plans.get(i);
+            // Deleted while it was being planned
+            if (NOTES_BY_ID.get(plan.note.getNoteData().id) != plan.note) continue;
+            runs += restyle.apply(plan) + 1;
+            refreshWindow(plan.note);
+        }
+        if (i < plans.size()) {
+            int next = i;
+            SwingUtilities.invokeLater(() -> applyRestyle(restyle, plans, next, done));
+            return;
+        }
+        saveNotes();
+        endBatch();
+        done.accept(plans.size());
+    }
+
+    private static final int DUPLICATE_CLUSTERS = 200;
+
+    // Finds clusters of near-identical notes off the EDT and lets each be merged or thinned out
+    public static void showDuplicates() {
+        List<NoteModel> notes = new ArrayList<>(NOTES);
+        Thread worker = new Thread(() -> {
+            long start = System.nanoTime();
+            List<NoteDuplicates.Cluster> clusters = DUPLICATES.find(notes, NoteDuplicates.DEFAULT_THRESHOLD);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            SwingUtilities.invokeLater(() -> showDuplicateClusters(clusters, notes.size(), millis));
+        }, "duplicates");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private static void showDuplicateClusters(List<NoteDuplicates.Cluster> clusters, int searched, long millis) {
+        JDialog dialog = new JDialog((Frame) null, "Duplicate Notes", false);
+        dialog.setLayout(new BorderLayout());
+        JPanel listPanel = new JPanel();
+        listPanel.setLayout(new BoxLayout(listPanel, BoxLayout.Y_AXIS));
+        dialog.add(new JLabel(clusters.isEmpty()
+                ? "No duplicates among " + searched + " notes (" + millis + " ms)"
+                : clusters.size() + " groups of similar notes among " + searched + " notes (" + millis + " ms)"),
+                BorderLayout.NORTH);
+
+        for (NoteDuplicates.Cluster cluster : clusters.subList(0, Math.min(DUPLICATE_CLUSTERS, clusters.size()))) {
+            JPanel clusterPanel = new JPanel();
+            clusterPanel.setLayout(new BoxLayout(clusterPanel, BoxLayout.Y_AXIS));
+            clusterPanel.setBorder(BorderFactory.createTitledBorder(
+                    cluster.notes.size() + " notes, about " + Math.round(cluster.similarity * 100) + "% alike"));
+            // The longest note is the one that is kept
+            List<NoteModel> members = new ArrayList<>(cluster.notes);
+            members.sort(Comparator.comparingInt((NoteModel m) -> -m.getStyledDocument().getLength()));
+            for (NoteModel note : members) {
+                JPanel rowPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+                JButton openButton = new JButton(note.getNoteData().title);
+                openButton.addActionListener(e -> {
+                    if (NOTES_BY_ID.get(note.getNoteData().id) != note) return;
+                    NoteWindow window = getWindow(note);
+                    window.setVisible(true);
+                    window.toFront();
+                });
+                rowPanel.add(openButton);
+                String text = note.getText().replace('\n', ' ');
+                rowPanel.add(new JLabel(text.length() > 60 ? text.substring(0, 60) + "..." : text));
+                clusterPanel.add(rowPanel);
+            }
+            JPanel actions = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            JButton mergeButton = new JButton("Merge Into One");
+            mergeButton.addActionListener(e -> {
+                mergeNotes(DUPLICATES.alikeTo(members.get(0), members, NoteDuplicates.DEFAULT_THRESHOLD));
+                listPanel.remove(clusterPanel);
+                listPanel.revalidate();
+                listPanel.repaint();
+            });
+            JButton deleteButton = new JButton("Keep Longest, Delete Others");
+            deleteButton.addActionListener(e -> {
+                List<NoteModel> alike = DUPLICATES.alikeTo(members.get(0), members, NoteDuplicates.DEFAULT_THRESHOLD);
+                int kept = members.size() - alike.size();
+                int result = JOptionPane.showConfirmDialog(dialog,
+                        "Delete " + (alike.size() - 1) + " notes?"
+                                + (kept > 0 ? " " + kept + " no longer alike to the longest are kept." : ""),
+                        "Confirm Delete", JOptionPane.YES_NO_OPTION);
+                if (result != JOptionPane.YES_OPTION) return;
+                beginBatch();
+                try {
+                    for (NoteModel other : alike.subList(1, alike.size())) {
+                        if (NOTES_BY_ID.get(other.getNoteData().id) == other) deleteNote(other);
+                    }
+                } finally {
+                    endBatch();
+                }
+                listPanel.remove(clusterPanel);
+                listPanel.revalidate();
+                listPanel.repaint();
+            });
+            actions.add(mergeButton);
+            actions.add(deleteButton);
+            clusterPanel.add(actions);
+            listPanel.add(clusterPanel);
+        }
+
+        dialog.add(new JScrollPane(listPanel), BorderLayout.CENTER);
+        dialog.setSize(560, 600);
+        dialog.setLocationRelativeTo(null);
+        dialog.setVisible(true);
+    }
+
+    // Keeps the first note, adds the paragraphs and tags only the others have, and deletes the others
+    public static void mergeNotes(List<NoteModel> notes) {
+        NoteModel target = notes.get(0);
+        beginBatch();
+        try {
+            for (NoteModel other : notes.subList(1, notes.size())) {
+                if (NOTES_BY_ID.get(other.getNoteData().id) != other) continue;
+                NoteDuplicates.appendMissingParagraphs(target.getStyledDocument(), other.getStyledDocument());
+                target.getNoteData().tags.addAll(other.getNoteData().tags);
+                deleteNote(other);
+            }
+            refreshWindow(target);
+            saveNotes();
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        } finally {
+            endBatch();
+        }
+    }
+
+    private static final int LIST_ROWS = 500;
+
+    public static void showNotesList() {
+        JDialog dialog = new JDialog((Frame) null, "All Notes", true);
+        dialog.setLayout(new BorderLayout());
+        JPanel listPanel = new JPanel();
+        listPanel.setLayout(new BoxLayout(listPanel, BoxLayout.Y_AXIS));
+
+        // Filter by tags and flags, e.g. "work AND pinned AND NOT locked"
+        JTextField filterField = new JTextField();
+        filterField.setToolTipText("Tags combined with AND, OR, NOT and parentheses; also notebook:name, color:rrggbb, pinned, locked");
+        JLabel statusLabel = new JLabel(" ");
+        JPanel filterPanel = new JPanel(new BorderLayout(5, 0));
+        filterPanel.add(new JLabel("Filter:"), BorderLayout.WEST);
+        filterPanel.add(filterField, BorderLayout.CENTER);
+        filterPanel.add(statusLabel, BorderLayout.SOUTH);
+        Runnable refresh = new Runnable() {
+            public void run() {
+                fillNotesList(dialog, listPanel, statusLabel, filterField.getText(), this);
+            }
+        };
+        filterField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { refresh.run(); }
+            public void removeUpdate(DocumentEvent e) { refresh.run(); }
+            public void changedUpdate(DocumentEvent e) { refresh.run(); }
+        });
+        refresh.run();
+
+        JScrollPane scrollPane = new JScrollPane(listPanel);
+        dialog.add(filterPanel, BorderLayout.NORTH);
+        dialog.add(scrollPane, BorderLayout.CENTER);
+        dialog.setSize(480, 560);
+        dialog.setLocationRelativeTo(null);
+        dialog.setVisible(true);
+    }
+
+    // Matching notes grouped by notebook and sorted by title; only the first LIST_ROWS get rows
+    static void fillNotesList(JDialog dialog, JPanel listPanel, JLabel statusLabel, String query, Runnable refresh) {
+        List<NoteModel> matches = new ArrayList<>();
+        long start = System.nanoTime();
+        if (query.trim().isEmpty()) {
+            matches.addAll(NOTES);
+        } else {
+            try {
+                for (String id : INDEX.filter(query)) matches.add(NOTES_BY_ID.get(id));
+            } catch (IllegalArgumentException e) {
+                statusLabel.setText(e.getMessage());
+                return;
+            }
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+        matches.sort(Comparator.comparing((NoteModel m) -> m.getNoteData().notebook, String.CASE_INSENSITIVE_ORDER)
+                .thenComparing(m -> m.getNoteData().title, String.CASE_INSENSITIVE_ORDER));
+
+        listPanel.removeAll();
+        THUMBNAILS.cancelPending();
+        String notebook = null;
+        for (NoteModel note : matches.subList(0, Math.min(LIST_ROWS, matches.size()))) {
+            NoteData data = note.getNoteData();
+            if (!data.notebook.equals(notebook)) {
+                notebook = data.notebook;
+                JLabel header = new JLabel(notebook.isEmpty() ? "No notebook" : notebook);
+                header.setFont(header.getFont().deriveFont(Font.BOLD));
+                listPanel.add(header);
+            }
+            JPanel rowPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            // Note-colored placeholder until the thumbnail is ready
+            JLabel thumbnail = new JLabel();
+            thumbnail.setPreferredSize(new Dimension(NoteThumbnails.WIDTH, NoteThumbnails.HEIGHT));
+            thumbnail.setOpaque(true);
+            thumbnail.setBackground(data.noteBackground);
+            BufferedImage image = THUMBNAILS.get(note, ready -> thumbnail.setIcon(new ImageIcon(ready)));
+            if (image != null) thumbnail.setIcon(new ImageIcon(image));
+            rowPanel.add(thumbnail);
+            JButton openButton = new JButton(data.title);
+            openButton.addActionListener(e -> {
+                NoteWindow window = getWindow(note);
+                window.setVisible(true);
+                window.toFront();
+                dialog.dispose();
+            });
+            JButton deleteButton = new JButton("Delete");
+            deleteButton.addActionListener(e -> {
+                int result = JOptionPane.showConfirmDialog(dialog,
+                        "Are you sure you want to delete this note?", "Confirm Delete", JOptionPane.YES_NO_OPTION);
+                if (result == JOptionPane.YES_OPTION) {
+                    NotesManager.deleteNote(note);
+                    refresh.run();
+                }
+            });
+            rowPanel.add(openButton);
+            rowPanel.add(deleteButton);
+            if (!data.tags.isEmpty()) rowPanel.add(new JLabel(String.join(", ", data.tags)));
+            listPanel.add(rowPanel);
+        }
+        statusLabel.setText(matches.size() + " notes" + (query.trim().isEmpty() ? "" : " (" + micros + " us)")
+                + (matches.size() > LIST_ROWS ? ", showing the first " + LIST_ROWS : ""));
+        listPanel.revalidate();
+        listPanel.repaint();
+    }
+
+    public static void saveNotes() {
+        if (feed != null) feed.propertiesChanged();
+        if (externalDepth > 0) return;
+        if (batchDepth > 0) {
+            savePending = true;
+            return;
+        }
+        store.save(NOTES);
+    }
+
+    public static void beginBatch() {
+        batchDepth++;
+    }
+
+    public static void endBatch() {
+        if (--batchDepth == 0 && savePending) {
+            savePending = false;
+            saveNotes();
+        }
+    }
+
+    public static void loadNotes() {
+        for (NoteModel model : store.load()) {
+            addNote(model);
+        }
+    }
+
+    // For headless commands: no window is opened for these notes or any added later, even with a display
+    public static void loadNotesWithoutWindows() {
+        windowless = true;
+        for (NoteModel model : store.load()) {
+            addNote(model, false);
+        }
+    }
+
+    public static void deleteNote(NoteModel model) {
+        removeNote(model);
+        store.deleteContent(model.getNoteData());
+        saveNotes();
+    }
+
+    private static void removeNote(NoteModel model) {
+        NOTES.remove(model);
+        NOTES_BY_ID.remove(model.getNoteData().id);
+        LAYOUT.remove(model.getNoteData().id);
+        INDEX.remove(model.getNoteData().id);
+        THUMBNAILS.invalidate(model.getNoteData().id);
+        DUPLICATES.forget(model.getNoteData().id);
+        if (feed != null) feed.noteRemoved(model.getNoteData().id);
+        REMINDERS.cancel("remind:" + model.getNoteData().id);
+        REMINDERS.cancel("hide:" + model.getNoteData().id);
+        NoteWindow noteWindow = WINDOWS.remove(model.getNoteData().id);
+        if (noteWindow != null) noteWindow.dispose();
+    }
+
+    public static NoteStore getStore() {
+        return store;
+    }
+
+    // Points the manager at another store; only before loadNotes()
+    public static void useStore(NoteStore other) {
+        store = other;
+    }
+
+    // A note's content file changed on disk. Unsaved local edits win; the disk version is kept as a copy.
+    public static void applyExternalContent(String id, StyledDocument loaded) {
+        NoteModel model = findNote(id);
+        if (model == null) return;
+        if (model.isDirty()) {
+            NoteData copy = model.getNoteData().copy();
+            copy.id = UUID.randomUUID().toString();
+            copy.title = copy.title + " (changed on disk)";
+            copy.x += 30;
+            copy.y += 30;
+            // Filled through replaceContent so the copy counts as unsaved and its content file is written
+            NoteModel conflict = new NoteModel(copy);
+            try {
+                conflict.replaceContent(loaded);
+            } catch (BadLocationException e) {
+                e.printStackTrace();
+                return;
+            }
+            addNote(conflict);
+            saveNotes();
+            return;
+        }
+        externalDepth++;
+        try {
+            model.replaceContent(loaded);
+            model.markSaved(model.getVersion());
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        } finally {
+            externalDepth--;
+        }
+    }
+
+    // notes_data.properties changed on disk. Each note is compared with the index this process last
+    // wrote or read: the side that did not change gives way, and where both did, the unsaved local
+    // version is kept and written again. Returns the notes that are new on disk.
+    public static List<NoteData> applyExternalIndex(List<NoteData> index) {
+        Map<String, Map<String, String>> known = store.getKnownIndex();
+        List<NoteData> added = new ArrayList<>();
+        Set<String> ids = new HashSet<>();
+        boolean keptLocal = false;
+        externalDepth++;
+        try {
+            for (NoteData data : index) {
+                ids.add(data.id);
+                Map<String, String> base = known.get(data.id);
+                if (NoteStore.fieldsOf(data).equals(base)) continue;
+                NoteModel model = findNote(data.id);
+                if (model == null) {
+                    // New on disk, or deleted here but edited there: the edit wins
+                    added.add(data);
+                    continue;
+                }
+                if (!NoteStore.fieldsOf(model.getNoteData()).equals(base)) {
+                    System.err.println("Note " + data.id + " changed here and on disk; keeping the local version");
+                    keptLocal = true;
+                    continue;
+                }
+                model.getNoteData().copyFrom(data);
+                refreshWindow(model);
+            }
+            for (NoteModel model : new ArrayList<>(NOTES)) {
+                if (ids.contains(model.getNoteData().id)) continue;
+                Map<String, String> base = known.get(model.getNoteData().id);
+                // Created here and not saved yet, or changed here since: keep it
+                if (base == null || model.isDirty() || !NoteStore.fieldsOf(model.getNoteData()).equals(base)) {
+                    keptLocal = true;
+                    continue;
+                }
+                removeNote(model);
+            }
+        } finally {
+            externalDepth--;
+        }
+        store.rememberIndex(index);
+        if (keptLocal) saveNotes();
+        return added;
+    }
+}
+
+// ----------------------------------------------------------------
+// NOTE MODEL (note data plus its styled document, independent of any window)
+class NoteModel {
+    private final NoteData noteData;
+    private final StyledDocument document;
+
+    // Bumped on every document change; the store only rewrites content whose version moved
+    private volatile long version = 0;
+    private volatile long savedVersion = 0;
+
+    public NoteModel(NoteData data) {
+        this(data, NoteStyleContext.newDocument());
+    }
+
+    public NoteModel(NoteData data, StyledDocument document) {
+        this.noteData = data;
+        this.document = document;
+        document.addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { version++; }
+            public void removeUpdate(DocumentEvent e) { version++; }
+            public void changedUpdate(DocumentEvent e) { version++; }
+        });
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isDirty() {
+        return version != savedVersion;
+    }
+
+    public void markSaved(long savedVersion) {
+        this.savedVersion = savedVersion;
+    }
+
+    // Copies text, character and paragraph attributes from another document (EDT when shown)
+    public void replaceContent(StyledDocument source) throws BadLocationException {
+        document.remove(0, document.getLength());
+        Element root = source.getDefaultRootElement();
+        for (int p = 0; p < root.getElementCount(); p++) {
+            Element paragraph = root.getElement(p);
+            for (int r = 0; r < paragraph.getElementCount(); r++) {
+                Element leaf = paragraph.getElement(r);
+                int end = Math.min(leaf.getEndOffset(), source.getLength());
+                if (end > leaf.getStartOffset()) {
+                    document.insertString(document.getLength(),
+                            source.getText(leaf.getStartOffset(), end - leaf.getStartOffset()),
+                            leaf.getAttributes().copyAttributes());
+                }
+            }
+            MutableAttributeSet paragraphAttrs = new SimpleAttributeSet(paragraph.getAttributes());
+            paragraphAttrs.removeAttribute(AttributeSet.ResolveAttribute);
+            document.setParagraphAttributes(paragraph.getStartOffset(),
+                    paragraph.getEndOffset() - paragraph.getStartOffset(), paragraphAttrs, false);
+        }
+    }
+
+    public NoteData getNoteData() {
+        return noteData;
+    }
+
+    public StyledDocument getStyledDocument() {
+        return document;
+    }
+
+    public String getText() {
+        try {
+            return document.getText(0, document.getLength());
+        } catch (BadLocationException e) {
+            return "";
+        }
+    }
+}
+
+// ----------------------------------------------------------------
+// NOTE STYLE CONTEXT (one pool of immutable attribute sets shared by every note document)
+//
+// A plain DefaultStyledDocument gets its own StyleContext, so equal runs in different notes never
+// share attribute sets, and sets of more than 9 attributes (most runs read from RTF) are not shared
+// even within a note. Each note document still gets its own context, so styles defined by an RTF
+// stylesheet stay private to it, but every attribute set is interned in POOL, which keeps them
+// weakly referenced and compresses sets of up to POOL_THRESHOLD attributes.
+class NoteStyleContext extends StyleContext {
+    private static final long serialVersionUID = 1L;
+    private static final int POOL_THRESHOLD = 32;
+    private static final Pool POOL = new Pool();
+
+    // Statistics, guarded by POOL: lookups, sets added to the pool, and weak references to the
+    // ones still alive
+    private static long lookups;
+    private static long created;
+    private static final Set<Reference<AttributeSet>> LIVE = new HashSet<>();
+    private static final ReferenceQueue<AttributeSet> COLLECTED = new ReferenceQueue<>();
+
+    public static StyledDocument newDocument() {
+        return new DefaultStyledDocument(new NoteStyleContext());
+    }
+
+    // A shared single-attribute set, for formatting a selection without allocating one
+    public static AttributeSet attribute(Object name, Object value) {
+        synchronized (POOL) {
+            return track(POOL.addAttribute(POOL.getEmptySet(), name, value));
+        }
+    }
+
+    // base with attrs laid over it, interned like any other set (for views that restyle a run)
+    public static AttributeSet overlay(AttributeSet base, AttributeSet attrs) {
+        synchronized (POOL) {
+            return track(POOL.addAttributes(base, attrs));
+        }
+    }
+
+    public static String statistics() {
+        synchronized (POOL) {
+            for (Reference<?> gone; (gone = COLLECTED.poll()) != null; ) LIVE.remove(gone);
+            return String.format("%d shared attribute sets alive, %d created for %d lookups (%.1f%% reused)",
+                    LIVE.size(), created, lookups, lookups == 0 ? 0.0 : 100.0 * (lookups - created) / lookups);
+        }
+    }
+
+    // Called holding POOL right after a pool operation: the result is new to the pool exactly
+    // when it is the search key that operation built
+    private static AttributeSet track(AttributeSet set) {
+        lookups++;
+        if (set == POOL.lastKey) {
+            created++;
+            LIVE.add(new WeakReference<>(set, COLLECTED));
+        }
+        POOL.lastKey = null;
+        return set;
+    }
+
+    @Override
+    public AttributeSet addAttribute(AttributeSet old, Object name, Object value) {
+        synchronized (POOL) {
+            return track(POOL.addAttribute(old, name, value));
+        }
+    }
+
+    @Override
+    public AttributeSet addAttributes(AttributeSet old, AttributeSet attr) {
+        synchronized (POOL) {
+            return track(POOL.addAttributes(old, attr));
+        }
+    }
+
+    @Override
+    public AttributeSet removeAttribute(AttributeSet old, Object name) {
+        synchronized (POOL) {
+            return track(POOL.removeAttribute(old, name));
+        }
+    }
+
+    @Override
+    public AttributeSet removeAttributes(AttributeSet old, Enumeration<?> names) {
+        synchronized (POOL) {
+            return track(POOL.removeAttributes(old, names));
+        }
+    }
+
+    @Override
+    public AttributeSet removeAttributes(AttributeSet old, AttributeSet attrs) {
+        synchronized (POOL) {
+            return track(POOL.removeAttributes(old, attrs));
+        }
+    }
+
+    @Override
+    public AttributeSet getEmptySet() {
+        return POOL.getEmptySet();
+    }
+
+    @Override
+    public void reclaim(AttributeSet a) {
+        POOL.reclaim(a);
+    }
+
+    @Override
+    public Font getFont(String family, int style, int size) {
+        return POOL.getFont(family, style, size);
+    }
+
+    // The StyleContext attribute methods are synchronized already; its font cache is not
+    private static final class Pool extends StyleContext {
+        private static final long serialVersionUID = 1L;
+        private SmallAttributeSet lastKey;
+
+        @Override
+        protected int getCompressionThreshold() {
+            return POOL_THRESHOLD;
+        }
+
+        @Override
+        protected SmallAttributeSet createSmallAttributeSet(AttributeSet a) {
+            lastKey = super.createSmallAttributeSet(a);
+            return lastKey;
+        }
+
+        @Override
+        public synchronized Font getFont(String family, int style, int size) {
+            return super.getFont(family, style, size);
+        }
+    }
+}
+
+// ----------------------------------------------------------------
+// NOTE STORE (notes_data.properties + notes_rtf/, usable without a display)
+class NoteStore {
+    private final File dataFile;
+    private final File rtfFolder;
+    private final boolean parallel;
+    // CRC32 of the last few versions this process wrote to each file, so watchers can ignore our own
+    // writes; one is not enough when a second save lands before the watcher reads the first
+    private static final int OWN_WRITES = 4;
+    private final Map<String, Deque<Long>> ownWrites = new ConcurrentHashMap<>();
+
+    // Fields of each note as this process last wrote or read notes_data.properties, so an index
+    // changed on disk can be told apart from local changes not saved yet
+    private volatile Map<String, Map<String, String>> knownIndex = Collections.emptyMap();
+
+    // Compression dictionary, trained once from the first notes saved with compression on
+    private static final String DICTIONARY_FILE = "dictionary.bin";
+    private static final int MIN_TRAINING_NOTES = 10;
+    private static final int MAX_TRAINING_NOTES = 500;
+    private byte[] dictionary;
+    private int dictionaryId;
+    private boolean dictionaryLoaded;
+
+    // Set once the store's passphrase has been entered; null for a plaintext store
+    private volatile NoteCrypto crypto;
+
+    // With a background writer, save() only takes a snapshot of the index; serializing, compressing,
+    // encrypting and writing happen on the writer thread, once per burst of saves
+    private static final long WRITE_DELAY_MS = 200;
+    private ScheduledExecutorService writer;
+    private final Object pendingLock = new Object();
+    private List<NoteModel> pendingNotes;
+    private List<NoteData> pendingIndex;
+
+    // parallel should only be set when no window is editing the documents (headless runs)
+    public NoteStore(File dataFile, boolean parallel) {
+        this.dataFile = dataFile;
+        this.rtfFolder = new File(dataFile.getAbsoluteFile().getParentFile(), "notes_rtf");
+        this.parallel = parallel;
+    }
+
+    public File getDataFile() {
+        return dataFile;
+    }
+
+    public File getRtfFolder() {
+        return rtfFolder;
+    }
+
+    public File getDataDirectory() {
+        return dataFile.getAbsoluteFile().getParentFile();
+    }
+
+    public NoteCrypto getCrypto() {
+        return crypto;
+    }
+
+    public void setCrypto(NoteCrypto crypto) {
+        this.crypto = crypto;
+    }
+
+    public void startBackgroundWriter() {
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "store-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Waits until every save requested so far is on disk
+    public void flush() {
+        if (writer == null) return;
+        try {
+            writer.submit(this::writePending).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static NoteData newNoteData() {
+        NoteData data = new NoteData();
+        data.id = UUID.randomUUID().toString();
+        data.title = "Title Here";
+        data.content = "";
+        data.x = 100;
+        data.y = 100;
+        data.width = 300;
+        data.height = 300;
+        data.isLocked = false;
+        data.alwaysOnTop = false;
+        data.transparency = 1.0f;
+        data.noteBackground = AppSettings.globalBgColor;
+        data.toolbarColor = AppSettings.globalToolbarColor;
+        data.fontFamily = AppSettings.globalFontFamily;
+        data.fontSize = AppSettings.globalFontSize;
+        // Set initial width and height as the lower bound for resizing
+        data.minWidth = data.width;
+        data.minHeight = data.height;
+        return data;
+    }
+
+    public void save(List<NoteModel> notes) {
+        if (writer == null) {
+            List<NoteData> index = new ArrayList<>(notes.size());
+            for (NoteModel note : notes) {
+                index.add(note.getNoteData());
+            }
+            write(notes, index);
+            return;
+        }
+
+        // The index is copied here because the caller keeps changing NoteData on its own thread
+        List<NoteData> index = new ArrayList<>(notes.size());
+        for (NoteModel note : notes) {
+            index.add(note.getNoteData().copy());
+        }
+        synchronized (pendingLock) {
+            boolean scheduled = pendingNotes != null;
+            pendingNotes = new ArrayList<>(notes);
+            pendingIndex = index;
+            if (scheduled) return;
+        }
+        writer.schedule(this::writePending, WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void writePending() {
+        List<NoteModel> notes;
+        List<NoteData> index;
+        synchronized (pendingLock) {
+            notes = pendingNotes;
+            index = pendingIndex;
+            pendingNotes = null;
+            pendingIndex = null;
+        }
+        if (notes != null) write(notes, index);
+    }
+
+    private void write(List<NoteModel> notes, List<NoteData> index) {
+        // Ensure the RTF folder exists
+        if (!rtfFolder.exists()) {
+            rtfFolder.mkdirs();
+        }
+
+        // Train the dictionary the first time there are enough notes to learn their common RTF from
+        if (AppSettings.compressNotes && notes.size() >= MIN_TRAINING_NOTES && getDictionary() == null) {
+            trainDictionary(notes);
+        }
+
+        // Save styled content to a separate file per note in the "notes_rtf" folder,
+        // skipping notes whose document has not changed since it was last written or read
+        (parallel ? notes.parallelStream() : notes.stream()).filter(NoteModel::isDirty).forEach(this::writeContent);
+        saveIndex(index);
+    }
+
+    // Writes only notes_data.properties; the content files are expected to be in place already
+    public void saveIndex(List<NoteData> notes) {
+        Properties props = new Properties();
+        for (int index = 0; index < notes.size(); index++) {
+            NoteData data = notes.get(index);
+            String prefix = "note." + index + ".";
+            writeProperties(props, prefix, data);
+            props.setProperty(prefix + "contentFile", getContentFile(data).getName());
+        }
+        props.setProperty("count", String.valueOf(notes.size()));
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            props.store(bytes, "Notes Data");
+            writeAtomically(dataFile, encrypt(dataFile, bytes.toByteArray()));
+            rememberIndex(notes);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public List<NoteModel> load() {
+        List<NoteData> index = loadIndex();
+        rememberIndex(index);
+        List<NoteModel> notes = new ArrayList<>(index.size());
+        for (NoteData data : index) {
+            notes.add(new NoteModel(data));
+        }
+
+        // Load styled content from the files in the "notes_rtf" folder
+        (parallel ? notes.parallelStream() : notes.stream()).forEach(note -> {
+            File styledContentFile = getContentFile(note.getNoteData());
+            if (styledContentFile.exists()) {
+                readContent(note, styledContentFile);
+            }
+            note.markSaved(note.getVersion());
+        });
+        return notes;
+    }
+
+    // Reads only notes_data.properties, without touching the content files
+    public List<NoteData> loadIndex() {
+        List<NoteData> notes = new ArrayList<>();
+        if (!dataFile.exists()) return notes;
+        Properties props = new Properties();
+        try (InputStream fis = NoteCrypto.open(new BufferedInputStream(new FileInputStream(dataFile)), dataFile.getName(), crypto)) {
+            props.load(fis);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return notes;
+        }
+
+        // Ensure the RTF folder exists
+        if (!rtfFolder.exists()) {
+            rtfFolder.mkdirs();
+        }
+
+        int count = Integer.parseInt(props.getProperty("count", "0"));
+        for (int i = 0; i < count; i++) {
+            notes.add(readProperties(props, "note." + i + "."));
+        }
+        return notes;
+    }
+
+    public File getContentFile(NoteData data) {
+        return new File(rtfFolder, data.id + ".rtf");
+    }
+
+    public void deleteContent(NoteData data) {
+        if (writer != null) {
+            // Behind any write of this note that is already queued
+            writer.execute(() -> deleteContentFile(data));
+        } else {
+            deleteContentFile(data);
+        }
+    }
+
+    private void deleteContentFile(NoteData data) {
+        // Delete the associated RTF file
+        File styledContentFile = getContentFile(data);
+        if (styledContentFile.exists()) {
+            if (!styledContentFile.delete()) {
+                System.err.println("Failed to delete RTF file: " + styledContentFile.getAbsolutePath());
+            }
+        }
+    }
+
+    public void writeContent(NoteModel note) {
+        try {
+            writeContentFile(note);
+        } catch (IOException | BadLocationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void readContent(NoteModel note, File styledContentFile) {
+        try {
+            readContentFile(note, styledContentFile);
+        } catch (IOException | BadLocationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Returns the number of bytes written
+    public long writeContentFile(NoteModel note) throws IOException, BadLocationException {
+        long version;
+        byte[] bytes;
+        // May run off the EDT, so hold off edits while the document is serialized
+        AbstractDocument doc = (AbstractDocument) note.getStyledDocument();
+        doc.readLock();
+        try {
+            version = note.getVersion();
+            bytes = toRtf(note.getStyledDocument());
+        } finally {
+            doc.readUnlock();
+        }
+        File file = getContentFile(note.getNoteData());
+        writeAtomically(file, encode(file, bytes));
+        note.markSaved(version);
+        return bytes.length;
+    }
+
+    // Compresses and encrypts RTF as the store's settings ask for
+    byte[] encode(File file, byte[] bytes) throws IOException {
+        if (AppSettings.compressNotes) {
+            byte[] dict;
+            int dictId;
+            synchronized (this) {
+                dict = getDictionary();
+                dictId = dictionaryId;
+            }
+            bytes = NoteCompression.compress(bytes, dict, dictId);
+        }
+        return encrypt(file, bytes);
+    }
+
+    private byte[] encrypt(File file, byte[] bytes) throws IOException {
+        NoteCrypto key = crypto;
+        return key == null ? bytes : key.encrypt(file.getName(), bytes);
+    }
+
+    static byte[] toRtf(StyledDocument doc) throws IOException, BadLocationException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new RTFEditorKit().write(bytes, doc, 0, doc.getLength());
+        return bytes.toByteArray();
+    }
+
+    public StyledDocument parseContent(File file, byte[] bytes) throws IOException, BadLocationException {
+        StyledDocument doc = NoteStyleContext.newDocument();
+        try (InputStream in = openContent(file, new ByteArrayInputStream(bytes))) {
+            new RTFEditorKit().read(in, doc, 0);
+        }
+        trimFinalParagraph(doc);
+        return doc;
+    }
+
+    // Content files may be plain RTF, compressed or encrypted; either way the caller reads RTF
+    public InputStream openContent(File file, InputStream in) throws IOException {
+        if (!in.markSupported()) in = new BufferedInputStream(in);
+        in = NoteCrypto.open(in, file.getName(), crypto);
+        byte[] dict;
+        int dictId;
+        synchronized (this) {
+            dict = getDictionary();
+            dictId = dictionaryId;
+        }
+        return NoteCompression.open(in, dict, dictId);
+    }
+
+    public synchronized byte[] getDictionary() {
+        if (!dictionaryLoaded) {
+            dictionaryLoaded = true;
+            File file = new File(rtfFolder, DICTIONARY_FILE);
+            if (file.exists()) {
+                try {
+                    setDictionary(readFile(file, crypto));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return dictionary;
+    }
+
+    public synchronized int getDictionaryId() {
+        getDictionary();
+        return dictionaryId;
+    }
+
+    private void setDictionary(byte[] dict) {
+        Adler32 adler = new Adler32();
+        adler.update(dict, 0, dict.length);
+        dictionary = dict;
+        dictionaryId = (int) adler.getValue();
+    }
+
+    // Learns the dictionary from an even spread of the notes and stores it next to their content.
+    // Notes already written keep working: each file names the dictionary it was compressed with.
+    public synchronized void trainDictionary(List<NoteModel> notes) {
+        List<byte[]> samples = new ArrayList<>();
+        int step = Math.max(1, notes.size() / MAX_TRAINING_NOTES);
+        try {
+            for (int i = 0; i < notes.size(); i += step) {
+                // Runs on the writer thread, so hold off edits while the document is serialized
+                AbstractDocument doc = (AbstractDocument) notes.get(i).getStyledDocument();
+                doc.readLock();
+                try {
+                    samples.add(toRtf(notes.get(i).getStyledDocument()));
+                } finally {
+                    doc.readUnlock();
+                }
+            }
+            byte[] dict = NoteCompression.train(samples, NoteCompression.DICTIONARY_BYTES);
+            if (dict.length == 0) return;
+            rtfFolder.mkdirs();
+            // Made of the notes' own RTF, so it is encrypted like them
+            File file = new File(rtfFolder, DICTIONARY_FILE);
+            writeAtomically(file, encrypt(file, dict));
+            setDictionary(dict);
+            dictionaryLoaded = true;
+        } catch (IOException | BadLocationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // RTFEditorKit writes the document's implicit last paragraph mark and reads it back as text,
+    // which would add an empty line on every save and load
+    private static void trimFinalParagraph(StyledDocument doc) throws BadLocationException {
+        int length = doc.getLength();
+        if (length > 0 && "\n".equals(doc.getText(length - 1, 1))) {
+            doc.remove(length - 1, 1);
+        }
+    }
+
+    // Re-encrypts every file of the store under next (null leaves it in plaintext). Every file is
+    // first re-encrypted into a temporary copy, in parallel; if any of them fails, the copies are
+    // deleted and the store is left exactly as it was. Only then is the new key saved next to the
+    // old one, which commits the rekey: the copies are renamed over the originals, the new key
+    // replaces the old, and a crash in between is finished by finishRekey on the next start.
+    public void rekey(NoteCrypto next) throws IOException {
+        if (writer == null) {
+            rekeyFiles(next);
+            return;
+        }
+        // On the writer thread, after the saves already requested, so no write races the rewrite
+        try {
+            writer.submit(() -> {
+                writePending();
+                rekeyFiles(next);
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private void rekeyFiles(NoteCrypto next) throws IOException {
+        // Left by an attempt that failed or crashed before it was committed
+        for (File copy : rekeyCopies()) Files.delete(copy.toPath());
+        List<File> files = new ArrayList<>();
+        File[] contentFiles = rtfFolder.listFiles((dir, name) -> name.endsWith(".rtf"));
+        if (contentFiles != null) files.addAll(Arrays.asList(contentFiles));
+        if (dataFile.exists()) files.add(dataFile);
+        File dictionaryFile = new File(rtfFolder, DICTIONARY_FILE);
+        if (dictionaryFile.exists()) files.add(dictionaryFile);
+
+        NoteCrypto previous = crypto;
+        List<IOException> failures = Collections.synchronizedList(new ArrayList<>());
+        Map<File, Long> rewritten = new ConcurrentHashMap<>();
+        files.parallelStream().forEach(file -> {
+            try {
+                byte[] plain = readFile(file, previous);
+                byte[] bytes = next == null ? plain : next.encrypt(file.getName(), plain);
+                // On disk for good before the new key is saved, or a power loss could lose it
+                try (FileOutputStream fos = new FileOutputStream(rekeyCopy(file))) {
+                    fos.write(bytes);
+                    fos.getFD().sync();
+                }
+                rewritten.put(file, checksum(bytes));
+            } catch (IOException e) {
+                failures.add(new IOException(file.getName() + ": " + e.getMessage(), e));
+            }
+        });
+        if (!failures.isEmpty()) {
+            for (File file : files) rekeyCopy(file).delete();
+            throw failures.get(0);
+        }
+
+        for (Map.Entry<File, Long> file : rewritten.entrySet()) recordOwnWrite(file.getKey(), file.getValue());
+        NoteCrypto.saveNext(getDataDirectory(), next);
+        finishRekey();
+        if (next != null) SyncEngine.removeState(getDataDirectory());
+        crypto = next;
+    }
+
+    // Finishes a rekey that was interrupted after its new key was saved. Every copy was complete by
+    // then, so renaming the ones left and switching to the new key is all there is to do. Before
+    // that point neither the originals nor the old key were touched. Call before unlocking.
+    public void finishRekey() throws IOException {
+        File dataDir = getDataDirectory();
+        if (!NoteCrypto.hasNext(dataDir)) return;
+        for (File copy : rekeyCopies()) {
+            String path = copy.getPath();
+            File file = new File(path.substring(0, path.length() - ".rekey".length()));
+            try {
+                Files.move(copy.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (NoSuchFileException e) {
+                // Renamed by another process finishing the same rekey
+            }
+        }
+        NoteCrypto.commitNext(dataDir);
+    }
+
+    private List<File> rekeyCopies() {
+        List<File> copies = new ArrayList<>();
+        for (File folder : new File[] {getDataDirectory(), rtfFolder}) {
+            File[] found = folder.listFiles((dir, name) -> name.endsWith(".rekey"));
+            if (found != null) copies.addAll(Arrays.asList(found));
+        }
+        return copies;
+    }
+
+    // The plaintext of a file of the store, decrypted with key when the store has one
+    private static byte[] readFile(File file, NoteCrypto key) throws IOException {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        try (InputStream in = NoteCrypto.open(new BufferedInputStream(new FileInputStream(file)), file.getName(), key)) {
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0; ) plain.write(buffer, 0, n);
+        }
+        return plain.toByteArray();
+    }
+
+    private static File rekeyCopy(File file) {
+        return new File(file.getPath() + ".rekey");
+    }
+
+    public boolean isOwnWrite(File file, byte[] bytes) {
+        Deque<Long> written = ownWrites.get(file.getName());
+        if (written == null) return false;
+        synchronized (written) {
+            return written.contains(checksum(bytes));
+        }
+    }
+
+    private void recordOwnWrite(File file, long checksum) {
+        Deque<Long> written = ownWrites.computeIfAbsent(file.getName(), k -> new ArrayDeque<>(OWN_WRITES));
+        synchronized (written) {
+            written.remove(checksum);
+            if (written.size() == OWN_WRITES) written.removeFirst();
+            written.addLast(checksum);
+        }
+    }
+
+    // Write to a temporary file and rename it, so readers never see a half-written file
+    private void writeAtomically(File target, byte[] bytes) throws IOException {
+        recordOwnWrite(target, checksum(bytes));
+        File temp = new File(target.getPath() + ".tmp");
+        Files.write(temp.toPath(), bytes);
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // For secrets: the bytes go to a temporary file created readable by its owner only (where the file
+    // system has POSIX permissions), which then takes the target's place, so they are never readable
+    // by other users, not even briefly
+    static void writeOwnerOnly(File target, byte[] bytes) throws IOException {
+        Path dir = target.getAbsoluteFile().getParentFile().toPath();
+        Path temp;
+        try {
+            temp = Files.createTempFile(dir, target.getName(), ".tmp", java.nio.file.attribute.PosixFilePermissions
+                    .asFileAttribute(java.nio.file.attribute.PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system; the data folder's own permissions apply
+            temp = Files.createTempFile(dir, target.getName(), ".tmp");
+        }
+        try {
+            Files.write(temp, bytes);
+            Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    public void readContentFile(NoteModel note, File styledContentFile) throws IOException, BadLocationException {
+        try (InputStream fis = openContent(styledContentFile, new FileInputStream(styledContentFile))) {
+            new RTFEditorKit().read(fis, note.getStyledDocument(), 0);
+        }
+        trimFinalParagraph(note.getStyledDocument());
+        note.markSaved(note.getVersion());
+    }
+
+    public Map<String, Map<String, String>> getKnownIndex() {
+        return knownIndex;
+    }
+
+    public void rememberIndex(List<NoteData> notes) {
+        Map<String, Map<String, String>> known = new HashMap<>();
+        for (NoteData data : notes) known.put(data.id, fieldsOf(data));
+        knownIndex = known;
+    }
+
+    // Every stored field of a note but its id
+    static Map<String, String> fieldsOf(NoteData data) {
+        Properties props = new Properties();
+        writeProperties(props, "", data);
+        Map<String, String> fields = new HashMap<>();
+        for (String key : props.stringPropertyNames()) {
+            if (!"id".equals(key)) fields.put(key, props.getProperty(key));
+        }
+        return fields;
+    }
+
+    static void writeProperties(Properties props, String prefix, NoteData data) {
+        props.setProperty(prefix + "id", data.id);
+        props.setProperty(prefix + "title", data.title);
+        props.setProperty(prefix + "x", String.valueOf(data.x));
+        props.setProperty(prefix + "y", String.valueOf(data.y));
+        props.setProperty(prefix + "width", String.valueOf(data.width));
+        props.setProperty(prefix + "height", String.valueOf(data.height));
+        props.setProperty(prefix + "locked", String.valueOf(data.isLocked));
+        props.setProperty(prefix + "ontop", String.valueOf(data.alwaysOnTop));
+        props.setProperty(prefix + "transparency", String.valueOf(data.transparency));
+        props.setProperty(prefix + "noteBackground", String.valueOf(data.noteBackground.getRGB()));
+        props.setProperty(prefix + "toolbarColor", String.valueOf(data.toolbarColor.getRGB()));
+        props.setProperty(prefix + "fontFamily", data.fontFamily);
+        props.setProperty(prefix + "fontSize", String.valueOf(data.fontSize));
+        props.setProperty(prefix + "minWidth", String.valueOf(data.minWidth));
+        props.setProperty(prefix + "minHeight", String.valueOf(data.minHeight));
+        props.setProperty(prefix + "remindAt", String.valueOf(data.remindAt));
+        props.setProperty(prefix + "repeatMillis", String.valueOf(data.repeatMillis));
+        props.setProperty(prefix + "hideAt", String.valueOf(data.hideAt));
+        props.setProperty(prefix + "showForMillis", String.valueOf(data.showForMillis));
+        props.setProperty(prefix + "tags", String.join(",", data.tags));
+        props.setProperty(prefix + "notebook", data.notebook);
+        props.setProperty(prefix + "markdown", String.valueOf(data.markdown));
+    }
+
+    static NoteData readProperties(Properties props, String prefix) {
+        NoteData data = new NoteData();
+        data.id = props.getProperty(prefix + "id");
+        data.title = props.getProperty(prefix + "title");
+        data.x = Integer.parseInt(props.getProperty(prefix + "x"));
+        data.y = Integer.parseInt(props.getProperty(prefix + "y"));
+        data.width = Integer.parseInt(props.getProperty(prefix + "width"));
+        data.height = Integer.parseInt(props.getProperty(prefix + "height"));
+        data.isLocked = Boolean.parseBoolean(props.getProperty(prefix + "locked"));
+        data.alwaysOnTop = Boolean.parseBoolean(props.getProperty(prefix + "ontop"));
+        data.transparency = Float.parseFloat(props.getProperty(prefix + "transparency"));
+        data.noteBackground = new Color(Integer.parseInt(props.getProperty(prefix + "noteBackground")));
+        data.toolbarColor = new Color(Integer.parseInt(props.getProperty(prefix + "toolbarColor")));
+        data.fontFamily = props.getProperty(prefix + "fontFamily");
+        data.fontSize = Integer.parseInt(props.getProperty(prefix + "fontSize"));
+        data.minWidth = Integer.parseInt(props.getProperty(prefix + "minWidth", String.valueOf(data.width)));
+        data.minHeight = Integer.parseInt(props.getProperty(prefix + "minHeight", String.valueOf(data.height)));
+        data.remindAt = Long.parseLong(props.getProperty(prefix + "remindAt", "0"));
+        data.repeatMillis = Long.parseLong(props.getProperty(prefix + "repeatMillis", "0"));
+        data.hideAt = Long.parseLong(props.getProperty(prefix + "hideAt", "0"));
+        data.showForMillis = Long.parseLong(props.getProperty(prefix + "showForMillis", "0"));
+        data.tags = NoteIndex.parseTags(props.getProperty(prefix + "tags", ""));
+        data.notebook = props.getProperty(prefix + "notebook", "");
+        data.markdown = Boolean.parseBoolean(props.getProperty(prefix + "markdown", "false"));
+        return data;
+    }
+}
+
+// ----------------------------------------------------------------
+// NOTE COMPRESSION (deflate with a preset dictionary trained on the user's own notes)
+//
+// RTFEditorKit repeats the same header, font table, color table and control words in every file,
+// which a preset dictionary lets deflate reference even in a note's first bytes. Compressed
+// content starts with "SNZ" 1 and the Adler-32 of the dictionary it was written with (0 = none).
+class NoteCompression {
+    // Deflate cannot reach further back than its 32 KB window, so a bigger dictionary is wasted
+    static final int DICTIONARY_BYTES = 32 * 1024;
+    private static final byte[] MAGIC = {'S', 'N', 'Z', 1};
+    private static final int HEADER_BYTES = MAGIC.length + 4;
+    private static final int KMER_BYTES = 8;
+    private static final int SEGMENT_BYTES = 64;
+    private static final int COUNT_BITS = 22;
+    private static final int COUNT_TABLE = 1 << COUNT_BITS;
+    private static final long MAX_TRAINING_BYTES = 16L << 20;
+
+    static byte[] compress(byte[] raw, byte[] dictionary, int dictionaryId) throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            if (dictionary != null) deflater.setDictionary(dictionary);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + HEADER_BYTES);
+            out.write(MAGIC);
+            int id = dictionary == null ? 0 : dictionaryId;
+            out.write(new byte[] {(byte) (id >>> 24), (byte) (id >>> 16), (byte) (id >>> 8), (byte) id});
+            try (DeflaterOutputStream deflating = new DeflaterOutputStream(out, deflater)) {
+                deflating.write(raw);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Returns a stream of the raw RTF, inflating as it is read when the content is compressed
+    static InputStream open(InputStream in, byte[] dictionary, int dictionaryId) throws IOException {
+        if (!in.markSupported()) in = new BufferedInputStream(in);
+        in.mark(HEADER_BYTES);
+        byte[] header = new byte[HEADER_BYTES];
+        int read = 0;
+        while (read < HEADER_BYTES) {
+            int n = in.read(header, read, HEADER_BYTES - read);
+            if (n < 0) break;
+            read += n;
+        }
+        if (read < HEADER_BYTES || !Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) {
+            in.reset();
+            return in;
+        }
+
+        int needed = (header[4] & 0xff) << 24 | (header[5] & 0xff) << 16 | (header[6] & 0xff) << 8 | (header[7] & 0xff);
+        Inflater inflater = new Inflater(true);
+        if (needed != 0) {
+            if (dictionary == null || needed != dictionaryId) {
+                inflater.end();
+                throw new IOException("Compressed with dictionary " + Integer.toHexString(needed) + ", which is missing");
+            }
+            inflater.setDictionary(dictionary);
+        }
+        return new InflaterInputStream(in, inflater, 8192) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    // Greedily picks the SEGMENT_BYTES pieces of the samples whose KMER_BYTES substrings occur in
+    // the most notes, discounting substrings already covered. The best pieces go last, where
+    // deflate reaches them with the shortest distances.
+    static byte[] train(List<byte[]> samples, int size) {
+        // Number of samples each substring occurs in, by hash; collisions only blur the scores
+        int[] counts = new int[COUNT_TABLE];
+        int[] lastSample = new int[COUNT_TABLE];
+        List<byte[]> used = new ArrayList<>();
+        long total = 0;
+        for (byte[] sample : samples) {
+            if (total + sample.length > MAX_TRAINING_BYTES) break;
+            total += sample.length;
+            used.add(sample);
+            for (int i = 0; i + KMER_BYTES <= sample.length; i++) {
+                int slot = slot(sample, i);
+                if (lastSample[slot] != used.size()) {
+                    lastSample[slot] = used.size();
+                    counts[slot]++;
+                }
+            }
+        }
+
+        // Scores only fall as substrings get covered, so a candidate whose refreshed score
+        // still beats the best stale score in the queue is the best choice
+        PriorityQueue<long[]> queue = new PriorityQueue<>((a, b) -> Long.compare(b[0], a[0]));
+        for (int s = 0; s < used.size(); s++) {
+            byte[] sample = used.get(s);
+            for (int start = 0; start + SEGMENT_BYTES <= sample.length; start += SEGMENT_BYTES / 2) {
+                long score = score(sample, start, counts);
+                if (score > 0) queue.add(new long[] {score, s, start});
+            }
+        }
+        Deque<byte[]> picked = new ArrayDeque<>();
+        int bytes = 0;
+        while (bytes < size && !queue.isEmpty()) {
+            long[] top = queue.poll();
+            byte[] sample = used.get((int) top[1]);
+            int start = (int) top[2];
+            long score = score(sample, start, counts);
+            if (score <= 0) continue;
+            if (!queue.isEmpty() && score < queue.peek()[0]) {
+                top[0] = score;
+                queue.add(top);
+                continue;
+            }
+            int length = Math.min(SEGMENT_BYTES, size - bytes);
+            picked.addFirst(Arrays.copyOfRange(sample, start, start + length));
+            bytes += length;
+            for (int i = start; i + KMER_BYTES <= start + SEGMENT_BYTES; i++) {
+                counts[slot(sample, i)] = 0;
+            }
+        }
+
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(bytes);
+        for (byte[] piece : picked) {
+            dictionary.write(piece, 0, piece.length);
+        }
+        return dictionary.toByteArray();
+    }
+
+    // Substrings found in only one note are not worth a place in the dictionary
+    private static long score(byte[] sample, int start, int[] counts) {
+        long score = 0;
+        for (int i = start; i + KMER_BYTES <= start + SEGMENT_BYTES; i++) {
+            int count = counts[slot(sample, i)];
+            if (count > 1) score += count;
+        }
+        return score;
+    }
+
+    private static int slot(byte[] bytes, int offset) {
+        long kmer = 0;
+        for (int i = 0; i < KMER_BYTES; i++) {
+            kmer = kmer << 8 | (bytes[offset + i] & 0xff);
+        }
+        kmer *= 0x9E3779B97F4A7C15L;
+        return (int) (kmer >>> (64 - COUNT_BITS));
+    }
+}
+
+// ----------------------------------------------------------------
+// NOTE CRYPTO (AES-GCM encryption at rest, keyed from a passphrase once per session)
+//
+// notes_key.properties holds the PBKDF2 salt and iteration count, a random key id and a check value
+// that tells a wrong passphrase apart from a damaged file. Each encrypted file starts with "SNE" 1,
+// the key id and a fresh 12-byte nonce. The header and the file's name are authenticated along
+// with the content, so a file cannot be moved to another note or key without failing to open.
+class NoteCrypto {
+    static final String KEY_FILE = "notes_key.properties";
+    // The key a rekey switches to, saved once every file is re-encrypted; see NoteStore.finishRekey
+    static final String NEXT_KEY_FILE = KEY_FILE + ".next";
+    private static final byte[] MAGIC = {'S', 'N', 'E', 1};
+    private static final int NONCE_BYTES = 12;
+    private static final int HEADER_BYTES = MAGIC.length + 4 + NONCE_BYTES;
+    private static final int TAG_BITS = 128;
+    private static final int ITERATIONS = 200_000;
+    private static final String CHECK_NAME = "passphrase-check";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKey key;
+    private final int keyId;
+    private final byte[] salt;
+    private final int iterations;
+
+    private NoteCrypto(SecretKey key, int keyId, byte[] salt, int iterations) {
+        this.key = key;
+        this.keyId = keyId;
+        this.salt = salt;
+        this.iterations = iterations;
+    }
+
+    static boolean isConfigured(File dataDir) {
+        return new File(dataDir, KEY_FILE).exists();
+    }
+
+    // A new key with a fresh salt; nothing is written until save()
+    static NoteCrypto create(char[] passphrase) throws IOException {
+        byte[] salt = new byte[16];
+        RANDOM.nextBytes(salt);
+        return new NoteCrypto(derive(passphrase, salt, ITERATIONS), RANDOM.nextInt() | 1, salt, ITERATIONS);
+    }
+
+    // Returns null when the passphrase is wrong
+    static NoteCrypto unlock(File dataDir, char[] passphrase) throws IOException {
+        Properties props = new Properties();
+        try (FileInputStream fis = new FileInputStream(new File(dataDir, KEY_FILE))) {
+            props.load(fis);
+        }
+        Base64.Decoder base64 = Base64.getDecoder();
+        byte[] salt = base64.decode(props.getProperty("salt"));
+        int iterations = Integer.parseInt(props.getProperty("iterations"));
+        int keyId = (int) Long.parseLong(props.getProperty("keyId"), 16);
+        NoteCrypto crypto = new NoteCrypto(derive(passphrase, salt, iterations), keyId, salt, iterations);
+        try (InputStream in = open(new ByteArrayInputStream(base64.decode(props.getProperty("check"))), CHECK_NAME, crypto)) {
+            while (in.read() >= 0) {
+                // the tag is only checked at the end
+            }
+        } catch (IOException e) {
+            if (e.getCause() instanceof AEADBadTagException) return null;
+            throw e;
+        }
+        return crypto;
+    }
+
+    // next == null records that the rekey turns encryption off
+    static void saveNext(File dataDir, NoteCrypto next) throws IOException {
+        Properties props = new Properties();
+        if (next == null) {
+            props.setProperty("plaintext", "true");
+        } else {
+            Base64.Encoder base64 = Base64.getEncoder();
+            props.setProperty("salt", base64.encodeToString(next.salt));
+            props.setProperty("iterations", String.valueOf(next.iterations));
+            props.setProperty("keyId", Integer.toHexString(next.keyId));
+            props.setProperty("check", base64.encodeToString(next.encrypt(CHECK_NAME, new byte[32])));
+        }
+        File file = new File(dataDir, NEXT_KEY_FILE);
+        File temp = new File(dataDir, NEXT_KEY_FILE + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            props.store(fos, "Notes Key (the passphrase itself is never stored)");
+            fos.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static boolean hasNext(File dataDir) {
+        return new File(dataDir, NEXT_KEY_FILE).exists();
+    }
+
+    // Makes the key saved by saveNext the store's key
+    static void commitNext(File dataDir) throws IOException {
+        File next = new File(dataDir, NEXT_KEY_FILE);
+        Properties props = new Properties();
+        try (FileInputStream fis = new FileInputStream(next)) {
+            props.load(fis);
+        } catch (FileNotFoundException e) {
+            return; // committed by another process finishing the same rekey
+        }
+        if (Boolean.parseBoolean(props.getProperty("plaintext"))) {
+            remove(dataDir);
+            Files.deleteIfExists(next.toPath());
+        } else {
+            Files.move(next.toPath(), new File(dataDir, KEY_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static void remove(File dataDir) {
+        File file = new File(dataDir, KEY_FILE);
+        if (file.exists() && !file.delete()) {
+            System.err.println("Failed to delete key file: " + file.getAbsolutePath());
+        }
+    }
+
+    byte[] encrypt(String name, byte[] plain) throws IOException {
+        byte[] header = new byte[HEADER_BYTES];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[4] = (byte) (keyId >>> 24);
+        header[5] = (byte) (keyId >>> 16);
+        header[6] = (byte) (keyId >>> 8);
+        header[7] = (byte) keyId;
+        byte[] nonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        System.arraycopy(nonce, 0, header, 8, NONCE_BYTES);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_BYTES + plain.length + TAG_BITS / 8);
+        out.write(header);
+        try (OutputStream encrypting = new CipherOutputStream(out, cipher(Cipher.ENCRYPT_MODE, header, name))) {
+            encrypting.write(plain);
+        }
+        return out.toByteArray();
+    }
+
+    // Returns a stream of the plaintext when in is encrypted, or in itself when it is not and the
+    // store has no key (crypto == null). With a key, a file that is not encrypted is rejected, so a
+    // plaintext file dropped into the store cannot stand in for one of ours. in must support mark;
+    // a wrong key or tampered content fails with an IOException.
+    static InputStream open(InputStream in, String name, NoteCrypto crypto) throws IOException {
+        in.mark(HEADER_BYTES);
+        byte[] header = new byte[HEADER_BYTES];
+        int read = 0;
+        while (read < HEADER_BYTES) {
+            int n = in.read(header, read, HEADER_BYTES - read);
+            if (n < 0) break;
+            read += n;
+        }
+        if (read < MAGIC.length || !Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) {
+            if (crypto != null) throw new IOException(name + " is not encrypted, but the store is");
+            in.reset();
+            return in;
+        }
+        if (crypto == null) throw new IOException(name + " is encrypted and the store is locked");
+        int keyId = (header[4] & 0xff) << 24 | (header[5] & 0xff) << 16 | (header[6] & 0xff) << 8 | (header[7] & 0xff);
+        if (read < HEADER_BYTES || keyId != crypto.keyId) {
+            throw new IOException(name + " is encrypted with a different key");
+        }
+        return new CipherInputStream(in, crypto.cipher(Cipher.DECRYPT_MODE, header, name));
+    }
+
+    private Cipher cipher(int mode, byte[] header, String name) throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(mode, key, new GCMParameterSpec(TAG_BITS, header, 8, NONCE_BYTES));
+            cipher.updateAAD(header);
+            cipher.updateAAD(name.getBytes(StandardCharsets.UTF_8));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static SecretKey derive(char[] passphrase, byte[] salt, int iterations) throws IOException {
+        PBEKeySpec spec = new PBEKeySpec(passphrase, salt, iterations, 256);
+        try {
+            byte[] bytes = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            return new SecretKeySpec(bytes, "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
+
+// ----------------------------------------------------------------
+// HEADLESS COMMANDS (run with arguments or -Djava.awt.headless=true)
+class HeadlessCommands {
+    private static final int PIPELINE_QUEUE = 256;
+
+    public static int run(String[] args) {
+        File dataFile = new File("notes_data.properties");
+        NoteFormats.Format format = NoteFormats.Format.PLAIN;
+        List<String> rest = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--data".equals(args[i]) && i + 1 < args.length) {
+                dataFile = new File(args[++i]);
+            } else if ("--format".equals(args[i]) && i + 1 < args.length) {
+                format = NoteFormats.forName(args[++i]);
+            } else {
+                rest.add(args[i]);
+            }
+        }
+        if (rest.isEmpty()) {
+            printUsage();
+            return 1;
+        }
+
+        AppSettings.loadGlobalSettings();
+        NoteStore store = new NoteStore(dataFile, true);
+        String command = rest.get(0);
+        if (!unlock(store)) return 1;
+
+        // Commands that write the store need to own it, or hand the work to the running app
+        if (("import".equals(command) || "replace".equals(command) || "sync".equals(command) || "compress".equals(command)
+                || "rekey".equals(command) || "restyle".equals(command))
+                && !SingleInstance.acquire(dataFile.getAbsoluteFile().getParentFile())) {
+            return handOff(dataFile.getAbsoluteFile().getParentFile(), command, rest.subList(1, rest.size()));
+        }
+        try {
+            if ("import".equals(command) && rest.size() >= 2) {
+                return importFiles(store, rest.subList(1, rest.size()));
+            }
+            if ("export".equals(command) && rest.size() == 2) {
+                return exportNotes(store, new File(rest.get(1)), format);
+            }
+            if ("sync".equals(command) && rest.size() == 2) {
+                if (store.getCrypto() != null) {
+                    System.err.println("Sync is not available while the notes are encrypted");
+                    return 1;
+                }
+                NoteStore syncStore = new NoteStore(dataFile, false);
+                syncStore.setCrypto(store.getCrypto());
+                return syncOnce(syncStore, new File(rest.get(1)));
+            }
+            if ("filter".equals(command) && rest.size() == 2) {
+                return filterNotes(store, rest.get(1));
+            }
+            if ("changes".equals(command)) {
+                return printChanges(new File(store.getDataDirectory(), NoteFeed.FOLDER),
+                        rest.size() > 1 && !"--follow".equals(rest.get(1)) ? Long.parseLong(rest.get(1)) : 1,
+                        rest.contains("--follow"));
+            }
+            if ("dictionary-build".equals(command) && rest.size() == 3) {
+                return buildDictionary(new File(rest.get(1)), new File(rest.get(2)));
+            }
+            if ("bench".equals(command) && rest.size() == 2) {
+                return benchmark(store, rest.get(1));
+            }
+            if ("stress".equals(command)) {
+                return stress(rest.subList(1, rest.size()));
+            }
+            if ("rekey".equals(command) && rest.size() == 1) {
+                return rekey(store);
+            }
+        } catch (InterruptedException e) {
+            return 1;
+        }
+
+        long start = System.nanoTime();
+        List<NoteModel> notes = store.load();
+        System.err.println("Loaded " + notes.size() + " notes in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        switch (command) {
+            case "list":
+                for (NoteModel note : notes) {
+                    System.out.println(note.getNoteData().id + "\t" + note.getNoteData().title);
+                }
+                return 0;
+            case "search":
+                if (rest.size() < 2) break;
+                String query = rest.get(1).toLowerCase();
+                notes.parallelStream()
+                        .filter(n -> n.getNoteData().title.toLowerCase().contains(query)
+                                || n.getText().toLowerCase().contains(query))
+                        .map(n -> n.getNoteData().id + "\t" + n.getNoteData().title)
+                        .forEachOrdered(System.out::println);
+                return 0;
+            case "replace":
+                if (rest.size() < 3) break;
+                int changed = notes.parallelStream()
+                        .mapToInt(n -> replaceAll(n.getStyledDocument(), rest.get(1), rest.get(2)))
+                        .sum();
+                start = System.nanoTime();
+                store.save(notes);
+                System.err.println("Replaced " + changed + " occurrences, saved in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms");
+                return 0;
+            case "restyle":
+                if (rest.size() < 3) break;
+                return restyleNotes(store, notes, rest.get(1), rest.subList(2, rest.size()));
+            case "duplicates":
+                return findDuplicates(notes, rest.size() > 1 ? Double.parseDouble(rest.get(1)) : NoteDuplicates.DEFAULT_THRESHOLD);
+            case "compress":
+                return compressAll(store, notes);
+            default:
+                break;
+        }
+        printUsage();
+        return 1;
+    }
+
+    // The passphrase comes from STICKY_NOTES_PASSPHRASE, or is asked for on the console
+    private static boolean unlock(NoteStore store) {
+        File dataDir = store.getDataDirectory();
+        try {
+            store.finishRekey();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (!NoteCrypto.isConfigured(dataDir)) return true;
+        char[] passphrase = readPassphrase("STICKY_NOTES_PASSPHRASE", "Passphrase: ");
+        if (passphrase == null) {
+            System.err.println("The notes in " + dataDir.getAbsolutePath()
+                    + " are encrypted; set STICKY_NOTES_PASSPHRASE or run from a terminal");
+            return false;
+        }
+        try {
+            NoteCrypto crypto = NoteCrypto.unlock(dataDir, passphrase);
+            if (crypto == null) {
+                System.err.println("Wrong passphrase");
+                return false;
+            }
+            store.setCrypto(crypto);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static char[] readPassphrase(String variable, String prompt) {
+        String value = System.getenv(variable);
+        if (value != null) return value.toCharArray();
+        Console console = System.console();
+        return console == null ? null : console.readPassword(prompt);
+    }
+
+    // Re-encrypts the store under a new passphrase (STICKY_NOTES_NEW_PASSPHRASE or the console);
+    // an empty passphrase turns encryption off
+    static int rekey(NoteStore store) {
+        char[] passphrase = readPassphrase("STICKY_NOTES_NEW_PASSPHRASE", "New passphrase (empty to decrypt): ");
+        if (passphrase == null) {
+            System.err.println("Set STICKY_NOTES_NEW_PASSPHRASE or run from a terminal");
+            return 1;
+        }
+        if (System.getenv("STICKY_NOTES_NEW_PASSPHRASE") == null
+                && !Arrays.equals(passphrase, System.console().readPassword("Repeat it: "))) {
+            System.err.println("The passphrases do not match");
+            return 1;
+        }
+        try {
+            long start = System.nanoTime();
+            NoteCrypto next = passphrase.length == 0 ? null : NoteCrypto.create(passphrase);
+            long derived = System.nanoTime();
+            store.rekey(next);
+            System.err.println((next == null ? "Decrypted" : "Encrypted") + " the store in "
+                    + (System.nanoTime() - derived) / 1_000_000 + " ms (key derivation "
+                    + (derived - start) / 1_000_000 + " ms)");
+            return 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 2;
+        }
+    }
+
+    // Measurements of the store's memory, compression and encryption, kept apart from the everyday commands
+    static int benchmark(NoteStore store, String name) {
+        switch (name) {
+            case "memory":
+                return memoryBenchmark(store);
+            case "compression":
+                return compressionBenchmark(store, store.load());
+            case "encryption":
+                return encryptionBenchmark(store.load());
+            default:
+                printUsage();
+                return 1;
+        }
+    }
+
+    // Saves and loads the notes in a scratch folder as plaintext and encrypted, the way the tray app
+    // does: serialized and written one note after another on the writer thread, loaded in order
+    static int encryptionBenchmark(List<NoteModel> notes) {
+        final int rounds = 3;
+        if (notes.isEmpty()) {
+            System.err.println("No notes to measure");
+            return 1;
+        }
+        File scratch = null;
+        try {
+            scratch = Files.createTempDirectory("notes-benchmark").toFile();
+            long start = System.nanoTime();
+            NoteCrypto crypto = NoteCrypto.create("benchmark".toCharArray());
+            System.out.printf("%d notes, key derivation %d ms (once per session)%n",
+                    notes.size(), (System.nanoTime() - start) / 1_000_000);
+            System.out.printf("%-12s %10s %12s %10s %12s %14s%n", "", "save ms", "save MB/s", "load ms", "load MB/s", "save request us");
+            double[] plainTimes = null;
+            for (NoteCrypto mode : new NoteCrypto[] {null, crypto}) {
+                File dataFile = new File(scratch, mode == null ? "plain/notes_data.properties" : "encrypted/notes_data.properties");
+                dataFile.getParentFile().mkdirs();
+                NoteStore target = new NoteStore(dataFile, false);
+                target.setCrypto(mode);
+                long bestSave = Long.MAX_VALUE;
+                long bestLoad = Long.MAX_VALUE;
+                long bytes = 0;
+                // Best of several rounds, so the first ones can warm up the JIT
+                for (int round = 0; round < rounds; round++) {
+                    start = System.nanoTime();
+                    bytes = 0;
+                    target.getRtfFolder().mkdirs();
+                    List<NoteData> index = new ArrayList<>(notes.size());
+                    for (NoteModel note : notes) {
+                        bytes += target.writeContentFile(note);
+                        index.add(note.getNoteData());
+                    }
+                    target.saveIndex(index);
+                    bestSave = Math.min(bestSave, System.nanoTime() - start);
+
+                    NoteStore reader = new NoteStore(dataFile, false);
+                    reader.setCrypto(mode);
+                    start = System.nanoTime();
+                    reader.load();
+                    bestLoad = Math.min(bestLoad, System.nanoTime() - start);
+                }
+
+                // What a keystroke pays with the background writer: a snapshot of the index
+                NoteStore background = new NoteStore(dataFile, false);
+                background.setCrypto(mode);
+                background.startBackgroundWriter();
+                start = System.nanoTime();
+                background.save(notes);
+                long request = System.nanoTime() - start;
+                background.flush();
+
+                double mb = bytes / (1024.0 * 1024.0);
+                System.out.printf("%-12s %10d %12.1f %10d %12.1f %14d%n", mode == null ? "plaintext" : "encrypted",
+                        bestSave / 1_000_000, mb / (bestSave / 1e9), bestLoad / 1_000_000, mb / (bestLoad / 1e9), request / 1000);
+                if (mode == null) {
+                    plainTimes = new double[] {bestSave, bestLoad};
+                } else {
+                    System.out.printf("encrypted / plaintext: save %.2fx, load %.2fx%n",
+                            bestSave / plainTimes[0], bestLoad / plainTimes[1]);
+                }
+            }
+            return 0;
+        } catch (IOException | BadLocationException e) {
+            e.printStackTrace();
+            return 2;
+        } finally {
+            if (scratch != null) deleteTree(scratch);
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteTree(child);
+        }
+        file.delete();
+    }
+
+    // Prints change feed events from a sequence number on; --follow keeps polling the log for more
+    static int printChanges(File folder, long from, boolean follow) throws InterruptedException {
+        long next = from;
+        while (true) {
+            List<NoteFeed.Event> events = NoteFeed.read(folder, next, 10_000);
+            for (NoteFeed.Event event : events) {
+                System.out.println(event.toLine());
+                next = event.sequence + 1;
+            }
+            if (!follow) return 0;
+            if (events.isEmpty()) Thread.sleep(500);
+        }
+    }
+
+    // Heap held by the documents of every note: one StyleContext per document as Swing does by
+    // default, against the shared NoteStyleContext pool
+    static int memoryBenchmark(NoteStore store) {
+        List<byte[]> raw = new ArrayList<>();
+        for (NoteData data : store.loadIndex()) {
+            File file = store.getContentFile(data);
+            if (!file.exists()) continue;
+            try (InputStream in = store.openContent(file, new ByteArrayInputStream(Files.readAllBytes(file.toPath())))) {
+                ByteArrayOutputStream rtf = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                for (int n; (n = in.read(buffer)) > 0; ) rtf.write(buffer, 0, n);
+                raw.add(rtf.toByteArray());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return 1;
+            }
+        }
+        System.out.printf("%d notes%n%-14s %10s %14s %10s %9s%n", raw.size(), "", "runs", "distinct sets", "heap KB", "load ms");
+        try {
+            // Warm up the RTF reader so neither row pays for class loading
+            measureDocuments(null, raw.subList(0, Math.min(200, raw.size())), DefaultStyledDocument::new);
+            measureDocuments("own context", raw, DefaultStyledDocument::new);
+            measureDocuments("shared pool", raw, NoteStyleContext::newDocument);
+        } catch (IOException | BadLocationException e) {
+            e.printStackTrace();
+            return 1;
+        }
+        System.out.println(NoteStyleContext.statistics());
+        return 0;
+    }
+
+    private static void measureDocuments(String label, List<byte[]> raw, Supplier<StyledDocument> documents)
+            throws IOException, BadLocationException {
+        long before = usedHeap();
+        long start = System.nanoTime();
+        List<StyledDocument> loaded = new ArrayList<>(raw.size());
+        for (byte[] rtf : raw) {
+            StyledDocument doc = documents.get();
+            new RTFEditorKit().read(new ByteArrayInputStream(rtf), doc, 0);
+            loaded.add(doc);
+        }
+        long loadMs = (System.nanoTime() - start) / 1_000_000;
+        long heap = usedHeap() - before;
+
+        int runs = 0;
+        Set<AttributeSet> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (StyledDocument doc : loaded) {
+            Element root = doc.getDefaultRootElement();
+            for (int p = 0; p < root.getElementCount(); p++) {
+                Element paragraph = root.getElement(p);
+                // An element is itself an AttributeSet; copyAttributes() hands back the shared set, if any
+                distinct.add(paragraph.getAttributes().copyAttributes());
+                for (int r = 0; r < paragraph.getElementCount(); r++) {
+                    runs++;
+                    distinct.add(paragraph.getElement(r).getAttributes().copyAttributes());
+                }
+            }
+        }
+        if (label != null) System.out.printf("%-14s %10d %14d %10d %9d%n", label, runs, distinct.size(), heap / 1024, loadMs);
+        loaded.clear();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // dictionary-build <words.txt> <out.dawg>: one word per line, anything after a '/' ignored;
+    // words with characters other than letters and apostrophes are left out
+    static int buildDictionary(File wordList, File out) {
+        List<String> words = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(wordList.toPath(), StandardCharsets.UTF_8)) {
+                String word = line.contains("/") ? line.substring(0, line.indexOf('/')) : line.trim();
+                boolean letters = !word.isEmpty();
+                for (int i = 0; i < word.length() && letters; i++) {
+                    letters = Character.isLetter(word.charAt(i)) || word.charAt(i) == '\'';
+                }
+                if (letters) words.add(word);
+            }
+            long start = System.nanoTime();
+            NoteDictionary dictionary = NoteDictionary.build(words);
+            long built = System.nanoTime();
+            try (OutputStream os = new FileOutputStream(out)) {
+                dictionary.write(os);
+            }
+            System.out.printf("%,d words -> %,d edges (%,d KB in memory, %,d KB on disk), built in %d ms%n",
+                    dictionary.words().size(), dictionary.edgeCount(), dictionary.edgeCount() * 4 / 1024,
+                    out.length() / 1024, (built - start) / 1_000_000);
+            return 0;
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            return 1;
+        }
+    }
+
+    // Lists clusters of near-identical notes
+    static int findDuplicates(List<NoteModel> notes, double threshold) {
+        List<NoteDuplicates.Cluster> clusters = new NoteDuplicates().find(notes, threshold);
+        for (NoteDuplicates.Cluster cluster : clusters) {
+            System.out.printf("%d notes, about %d%% alike%n", cluster.notes.size(), Math.round(cluster.similarity * 100));
+            for (NoteModel note : cluster.notes) {
+                System.out.println("  " + note.getNoteData().id + "\t" + note.getNoteData().title);
+            }
+        }
+        return 0;
+    }
+
+    // restyle <filter|all> background=rrggbb toolbar=rrggbb font=<family> size=<points>
+    static int restyleNotes(NoteStore store, List<NoteModel> notes, String query, List<String> settings) {
+        Color background = null, toolbar = null;
+        String family = null;
+        Integer size = null;
+        for (String setting : settings) {
+            int eq = setting.indexOf('=');
+            String key = eq < 0 ? setting : setting.substring(0, eq), value = eq < 0 ? "" : setting.substring(eq + 1);
+            try {
+                if ("background".equals(key)) background = new Color(Integer.parseInt(value.replace("#", ""), 16));
+                else if ("toolbar".equals(key)) toolbar = new Color(Integer.parseInt(value.replace("#", ""), 16));
+                else if ("font".equals(key)) family = value;
+                else if ("size".equals(key)) size = Integer.parseInt(value);
+                else throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                System.err.println("Expected background=rrggbb, toolbar=rrggbb, font=<family> or size=<points>, not " + setting);
+                return 1;
+            }
+        }
+        List<NoteModel> targets = notes;
+        if (!"all".equals(query)) {
+            NoteIndex index = new NoteIndex();
+            Map<String, NoteModel> byId = new HashMap<>();
+            for (NoteModel note : notes) {
+                index.update(note.getNoteData());
+                byId.put(note.getNoteData().id, note);
+            }
+            targets = new ArrayList<>();
+            try {
+                for (String id : index.filter(query)) targets.add(byId.get(id));
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                return 1;
+            }
+        }
+
+        NoteRestyle restyle = new NoteRestyle(background, toolbar, family, size);
+        long start = System.nanoTime();
+        List<NoteRestyle.Plan> plans = new ArrayList<>();
+        targets.parallelStream().map(restyle::plan).filter(NoteRestyle.Plan::hasChanges).forEachOrdered(plans::add);
+        long planned = System.nanoTime();
+        int runs = 0;
+        for (NoteRestyle.Plan plan : plans) runs += restyle.apply(plan);
+        long applied = System.nanoTime();
+        store.save(notes);
+        long saved = System.nanoTime();
+        System.err.printf("Restyled %d of %d notes (%d stretches of text): planned in %d ms, applied in %d ms, saved in %d ms%n",
+                plans.size(), targets.size(), runs, (planned - start) / 1_000_000, (applied - planned) / 1_000_000,
+                (saved - applied) / 1_000_000);
+        return 0;
+    }
+
+    // Only needs the index file, so it answers without reading any note content
+    static int filterNotes(NoteStore store, String query) {
+        List<NoteData> notes = store.loadIndex();
+        long start = System.nanoTime();
+        NoteIndex index = new NoteIndex();
+        for (NoteData data : notes) index.update(data);
+        long built = System.nanoTime();
+        List<String> ids;
+        try {
+            ids = index.filter(query);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+        long filtered = System.nanoTime();
+        Map<String, NoteData> byId = new HashMap<>();
+        for (NoteData data : notes) byId.put(data.id, data);
+        for (String id : ids) System.out.println(id + "\t" + byId.get(id).title);
+        System.err.println(ids.size() + " of " + notes.size() + " notes; index built in " + (built - start) / 1_000_000
+                + " ms, filtered in " + (filtered - built) / 1000 + " us");
+        return 0;
+    }
+
+    // Replays a session (from a file, or generated) against a scratch store of generated notes;
+    // record= keeps the session for replaying later, interval= spaces the events out
+    static int stress(List<String> settings) throws InterruptedException {
+        int count = 2000, steps = 1000;
+        long interval = 0;
+        File session = null, record = null;
+        Map<String, Double> budgets = new LinkedHashMap<>();
+        for (String setting : settings) {
+            String key = setting.contains("=") ? setting.substring(0, setting.indexOf('=')) : setting;
+            String value = setting.substring(key.length() + (setting.contains("=") ? 1 : 0));
+            try {
+                if ("notes".equals(key)) {
+                    count = Math.max(1, Integer.parseInt(value));
+                } else if ("steps".equals(key)) {
+                    steps = Integer.parseInt(value);
+                } else if ("interval".equals(key)) {
+                    interval = Long.parseLong(value);
+                } else if ("session".equals(key) && !value.isEmpty()) {
+                    session = new File(value);
+                } else if ("record".equals(key) && !value.isEmpty()) {
+                    record = new File(value);
+                } else if (SessionReplay.isBudget(key)) {
+                    budgets.put(key, Double.parseDouble(value));
+                } else {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Expected notes=, steps=, interval=, session=, record= or a budget such as p99=16, "
+                        + "type.p99=8 or save.rate=500, not " + setting);
+                return 1;
+            }
+        }
+
+        Random random = new Random(42);
+        File scratch = null;
+        try {
+            List<SessionReplay.Step> script = session != null ? SessionReplay.read(session)
+                    : SessionReplay.generate(steps, count, random);
+            if (record != null) SessionReplay.write(script, record);
+            scratch = Files.createTempDirectory("notes-stress").toFile();
+            long start = System.nanoTime();
+            SessionReplay replay = SessionReplay.load(new NoteStore(new File(scratch, "notes_data.properties"), false),
+                    count, random);
+            System.err.println("Generated and loaded " + count + " notes in " + (System.nanoTime() - start) / 1_000_000
+                    + " ms; replaying " + script.size() + " steps " + (GraphicsEnvironment.isHeadless()
+                    ? "on off-screen note panes" : "in note windows"));
+            start = System.nanoTime();
+            replay.run(script, interval);
+            System.err.println("Replayed in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            replay.report();
+            List<String> over = replay.overBudget(budgets);
+            for (String line : over) System.out.println("over budget: " + line);
+            return over.isEmpty() ? 0 : 3;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        } catch (IOException | BadLocationException e) {
+            e.printStackTrace();
+            return 2;
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            e.getCause().printStackTrace();
+            return 2;
+        } finally {
+            if (scratch != null) deleteTree(scratch);
+        }
+    }
+
+    // Rewrites every content file compressed, training the dictionary first if there is none yet
+    static int compressAll(NoteStore store, List<NoteModel> notes) {
+        long before = folderBytes(store.getRtfFolder());
+        boolean keepCompressing = AppSettings.compressNotes;
+        AppSettings.compressNotes = true;
+        if (store.getDictionary() == null) store.trainDictionary(notes);
+        long start = System.nanoTime();
+        notes.parallelStream().forEach(store::writeContent);
+        long after = folderBytes(store.getRtfFolder());
+        System.err.println("Compressed " + notes.size() + " notes from " + before / 1024 + " KB to " + after / 1024
+                + " KB in " + (System.nanoTime() - start) / 1_000_000 + " ms"
+                + (keepCompressing ? "" : "; turn on \"Compress Note Files\" to keep new saves compressed"));
+        return 0;
+    }
+
+    private static long folderBytes(File folder) {
+        long total = 0;
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) total += file.length();
+        }
+        return total;
+    }
+
+    // Compares raw RTF, plain deflate and deflate with the trained dictionary on this store's notes
+    static int compressionBenchmark(NoteStore store, List<NoteModel> notes) {
+        final int rounds = 5;
+        try {
+            List<byte[]> raw = new ArrayList<>(notes.size());
+            long rawBytes = 0;
+            for (NoteModel note : notes) {
+                byte[] rtf = NoteStore.toRtf(note.getStyledDocument());
+                raw.add(rtf);
+                rawBytes += rtf.length;
+            }
+            if (raw.isEmpty()) {
+                System.err.println("No notes to measure");
+                return 1;
+            }
+
+            long start = System.nanoTime();
+            byte[] dictionary = NoteCompression.train(raw, NoteCompression.DICTIONARY_BYTES);
+            long trainMs = (System.nanoTime() - start) / 1_000_000;
+            Adler32 adler = new Adler32();
+            adler.update(dictionary, 0, dictionary.length);
+            int dictionaryId = (int) adler.getValue();
+
+            start = System.nanoTime();
+            for (byte[] rtf : raw) {
+                new RTFEditorKit().read(new ByteArrayInputStream(rtf), new DefaultStyledDocument(), 0);
+            }
+            long parseMs = (System.nanoTime() - start) / 1_000_000;
+
+            System.out.printf("%d notes, dictionary %d bytes trained in %d ms, RTF parsing alone takes %d ms%n",
+                    raw.size(), dictionary.length, trainMs, parseMs);
+            System.out.printf("%-22s %12s %8s %12s %14s%n", "", "bytes", "of raw", "compress ms", "decompress ms");
+            System.out.printf("%-22s %12d %7d%% %12s %14s%n", "raw RTF", rawBytes, 100, "-", "-");
+            for (boolean withDictionary : new boolean[] {false, true}) {
+                byte[] dict = withDictionary ? dictionary : null;
+                long bestCompress = Long.MAX_VALUE;
+                long bestDecompress = Long.MAX_VALUE;
+                long compressedBytes = 0;
+                byte[] buffer = new byte[8192];
+                // Best of several rounds, so the first ones can warm up the JIT
+                for (int round = 0; round < rounds; round++) {
+                    List<byte[]> compressed = new ArrayList<>(raw.size());
+                    start = System.nanoTime();
+                    for (byte[] rtf : raw) {
+                        compressed.add(NoteCompression.compress(rtf, dict, dictionaryId));
+                    }
+                    bestCompress = Math.min(bestCompress, System.nanoTime() - start);
+                    compressedBytes = 0;
+                    for (byte[] bytes : compressed) compressedBytes += bytes.length;
+
+                    start = System.nanoTime();
+                    for (byte[] bytes : compressed) {
+                        try (InputStream in = NoteCompression.open(new ByteArrayInputStream(bytes), dict, dictionaryId)) {
+                            while (in.read(buffer) > 0) {
+                                // drain
+                            }
+                        }
+                    }
+                    bestDecompress = Math.min(bestDecompress, System.nanoTime() - start);
+                }
+                System.out.printf("%-22s %12d %7d%% %12d %14d%n", withDictionary ? "deflate + dictionary" : "deflate",
+                        compressedBytes, compressedBytes * 100 / rawBytes, bestCompress / 1_000_000, bestDecompress / 1_000_000);
+            }
+        } catch (IOException | BadLocationException e) {
+            e.printStackTrace();
+            return 2;
+        }
+        return 0;
+    }
+
+    // Runs one sync pass through the same NotesManager the tray app uses, just without windows
+    static int syncOnce(NoteStore syncStore, File folder) {
+        NotesManager.useStore(syncStore);
+        try {
+            SwingUtilities.invokeAndWait(NotesManager::loadNotesWithoutWindows);
+            new SyncEngine(folder, syncStore.getDataFile().getAbsoluteFile().getParentFile()).syncOnce();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return 2;
+        }
+        System.err.println("Synced " + NotesManager.getNotes().size() + " notes with " + folder);
+        return 0;
+    }
+
+    private static int handOff(File dataDir, String command, List<String> paths) {
+        if ("import".equals(command)) {
+            boolean sent = !paths.isEmpty();
+            for (String path : paths) {
+                sent &= SingleInstance.send(dataDir, "import " + new File(path).getAbsolutePath());
+            }
+            if (sent) {
+                System.err.println("Handed the import to the running app");
+                return 0;
+            }
+        }
+        System.err.println("The notes in " + dataDir.getAbsolutePath() + " are in use by another process");
+        return 1;
+    }
+
+    // Streams files through read -> convert -> write stages and appends them to the index
+    static int importFiles(NoteStore store, List<String> paths) throws InterruptedException {
+        List<File> files = new ArrayList<>();
+        for (String path : paths) {
+            collectFiles(new File(path), files);
+        }
+        store.getRtfFolder().mkdirs();
+        List<NoteData> imported = Collections.synchronizedList(new ArrayList<>());
+        TransferPipeline<File, Map.Entry<File, String>, NoteModel> pipeline = new TransferPipeline<>(
+                "import", PIPELINE_QUEUE, 2, Runtime.getRuntime().availableProcessors(), 2,
+                file -> new AbstractMap.SimpleImmutableEntry<>(file,
+                        new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)),
+                entry -> NoteFormats.toNote(entry.getKey().getName(), entry.getValue()),
+                model -> {
+                    long written = store.writeContentFile(model);
+                    imported.add(model.getNoteData());
+                    return written;
+                });
+        pipeline.run(files);
+
+        List<NoteData> index = store.loadIndex();
+        index.addAll(imported);
+        store.saveIndex(index);
+        return pipeline.getFailed() == 0 ? 0 : 2;
+    }
+
+    static int exportNotes(NoteStore store, File outDir, NoteFormats.Format format) throws InterruptedException {
+        outDir.mkdirs();
+        TransferPipeline<NoteData, NoteModel, Map.Entry<NoteData, String>> pipeline = new TransferPipeline<>(
+                "export", PIPELINE_QUEUE, 2, Runtime.getRuntime().availableProcessors(), 2,
+                data -> {
+                    NoteModel model = new NoteModel(data);
+                    File styledContentFile = store.getContentFile(data);
+                    if (styledContentFile.exists()) store.readContentFile(model, styledContentFile);
+                    return model;
+                },
+                model -> new AbstractMap.SimpleImmutableEntry<>(model.getNoteData(),
+                        NoteFormats.write(format, model.getStyledDocument(), model.getNoteData())),
+                entry -> {
+                    NoteData data = entry.getKey();
+                    String safeTitle = data.title.replaceAll("[^A-Za-z0-9 ._-]", "_").trim();
+                    if (safeTitle.length() > 60) safeTitle = safeTitle.substring(0, 60);
+                    File out = new File(outDir, safeTitle + "-" + data.id.substring(0, Math.min(8, data.id.length()))
+                            + NoteFormats.extension(format));
+                    byte[] bytes = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                    Files.write(out.toPath(), bytes);
+                    return (long) bytes.length;
+                });
+        pipeline.run(store.loadIndex());
+        return pipeline.getFailed() == 0 ? 0 : 2;
+    }
+
+    static void collectFiles(File file, List<File> files) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            if (file.isFile()) files.add(file);
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            collectFiles(child, files);
+        }
+    }
+
+    // Replaces text in place so the surrounding character attributes are kept
+    static int replaceAll(StyledDocument doc, String find, String replacement) {
+        if (find.isEmpty()) return 0;
+        int count = 0;
+        try {
+            String text = doc.getText(0, doc.getLength());
+            for (int i = text.lastIndexOf(find); i >= 0; i = text.lastIndexOf(find, i - 1)) {
+                AttributeSet attrs = doc.getCharacterElement(i).getAttributes().copyAttributes();
+                doc.remove(i, find.length());
+                doc.insertString(i, replacement, attrs);
+                count++;
+                if (i == 0) break;
+            }
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+        return count;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: java -Djava.awt.headless=true -jar StickyNoteApp.jar [--data notes_data.properties] <command>");
+        System.err.println("  list                      list note ids and titles");
+        System.err.println("  search <text>             find notes whose title or body contains text");
+        System.err.println("  restyle <filter|all> ...  set background=rrggbb toolbar=rrggbb font=<family> size=<points>");
+        System.err.println("  changes [from] [--follow] change feed events from a sequence number on");
+        System.err.println("  duplicates [threshold]    list groups of near-identical notes (default 0.8)");
+        System.err.println("  dictionary-build <words> <out>  build a spelling dictionary from a word list");
+        System.err.println("  filter <query>            notes matching tags and flags, e.g. \"work AND pinned AND NOT locked\"");
+        System.err.println("  replace <find> <replace>  replace text in every note body and save");
+        System.err.println("  import <file or dir>...   add .txt, .md and .html files as notes");
+        System.err.println("  export [--format txt|md|html] <dir>  write every note to dir");
+        System.err.println("  sync <folder>             exchange changes with other devices through folder");
+        System.err.println("  compress                  train a dictionary and rewrite every note compressed");
+        System.err.println("  stress [notes=N] [steps=N] [session=file] [record=file] [interval=ms] [budgets]");
+        System.err.println("                            replay an editing session and time every event from input to paint;");
+        System.err.println("                            budgets such as p99=16, type.p99=8 or save.rate=500 fail with status 3");
+        System.err.println("  rekey                     encrypt the store under a new passphrase (empty to decrypt)");
+        System.err.println("  bench memory|compression|encryption  heap of note documents with and without the shared");
+        System.err.println("                            style pool, compressed against raw RTF, or encrypted against");
+        System.err.println("                            plaintext save and load throughput");
+        System.err.println("Encrypted stores read the passphrase from STICKY_NOTES_PASSPHRASE or the console.");
+    }
+}
+
+// ----------------------------------------------------------------
+// SESSION REPLAY (scripted editing sessions timed from input to paint, with latency budgets)
+//
+// A session is a list of steps, one per line: open <note>, close <note>, type <note> <text> (\n
+// for Enter), caret <note> <offset>, bold|italic <note> <characters before the caret>,
+// drag|resize <note> <dx> <dy>, list [filter], save and pause <ms>; notes are numbered in store
+// order, modulo the number of notes. With a display every step reaches a real NoteWindow as the
+// key and mouse events a user would produce: keys to the text pane, drags to the corner handle,
+// resizes to the bottom-right edge and formatting to the toolbar labels, each timed until the
+// regions it dirtied are painted. Without one the same edits go to a pane with the window's kit,
+// highlighter and spell checker that is saved like the window and painted off screen. Each event
+// is timed from just before it is queued on the EDT, so time spent behind timers counts too.
+class SessionReplay {
+    static final Rectangle SCREEN = new Rectangle(0, 0, 1920, 1080);
+    private static final int DRAG_EVENTS = 8;
+    private static final int MAX_OPEN = 12;
+    // NoteWindow reads two toolbar clicks within 300 ms as a double-click
+    private static final long CLICK_GAP_MS = 350;
+    // Toolbar and title field above the text pane
+    private static final int PANE_TOP = 61;
+    private static final Set<String> NOTE_ACTIONS = new HashSet<>(Arrays.asList(
+            "open", "close", "type", "caret", "bold", "italic", "drag", "resize"));
+    private static final List<String> STATISTICS = Arrays.asList("p50", "p95", "p99", "max");
+    private static final String[] WORDS = {"the", "meeting", "notes", "follow", "up", "with", "design", "review",
+            "tomorrow", "call", "**bold**", "*idea*", "`code`", "[link](https://example.com)", "budget", "draft",
+            "- item", "# Heading", "recieve", "teh", "2024", "ok", "and", "send", "list", "to"};
+    private static final String[] TAGS = {"work", "home", "idea", "todo", "urgent"};
+    private static final String[] NOTEBOOKS = {"", "Projects", "Personal", "Archive"};
+    private static final String[] QUERIES = {"", "work", "work AND NOT home", "notebook:Projects", "idea OR todo",
+            "urgent AND (work OR home)"};
+    // Off-screen target of every headless paint; only used on the EDT
+    private static BufferedImage screen;
+
+    // One line of a session: the action, its note (-1 for list, save and pause) and the rest
+    static final class Step {
+        final String action;
+        final int note;
+        final String argument;
+        // Offset, characters, dx and dy, or milliseconds, read from the argument
+        final int[] numbers;
+
+        Step(String action, int note, String argument) {
+            this.action = action;
+            this.note = note;
+            this.argument = argument;
+            int wanted = "drag".equals(action) || "resize".equals(action) ? 2
+                    : "caret".equals(action) || "bold".equals(action) || "italic".equals(action) || "pause".equals(action) ? 1 : 0;
+            String[] fields = argument.trim().split(" +");
+            if (wanted > 0 && fields.length != wanted) {
+                throw new IllegalArgumentException(action + " takes " + wanted + (wanted == 1 ? " number" : " numbers"));
+            }
+            numbers = new int[wanted];
+            for (int i = 0; i < wanted; i++) numbers[i] = Integer.parseInt(fields[i]);
+        }
+
+        static Step parse(String line) {
+            String action = line.split(" ", 2)[0];
+            boolean onNote = NOTE_ACTIONS.contains(action);
+            if (!onNote && !"list".equals(action) && !"save".equals(action) && !"pause".equals(action)) {
+                throw new IllegalArgumentException("unknown step " + action);
+            }
+            String[] parts = line.split(" ", onNote ? 3 : 2);
+            if (onNote && parts.length < 2) throw new IllegalArgumentException(action + " needs a note number");
+            String argument = parts.length > (onNote ? 2 : 1) ? parts[parts.length - 1] : "";
+            return new Step(action, onNote ? Integer.parseInt(parts[1]) : -1,
+                    "type".equals(action) ? argument.replace("\\n", "\n") : argument);
+        }
+
+        @Override
+        public String toString() {
+            String text = argument.replace("\n", "\\n");
+            return action + (note >= 0 ? " " + note : "") + (text.isEmpty() ? "" : " " + text);
+        }
+    }
+
+    // Blank lines and lines starting with # are skipped
+    static List<Step> read(File file) throws IOException {
+        List<Step> steps = new ArrayList<>();
+        int number = 0;
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            number++;
+            if (line.trim().isEmpty() || line.startsWith("#")) continue;
+            try {
+                steps.add(Step.parse(line));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(file + ":" + number + ": " + e.getMessage());
+            }
+        }
+        return steps;
+    }
+
+    static void write(List<Step> steps, File file) throws IOException {
+        List<String> lines = new ArrayList<>(steps.size());
+        for (Step step : steps) lines.add(step.toString());
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    // About count steps: mostly typing bursts in the note in front, with caret jumps, formatting,
+    // drags, resizes, Notes List filters, switches to other notes, saves and short pauses
+    static List<Step> generate(int count, int notes, Random random) {
+        List<Step> steps = new ArrayList<>(count);
+        int note = random.nextInt(notes);
+        steps.add(new Step("open", note, ""));
+        while (steps.size() < count) {
+            int roll = random.nextInt(100);
+            if (roll < 45) {
+                StringBuilder text = new StringBuilder();
+                for (int w = 1 + random.nextInt(6); w > 0; w--) text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                if (random.nextInt(4) == 0) text.append('\n');
+                steps.add(new Step("type", note, text.toString()));
+            } else if (roll < 52) {
+                steps.add(new Step("caret", note, String.valueOf(random.nextInt(2000))));
+            } else if (roll < 60) {
+                steps.add(new Step(random.nextBoolean() ? "bold" : "italic", note, String.valueOf(1 + random.nextInt(12))));
+            } else if (roll < 67) {
+                steps.add(new Step("drag", note, (random.nextInt(401) - 200) + " " + (random.nextInt(301) - 150)));
+            } else if (roll < 72) {
+                steps.add(new Step("resize", note, (random.nextInt(181) - 60) + " " + (random.nextInt(181) - 60)));
+            } else if (roll < 79) {
+                steps.add(new Step("list", -1, QUERIES[random.nextInt(QUERIES.length)]));
+            } else if (roll < 88) {
+                note = random.nextInt(notes);
+                steps.add(new Step("open", note, ""));
+            } else if (roll < 93) {
+                steps.add(new Step("save", -1, ""));
+            } else {
+                steps.add(new Step("pause", -1, String.valueOf(20 + random.nextInt(200))));
+            }
+        }
+        return steps;
+    }
+
+    // Writes count generated notes to store, then loads them into NotesManager without showing any
+    static SessionReplay load(NoteStore store, int count, Random random)
+            throws BadLocationException, InterruptedException, java.lang.reflect.InvocationTargetException {
+        List<NoteModel> generated = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            NoteData data = NoteStore.newNoteData();
+            data.title = "Note " + (i + 1);
+            data.width = 200 + random.nextInt(200);
+            data.height = 150 + random.nextInt(200);
+            data.minWidth = 150;
+            data.minHeight = 120;
+            data.x = random.nextInt(SCREEN.width - data.width);
+            data.y = random.nextInt(SCREEN.height - data.height);
+            data.tags.add(TAGS[random.nextInt(TAGS.length)]);
+            if (random.nextBoolean()) data.tags.add(TAGS[random.nextInt(TAGS.length)]);
+            data.notebook = NOTEBOOKS[random.nextInt(NOTEBOOKS.length)];
+            data.markdown = random.nextInt(5) == 0;
+            StringBuilder text = new StringBuilder();
+            for (int p = 1 + random.nextInt(12); p > 0; p--) {
+                for (int w = 3 + random.nextInt(15); w > 0; w--) text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                text.append('\n');
+            }
+            NoteModel model = new NoteModel(data);
+            model.getStyledDocument().insertString(0, text.toString(), null);
+            generated.add(model);
+        }
+        new NoteStore(store.getDataFile(), true).save(generated);
+
+        NotesManager.useStore(store);
+        store.startBackgroundWriter();
+        SwingUtilities.invokeAndWait(() -> {
+            for (NoteModel model : store.load()) NotesManager.addNote(model, false);
+        });
+        return new SessionReplay(store);
+    }
+
+    private final NoteStore store;
+    private final List<NoteModel> notes;
+    private final boolean windows = !GraphicsEnvironment.isHeadless();
+    // Notes being edited, least recently used first
+    private final Map<NoteModel, Surface> open = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, List<Long>> latencies = new TreeMap<>();
+    private long notesSaved, bytesSaved, saveNanos;
+    private long interval;
+
+    private SessionReplay(NoteStore store) {
+        this.store = store;
+        this.notes = new ArrayList<>(NotesManager.getNotes());
+    }
+
+    // Replays steps, then closes every note and waits for the last save
+    void run(List<Step> steps, long interval) throws InterruptedException, java.lang.reflect.InvocationTargetException {
+        this.interval = interval;
+        for (Step step : steps) {
+            if ("list".equals(step.action)) {
+                time("list", () -> list(step.argument));
+            } else if ("save".equals(step.action)) {
+                save();
+            } else if ("pause".equals(step.action)) {
+                Thread.sleep(step.numbers[0]);
+            } else {
+                noteStep(step);
+            }
+        }
+        for (NoteModel model : new ArrayList<>(open.keySet())) close(model);
+        save();
+    }
+
+    private void noteStep(Step step) throws InterruptedException, java.lang.reflect.InvocationTargetException {
+        NoteModel model = notes.get(Math.floorMod(step.note, notes.size()));
+        Surface surface = open.get(model);
+        if ("close".equals(step.action)) {
+            if (surface != null) close(model);
+            return;
+        }
+        if (surface == null) surface = open(model);
+        Surface note = surface;
+        int[] n = step.numbers;
+        switch (step.action) {
+            case "type":
+                for (char c : step.argument.toCharArray()) time("type", () -> note.type(c));
+                break;
+            case "caret":
+                time("caret", () -> note.caret(n[0]));
+                break;
+            case "bold":
+            case "italic":
+                long wait = note.lastClick + CLICK_GAP_MS - System.currentTimeMillis();
+                if (windows && wait > 0) Thread.sleep(wait);
+                boolean bold = "bold".equals(step.action);
+                time("format", () -> note.format(n[0], bold));
+                note.lastClick = System.currentTimeMillis();
+                break;
+            case "drag":
+            case "resize":
+                boolean resize = "resize".equals(step.action);
+                time(step.action, () -> note.drag(MouseEvent.MOUSE_PRESSED, resize, 0, 0));
+                for (int i = 1; i <= DRAG_EVENTS; i++) {
+                    int dx = n[0] * i / DRAG_EVENTS, dy = n[1] * i / DRAG_EVENTS;
+                    time(step.action, () -> note.drag(MouseEvent.MOUSE_DRAGGED, resize, dx, dy));
+                }
+                time(step.action, () -> note.drag(MouseEvent.MOUSE_RELEASED, resize, n[0], n[1]));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private Surface open(NoteModel model) throws InterruptedException, java.lang.reflect.InvocationTargetException {
+        if (open.size() >= MAX_OPEN) close(open.keySet().iterator().next());
+        Surface[] opened = new Surface[1];
+        time("open", () -> opened[0] = windows ? new WindowSurface(model) : new PaneSurface(model));
+        open.put(model, opened[0]);
+        return opened[0];
+    }
+
+    private void close(NoteModel model) throws InterruptedException, java.lang.reflect.InvocationTargetException {
+        Surface surface = open.remove(model);
+        time("close", surface::close);
+    }
+
+    // A save end to end: the index snapshot on the EDT, then writing the index and every note edited since
+    private void save() throws InterruptedException, java.lang.reflect.InvocationTargetException {
+        List<NoteModel> dirty = new ArrayList<>();
+        for (NoteModel note : notes) {
+            if (note.isDirty()) dirty.add(note);
+        }
+        long start = System.nanoTime();
+        SwingUtilities.invokeAndWait(NotesManager::saveNotes);
+        store.flush();
+        long elapsed = System.nanoTime() - start;
+        latencies.computeIfAbsent("save", k -> new ArrayList<>()).add(elapsed);
+        notesSaved += dirty.size();
+        bytesSaved += store.getDataFile().length();
+        for (NoteModel note : dirty) bytesSaved += store.getContentFile(note.getNoteData()).length();
+        saveNanos += elapsed;
+    }
+
+    // Queues one event on the EDT and records how long it took to be handled and painted
+    private void time(String action, Runnable event) throws InterruptedException, java.lang.reflect.InvocationTargetException {
+        long start = System.nanoTime();
+        SwingUtilities.invokeAndWait(event);
+        latencies.computeIfAbsent(action, k -> new ArrayList<>()).add(System.nanoTime() - start);
+        if (interval > 0) Thread.sleep(interval);
+    }
+
+    // Fills a Notes List the way the dialog does, then lays it out and paints its first screenful;
+    // off screen even with a display, since the dialog itself is modal
+    private static void list(String query) {
+        JPanel listPanel = new JPanel();
+        listPanel.setLayout(new BoxLayout(listPanel, BoxLayout.Y_AXIS));
+        NotesManager.fillNotesList(null, listPanel, new JLabel(" "), query, () -> { });
+        listPanel.setSize(480, listPanel.getPreferredSize().height);
+        layoutTree(listPanel);
+        paintOffScreen(listPanel, 0, 480, 560);
+    }
+
+    private static void layoutTree(Component component) {
+        if (!(component instanceof Container)) return;
+        ((Container) component).doLayout();
+        for (Component child : ((Container) component).getComponents()) layoutTree(child);
+    }
+
+    // modelToView2 only exists from Java 9, and the app still runs on Java 8 (Launch4j minVersion 1.8.0)
+    @SuppressWarnings("deprecation")
+    private static Rectangle modelToView(JTextComponent pane, int offset) throws BadLocationException {
+        return pane.modelToView(offset);
+    }
+
+    // Paints rows top..top+height of component, as a viewport scrolled to top would show them
+    private static void paintOffScreen(JComponent component, int top, int width, int height) {
+        if (screen == null) screen = new BufferedImage(SCREEN.width, SCREEN.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = screen.createGraphics();
+        g.translate(0, -top);
+        g.setClip(0, top, Math.min(width, SCREEN.width), Math.min(height, SCREEN.height));
+        component.paint(g);
+        g.dispose();
+    }
+
+    // Latency percentiles per kind of event, then how fast saves wrote notes
+    void report() {
+        System.out.printf("%-8s %8s %9s %9s %9s %9s%n", "event", "count", "p50 ms", "p95 ms", "p99 ms", "max ms");
+        for (String action : latencies.keySet()) {
+            System.out.printf("%-8s %8d %9.2f %9.2f %9.2f %9.2f%n", action, latencies.get(action).size(),
+                    statistic(action, "p50"), statistic(action, "p95"), statistic(action, "p99"), statistic(action, "max"));
+        }
+        System.out.printf("saves wrote %,d notes and the index, %,d KB, in %d ms (%.0f notes/s, %.1f MB/s)%n", notesSaved,
+                bytesSaved / 1024, saveNanos / 1_000_000, saveRate(), saveNanos == 0 ? 0 : bytesSaved / 1e6 / (saveNanos / 1e9));
+    }
+
+    static boolean isBudget(String key) {
+        return "save.rate".equals(key) || STATISTICS.contains(key.substring(key.lastIndexOf('.') + 1));
+    }
+
+    // Budgets are p50, p95, p99 or max in ms for every kind of event (p99=16) or one (type.p99=8),
+    // and save.rate, the fewest notes per second saves may write
+    List<String> overBudget(Map<String, Double> budgets) {
+        List<String> over = new ArrayList<>();
+        for (Map.Entry<String, Double> budget : budgets.entrySet()) {
+            String key = budget.getKey();
+            double limit = budget.getValue();
+            if ("save.rate".equals(key)) {
+                if (saveRate() < limit) over.add(String.format("save.rate %.0f notes/s < %.0f", saveRate(), limit));
+                continue;
+            }
+            int dot = key.lastIndexOf('.');
+            String statistic = key.substring(dot + 1);
+            for (String action : dot < 0 ? latencies.keySet() : Collections.singleton(key.substring(0, dot))) {
+                double value = statistic(action, statistic);
+                if (value > limit) over.add(String.format("%s.%s %.2f ms > %.2f ms", action, statistic, value, limit));
+            }
+        }
+        return over;
+    }
+
+    private double statistic(String action, String statistic) {
+        List<Long> times = latencies.get(action);
+        if (times == null || times.isEmpty()) return 0;
+        long[] sorted = new long[times.size()];
+        for (int i = 0; i < sorted.length; i++) sorted[i] = times.get(i);
+        Arrays.sort(sorted);
+        int percent = "max".equals(statistic) ? 100 : Integer.parseInt(statistic.substring(1));
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)] / 1e6;
+    }
+
+    private double saveRate() {
+        return saveNanos == 0 ? 0 : notesSaved / (saveNanos / 1e9);
+    }
+
+    // A note as the session drives it; every method runs on the EDT and returns once it is painted
+    private abstract static class Surface {
+        long lastClick;
+        boolean resizing;
+
+        abstract JTextPane pane();
+
+        abstract void key(char c);
+
+        abstract void applyFormat(boolean bold);
+
+        // A mouse event dx, dy away from where the drag or resize was pressed
+        abstract void pointer(int id, int dx, int dy);
+
+        abstract void paint();
+
+        abstract void close();
+
+        void type(char c) {
+            key(c);
+            paint();
+        }
+
+        void caret(int offset) {
+            pane().setCaretPosition(Math.min(offset, pane().getDocument().getLength()));
+            paint();
+        }
+
+        // Selects up to characters before the caret, formats them and puts the caret back
+        void format(int characters, boolean bold) {
+            int end = pane().getCaretPosition();
+            pane().select(Math.max(0, end - characters), end);
+            applyFormat(bold);
+            pane().setCaretPosition(end);
+            paint();
+        }
+
+        void drag(int id, boolean resize, int dx, int dy) {
+            if (id == MouseEvent.MOUSE_PRESSED) resizing = resize;
+            pointer(id, dx, dy);
+            paint();
+        }
+    }
+
+    // A real NoteWindow, sent the events a keyboard and mouse would send it
+    private static final class WindowSurface extends Surface {
+        private final NoteWindow window;
+        private Component target;
+        private Point pressed, pressedOnScreen;
+
+        WindowSurface(NoteModel model) {
+            window = NotesManager.getWindow(model);
+            window.setVisible(true);
+            window.toFront();
+            paint();
+        }
+
+        JTextPane pane() {
+            return window.getNotePane();
+        }
+
+        void key(char c) {
+            JTextPane pane = window.getNotePane();
+            long when = System.currentTimeMillis();
+            if (c == '\n') {
+                pane.dispatchEvent(new KeyEvent(pane, KeyEvent.KEY_PRESSED, when, 0, KeyEvent.VK_ENTER, c));
+                pane.dispatchEvent(new KeyEvent(pane, KeyEvent.KEY_RELEASED, when, 0, KeyEvent.VK_ENTER, c));
+            } else {
+                pane.dispatchEvent(new KeyEvent(pane, KeyEvent.KEY_TYPED, when, 0, KeyEvent.VK_UNDEFINED, c));
+            }
+        }
+
+        void applyFormat(boolean bold) {
+            click(window.getFormatLabel(bold));
+        }
+
+        // Drags start at the middle of the corner handle, resizes just inside the bottom-right corner
+        void pointer(int id, int dx, int dy) {
+            if (id == MouseEvent.MOUSE_PRESSED) {
+                target = resizing ? window.getContentPane() : window.getDragCorner();
+                pressed = resizing ? new Point(target.getWidth() - 2, target.getHeight() - 2)
+                        : new Point(target.getWidth() / 2, target.getHeight() / 2);
+                pressedOnScreen = new Point(pressed);
+                SwingUtilities.convertPointToScreen(pressedOnScreen, target);
+            }
+            target.dispatchEvent(new MouseEvent(target, id, System.currentTimeMillis(),
+                    id == MouseEvent.MOUSE_RELEASED ? 0 : InputEvent.BUTTON1_DOWN_MASK, pressed.x + dx, pressed.y + dy,
+                    pressedOnScreen.x + dx, pressedOnScreen.y + dy, 1, false,
+                    id == MouseEvent.MOUSE_DRAGGED ? MouseEvent.NOBUTTON : MouseEvent.BUTTON1));
+        }
+
+        private void click(JComponent component) {
+            long when = System.currentTimeMillis();
+            for (int id : new int[] {MouseEvent.MOUSE_PRESSED, MouseEvent.MOUSE_RELEASED, MouseEvent.MOUSE_CLICKED}) {
+                component.dispatchEvent(new MouseEvent(component, id, when, 0, 5, 5, 1, false, MouseEvent.BUTTON1));
+            }
+        }
+
+        // Lays out and paints whatever the event invalidated, then waits for the display
+        void paint() {
+            RepaintManager repaintManager = RepaintManager.currentManager(window.getRootPane());
+            repaintManager.validateInvalidComponents();
+            repaintManager.paintDirtyRegions();
+            Toolkit.getDefaultToolkit().sync();
+        }
+
+        void close() {
+            click(window.getCloseLabel());
+        }
+    }
+
+    // Without a display: the window's kit, highlighter and spell checker on a bare pane, saved on
+    // every edit, moved and snapped through the layout index, and painted off screen
+    private static final class PaneSurface extends Surface {
+        private final NoteData data;
+        private final JTextPane pane = new JTextPane();
+        private final NoteHighlighter highlighter;
+        private final NoteSpellChecker spellChecker;
+        private final DocumentListener saver = new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { saveState(); }
+            public void removeUpdate(DocumentEvent e) { saveState(); }
+            public void changedUpdate(DocumentEvent e) { saveState(); }
+        };
+        private Rectangle pressed;
+
+        PaneSurface(NoteModel model) {
+            data = model.getNoteData();
+            pane.setEditorKit(new NoteHighlighter.Kit());
+            pane.setStyledDocument(model.getStyledDocument());
+            pane.setFont(new Font(data.fontFamily, Font.PLAIN, data.fontSize));
+            highlighter = data.markdown ? new NoteHighlighter(pane) : null;
+            if (highlighter != null) highlighter.start();
+            spellChecker = AppSettings.checkSpelling ? new NoteSpellChecker(pane) : null;
+            if (spellChecker != null) spellChecker.start();
+            pane.getDocument().addDocumentListener(saver);
+            NotesManager.getLayout().put(data.id, bounds());
+            fit();
+            paint();
+        }
+
+        JTextPane pane() {
+            return pane;
+        }
+
+        // What typing a character or Enter does in the window
+        void key(char c) {
+            pane.replaceSelection(String.valueOf(c));
+            fit();
+        }
+
+        void applyFormat(boolean bold) {
+            int start = pane.getSelectionStart(), end = pane.getSelectionEnd();
+            if (start < end) {
+                pane.getStyledDocument().setCharacterAttributes(start, end - start,
+                        NoteStyleContext.attribute(bold ? StyleConstants.Bold : StyleConstants.Italic, Boolean.TRUE), false);
+            }
+        }
+
+        void pointer(int id, int dx, int dy) {
+            if (id == MouseEvent.MOUSE_PRESSED) pressed = bounds();
+            Rectangle moved = new Rectangle(pressed);
+            if (resizing) {
+                moved.width = Math.max(data.minWidth, pressed.width + dx);
+                moved.height = Math.max(data.minHeight, pressed.height + dy);
+            } else {
+                moved.translate(dx, dy);
+                moved.setLocation(NotesManager.getLayout().snap(data.id, moved, SCREEN));
+            }
+            data.x = moved.x;
+            data.y = moved.y;
+            data.width = moved.width;
+            data.height = moved.height;
+            NotesManager.getLayout().put(data.id, moved);
+            if (resizing) fit();
+            NotesManager.saveNotes();
+        }
+
+        // The part of the note the window would show: scrolled just far enough to keep the caret in view
+        void paint() {
+            int top = 0;
+            try {
+                Rectangle caret = modelToView(pane, pane.getCaretPosition());
+                if (caret != null) top = Math.max(0, caret.y + caret.height - viewport());
+            } catch (BadLocationException e) {
+                e.printStackTrace();
+            }
+            paintOffScreen(pane, top, data.width, viewport());
+        }
+
+        void close() {
+            pane.getDocument().removeDocumentListener(saver);
+            if (highlighter != null) highlighter.stop();
+            if (spellChecker != null) spellChecker.stop();
+            pane.setStyledDocument(NoteStyleContext.newDocument());
+            NotesManager.getLayout().remove(data.id);
+        }
+
+        private void saveState() {
+            data.content = pane.getText();
+            NotesManager.saveNotes();
+        }
+
+        private Rectangle bounds() {
+            return new Rectangle(data.x, data.y, data.width, data.height);
+        }
+
+        private int viewport() {
+            return Math.max(1, data.height - PANE_TOP);
+        }
+
+        // Sizes the pane as the window's scroll pane would: its width, and at least its height
+        private void fit() {
+            if (pane.getWidth() != data.width) pane.setSize(data.width, Math.max(100, pane.getHeight()));
+            pane.setSize(data.width, Math.max(viewport(), pane.getPreferredSize().height));
+        }
+    }
+}
+
+// ----------------------------------------------------------------
+// NOTE FORMATS (plain text, Markdown and HTML <-> styled documents)
+class NoteFormats {
+    enum Format { PLAIN, MARKDOWN, HTML }
+
+    // Font used for `code` spans, so they can be told apart from ordinary text on export
+    static final String CODE_FONT = "Courier New";
+
+    public static Format forFileName(String name) {
+        String lower = name.toLowerCase();
+        if (lower.endsWith(".md") || lower.endsWith(".markdown")) return Format.MARKDOWN;
+        if (lower.endsWith(".html") || lower.endsWith(".htm")) return Format.HTML;
+        return Format.PLAIN;
+    }
+
+    public static Format forName(String name) {
+        switch (name.toLowerCase()) {
+            case "md": case "markdown": return Format.MARKDOWN;
+            case "html": case "htm": return Format.HTML;
+            default: return Format.PLAIN;
+        }
+    }
+
+    public static String extension(Format format) {
+        switch (format) {
+            case MARKDOWN: return ".md";
+            case HTML: return ".html";
+            default: return ".txt";
+        }
+    }
+
+    // Builds a new note titled after the file name
+    public static NoteModel toNote(String fileName, String text) throws BadLocationException {
+        NoteData data = NoteStore.newNoteData();
+        data.title = fileName.contains(".") ? fileName.substring(0, fileName.lastIndexOf('.')) : fileName;
+        NoteModel model = new NoteModel(data);
+        read(forFileName(fileName), text, model.getStyledDocument(), data);
+        return model;
+    }
+
+    // Text is given the note's font family and size, as if it had been typed into the note
+    public static void read(Format format, String text, StyledDocument doc, NoteData data) throws BadLocationException {
+        SimpleAttributeSet base = new SimpleAttributeSet();
+        StyleConstants.setFontFamily(base, data.fontFamily);
+        StyleConstants.setFontSize(base, data.fontSize);
+        switch (format) {
+            case MARKDOWN: readMarkdown(text, doc, base); break;
+            case HTML: readHtml(text, doc, base); break;
+            default: doc.insertString(doc.getLength(), text, base); break;
+        }
+    }
+
+    public static String write(Format format, StyledDocument doc, NoteData data) throws BadLocationException {
+        switch (format) {
+            case MARKDOWN: return writeMarkdown(doc, data.fontSize);
+            case HTML: return writeHtml(doc);
+            default: return doc.getText(0, doc.getLength());
+        }
+    }
+
+    // Headings, bullets, **bold**, *italic* and `code`; everything else is kept as text
+    private static int headingSize(int baseSize, int level) {
+        return baseSize + Math.max(2, 10 - level * 2);
+    }
+
+    private static void readMarkdown(String text, StyledDocument doc, AttributeSet base) throws BadLocationException {
+        String[] lines = text.split("\r?\n", -1);
+        for (int l = 0; l < lines.length; l++) {
+            String line = lines[l];
+            SimpleAttributeSet lineAttrs = new SimpleAttributeSet(base);
+            int level = 0;
+            while (level < line.length() && level < 6 && line.charAt(level) == '#') level++;
+            if (level > 0 && level < line.length() && line.charAt(level) == ' ') {
+                StyleConstants.setBold(lineAttrs, true);
+                StyleConstants.setFontSize(lineAttrs, headingSize(StyleConstants.getFontSize(base), level));
+                line = line.substring(level + 1);
+            } else if (line.startsWith("- ") || line.startsWith("* ")) {
+                line = "\u2022 " + line.substring(2);
+            }
+            readMarkdownInline(line, doc, lineAttrs);
+            if (l < lines.length - 1) doc.insertString(doc.getLength(), "\n", base);
+        }
+    }
+
+    private static void readMarkdownInline(String line, StyledDocument doc, AttributeSet lineAttrs) throws BadLocationException {
+        boolean bold = false, italic = false, code = false;
+        StringBuilder run = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            boolean doubled = i + 1 < line.length() && line.charAt(i + 1) == c;
+            if (c == '`' || (!code && (c == '*' || (c == '_' && doubled)))) {
+                insertRun(doc, run, lineAttrs, bold, italic, code);
+                if (c == '`') code = !code;
+                else if (doubled) { bold = !bold; i++; }
+                else italic = !italic;
+            } else {
+                run.append(c);
+            }
+        }
+        insertRun(doc, run, lineAttrs, bold, italic, code);
+    }
+
+    private static void insertRun(StyledDocument doc, StringBuilder run, AttributeSet lineAttrs,
+                                  boolean bold, boolean italic, boolean code) throws BadLocationException {
+        if (run.length() == 0) return;
+        SimpleAttributeSet attrs = new SimpleAttributeSet(lineAttrs);
+        if (bold) StyleConstants.setBold(attrs, true);
+        if (italic) StyleConstants.setItalic(attrs, true);
+        if (code) StyleConstants.setFontFamily(attrs, CODE_FONT);
+        doc.insertString(doc.getLength(), run.toString(), attrs);
+        run.setLength(0);
+    }
+
+    private static String writeMarkdown(StyledDocument doc, int baseSize) throws BadLocationException {
+        StringBuilder out = new StringBuilder();
+        Element root = doc.getDefaultRootElement();
+        for (int p = 0; p < root.getElementCount(); p++) {
+            Element paragraph = root.getElement(p);
+            StringBuilder line = new StringBuilder();
+            int largestSize = 0;
+            for (int r = 0; r < paragraph.getElementCount(); r++) {
+                Element leaf = paragraph.getElement(r);
+                AttributeSet attrs = leaf.getAttributes();
+                String text = doc.getText(leaf.getStartOffset(), leaf.getEndOffset() - leaf.getStartOffset())
+                        .replace("\n", "");
+                if (text.isEmpty()) continue;
+                largestSize = Math.max(largestSize, StyleConstants.getFontSize(attrs));
+                String marker = (StyleConstants.isBold(attrs) ? "**" : "") + (StyleConstants.isItalic(attrs) ? "*" : "");
+                if (CODE_FONT.equals(StyleConstants.getFontFamily(attrs))) marker = "`" + marker;
+                line.append(marker).append(text).append(new StringBuilder(marker).reverse());
+            }
+            String text = line.toString();
+            if (text.startsWith("\u2022 ")) text = "- " + text.substring(2);
+            int level = 0;
+            for (int l = 3; l >= 1; l--) {
+                if (largestSize >= headingSize(baseSize, l)) level = l;
+            }
+            if (level > 0) {
+                text = "######".substring(0, level) + " " + text.replace("**", "");
+            }
+            out.append(text);
+            if (p < root.getElementCount() - 1) out.append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void readHtml(String text, StyledDocument doc, AttributeSet base) throws BadLocationException {
+        HTMLEditorKit.ParserCallback callback = new HTMLEditorKit.ParserCallback() {
+            int bold, italic, code, heading;
+            boolean lineStart = true;
+
+            @Override
+            public void handleStartTag(HTML.Tag t, MutableAttributeSet a, int pos) {
+                if (t == HTML.Tag.B || t == HTML.Tag.STRONG) bold++;
+                else if (t == HTML.Tag.I || t == HTML.Tag.EM) italic++;
+                else if (t == HTML.Tag.CODE || t == HTML.Tag.PRE) code++;
+                else if (isHeading(t)) { newLine(); heading = t.toString().charAt(1) - '0'; }
+                else if (t == HTML.Tag.P || t == HTML.Tag.DIV) newLine();
+                else if (t == HTML.Tag.LI) { newLine(); append("\u2022 "); }
+            }
+
+            @Override
+            public void handleEndTag(HTML.Tag t, int pos) {
+                if (t == HTML.Tag.B || t == HTML.Tag.STRONG) bold--;
+                else if (t == HTML.Tag.I || t == HTML.Tag.EM) italic--;
+                else if (t == HTML.Tag.CODE || t == HTML.Tag.PRE) code--;
+                else if (isHeading(t)) { heading = 0; newLine(); }
+                else if (t == HTML.Tag.P || t == HTML.Tag.DIV || t == HTML.Tag.LI) newLine();
+            }
+
+            @Override
+            public void handleSimpleTag(HTML.Tag t, MutableAttributeSet a, int pos) {
+                if (t == HTML.Tag.BR) append("\n");
+            }
+
+            @Override
+            public void handleText(char[] data, int pos) {
+                append(new String(data));
+            }
+
+            private boolean isHeading(HTML.Tag t) {
+                return t == HTML.Tag.H1 || t == HTML.Tag.H2 || t == HTML.Tag.H3
+                        || t == HTML.Tag.H4 || t == HTML.Tag.H5 || t == HTML.Tag.H6;
+            }
+
+            private void newLine() {
+                if (!lineStart) append("\n");
+            }
+
+            private void append(String s) {
+                SimpleAttributeSet attrs = new SimpleAttributeSet(base);
+                if (bold > 0 || heading > 0) StyleConstants.setBold(attrs, true);
+                if (italic > 0) StyleConstants.setItalic(attrs, true);
+                if (code > 0) StyleConstants.setFontFamily(attrs, CODE_FONT);
+                if (heading > 0) StyleConstants.setFontSize(attrs, headingSize(StyleConstants.getFontSize(base), heading));
+                try {
+                    doc.insertString(doc.getLength(), s, attrs);
+                } catch (BadLocationException e) {
+                    e.printStackTrace();
+                }
+                lineStart = s.endsWith("\n");
+            }
+        };
+        try {
+            new ParserDelegator().parse(new StringReader(text), callback, true);
+        } catch (IOException e) {
+            throw new BadLocationException(e.getMessage(), doc.getLength());
+        }
+    }
+
+    private static String writeHtml(StyledDocument doc) throws BadLocationException {
+        StringBuilder out = new StringBuilder("<html>\n<body>\n");
+        Element root = doc.getDefaultRootElement();
+        int last = root.getElementCount() - 1;
+        while (last > 0 && root.getElement(last).getEndOffset() - root.getElement(last).getStartOffset() <= 1) last--;
+        for (int p = 0; p <= last; p++) {
+            Element paragraph = root.getElement(p);
+            out.append("<p>");
+            for (int r = 0; r < paragraph.getElementCount(); r++) {
+                Element leaf = paragraph.getElement(r);
+                AttributeSet attrs = leaf.getAttributes();
+                String text = doc.getText(leaf.getStartOffset(), leaf.getEndOffset() - leaf.getStartOffset())
+                        .replace("\n", "");
+                if (text.isEmpty()) continue;
+                Color color = StyleConstants.getForeground(attrs);
+                out.append(String.format("<span style=\"font-family:%s; font-size:%dpt; color:#%06x\">",
+                        StyleConstants.getFontFamily(attrs), StyleConstants.getFontSize(attrs), color.getRGB() & 0xFFFFFF));
+                if (StyleConstants.isBold(attrs)) out.append("<b>");
+                if (StyleConstants.isItalic(attrs)) out.append("<i>");
+                out.append(escapeHtml(text));
+                if (StyleConstants.isItalic(attrs)) out.append("</i>");
+                if (StyleConstants.isBold(attrs)) out.append("</b>");
+                out.append("</span>");
+            }
+            out.append("</p>\n");
+        }
+        return out.append("</body>\n</html>\n").toString();
+    }
+
+    // Escapes backslashes, newlines and tabs so text fits in one tab-separated field
+    static String escapeLine(String s) {
+        return s.replace("\\", "\\\\").replace("\n", "\\n").replace("\t", "\\t");
+    }
+
+    static String unescapeLine(String s) {
+        StringBuilder out = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                out.append(next == 'n' ? '\n' : next == 't' ? '\t' : next);
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    private static String escapeHtml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
+
+// ----------------------------------------------------------------
+// TRANSFER PIPELINE (read -> convert -> write stages joined by bounded queues)
+class TransferPipeline<S, R, C> {
+    interface Step<I, O> {
+        O apply(I input) throws Exception;
+    }
+
+    private static final Object END = new Object();
+
+    private final String label;
+    private final int queueCapacity;
+    private final int readers, converters, writers;
+    private final Step<S, R> read;
+    private final Step<R, C> convert;
+    private final Step<C, Long> write;
+
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public TransferPipeline(String label, int queueCapacity, int readers, int converters, int writers,
+                            Step<S, R> read, Step<R, C> convert, Step<C, Long> write) {
+        this.label = label;
+        this.queueCapacity = queueCapacity;
+        this.readers = readers;
+        this.converters = converters;
+        this.writers = writers;
+        this.read = read;
+        this.convert = convert;
+        this.write = write;
+    }
+
+    public long getCompleted() {
+        return done.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void run(List<S> sources) throws InterruptedException {
+        Queue<S> pending = new ConcurrentLinkedQueue<>(sources);
+        BlockingQueue<Object> readQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Object> writeQueue = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicInteger readersLeft = new AtomicInteger(readers);
+        AtomicInteger convertersLeft = new AtomicInteger(converters);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < readers; i++) {
+            threads.add(stageThread("read-" + i, () -> {
+                for (S source = pending.poll(); source != null; source = pending.poll()) {
+                    R item = attempt(read, source);
+                    if (item != null) readQueue.put(item);
+                }
+                if (readersLeft.decrementAndGet() == 0) readQueue.put(END);
+            }));
+        }
+        for (int i = 0; i < converters; i++) {
+            threads.add(stageThread("convert-" + i, () -> {
+                for (Object item = readQueue.take(); item != END; item = readQueue.take()) {
+                    C converted = attempt(convert, (R) item);
+                    if (converted != null) writeQueue.put(converted);
+                }
+                readQueue.put(END);
+                if (convertersLeft.decrementAndGet() == 0) writeQueue.put(END);
+            }));
+        }
+        for (int i = 0; i < writers; i++) {
+            threads.add(stageThread("write-" + i, () -> {
+                for (Object item = writeQueue.take(); item != END; item = writeQueue.take()) {
+                    Long written = attempt(write, (C) item);
+                    if (written != null) {
+                        bytes.addAndGet(written);
+                        done.incrementAndGet();
+                    }
+                }
+                writeQueue.put(END);
+            }));
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                thread.join(500);
+                printProgress(sources.size(), start, false);
+            }
+        }
+        printProgress(sources.size(), start, true);
+    }
+
+    private <I, O> O attempt(Step<I, O> step, I input) {
+        try {
+            return step.apply(input);
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            System.err.println(label + ": skipped " + input + " (" + e + ")");
+            return null;
+        }
+    }
+
+    private interface Body {
+        void run() throws InterruptedException;
+    }
+
+    private Thread stageThread(String name, Body body) {
+        Thread thread = new Thread(() -> {
+            try {
+                body.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, label + "-" + name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private void printProgress(int total, long start, boolean finished) {
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        long count = done.get();
+        String line = String.format("%s: %d/%d notes, %.1f MB, %.0f notes/s, %.1f MB/s%s",
+                label, count, total, bytes.get() / 1e6, count / seconds, bytes.get() / 1e6 / seconds,
+                failed.get() > 0 ? ", " + failed.get() + " failed" : "");
+        if (finished) {
+            System.err.println("\r" + line + String.format(" (%.2f s)", seconds));
+        } else {
+            System.err.print("\r" + line);
+        }
+    }
+}
+
+// ----------------------------------------------------------------
+// AUTOMATION SERVER (opt-in, loopback-only HTTP API for scripts)
+//
+//   GET    /notes            one "id<TAB>title" line per note (?q=text filters)
+//   GET    /notes/<id>       the note's text
+//   DELETE /notes/<id>       deletes the note
+//   GET    /notes?filter=q   notes matching a tag filter, e.g. work AND NOT locked
+//   GET    /notes?region=r   notes whose windows overlap x,y,width,height
+//   GET    /changes?since=n  change feed events from sequence n on (&limit=m, default 1000)
+//   POST   /notes            a batch, one operation per line:
+//                              create<TAB>title<TAB>text
+//                              update<TAB>id<TAB>text
+//                              append<TAB>id<TAB>text
+//                              title<TAB>id<TAB>title
+//                              delete<TAB>id
+//
+// Text fields and results use \n, \t and \\ escapes, so every response has exactly one
+// result line per operation.
+// Operations are applied on the EDT in chunks and the whole batch is saved once.
+class AutomationServer {
+    private static final int EDT_CHUNK = 256;
+    private static final long RESPONSE_TIMEOUT_SECONDS = 30;
+    private static final Queue<Operation> PENDING = new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean DRAIN_SCHEDULED = new AtomicBoolean();
+    // Operations applied in the current batch, completed once the batch has been saved (EDT only)
+    private static final List<Operation> APPLIED = new ArrayList<>();
+    // Every request carries the token from this file in TOKEN_HEADER. A browser page can neither
+    // read the file nor set the header on a simple cross-site request, and requests that come
+    // with an Origin or with a Host other than the loopback port (DNS rebinding) are refused.
+    static final String TOKEN_FILE = "automation.token";
+    static final String TOKEN_HEADER = "X-Notes-Token";
+    private static HttpServer server;
+    private static int port;
+    private static byte[] token;
+
+    private static class Operation {
+        final String[] fields;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        String outcome;
+
+        Operation(String... fields) {
+            this.fields = fields;
+        }
+    }
+
+    public static void start(int port) {
+        try {
+            token = loadToken(NotesManager.getDataDirectory());
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException e) {
+            System.err.println("Automation API could not listen on port " + port + ": " + e.getMessage());
+            return;
+        }
+        AutomationServer.port = port;
+        server.createContext("/notes", AutomationServer::handle);
+        server.createContext("/changes", AutomationServer::handleChanges);
+        server.setExecutor(Executors.newFixedThreadPool(4, r -> {
+            Thread thread = new Thread(r, "automation-api");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    public static void stop() {
+        if (server != null) server.stop(0);
+        server = null;
+    }
+
+    // Kept across restarts so scripts can keep reading it; readable by the owner only where supported
+    private static byte[] loadToken(File dataDir) throws IOException {
+        File file = new File(dataDir, TOKEN_FILE);
+        if (file.exists()) {
+            String saved = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+            if (!saved.isEmpty()) return saved.getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        String created = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+        NoteStore.writeOwnerOnly(file, (created + "\n").getBytes(StandardCharsets.UTF_8));
+        return created.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Answers the request with an error and returns false unless it is allowed in
+    private static boolean admit(HttpExchange exchange) throws IOException {
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        if (exchange.getRequestHeaders().containsKey("Origin")
+                || !(("127.0.0.1:" + port).equals(host) || ("localhost:" + port).equals(host))) {
+            respond(exchange, 403, "error: requests from web pages are not accepted\n");
+            return false;
+        }
+        String given = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+        if (given == null || !MessageDigest.isEqual(token, given.getBytes(StandardCharsets.UTF_8))) {
+            respond(exchange, 401, "error: send the token from " + TOKEN_FILE + " in " + TOKEN_HEADER + "\n");
+            return false;
+        }
+        return true;
+    }
+
+    // Read straight from the change log, so it needs nothing from the EDT
+    private static void handleChanges(HttpExchange exchange) throws IOException {
+        if (!admit(exchange)) return;
+        long since = 1;
+        int limit = 1000;
+        String query = exchange.getRequestURI().getQuery();
+        try {
+            for (String param : query == null ? new String[0] : query.split("&")) {
+                if (param.startsWith("since=")) since = Long.parseLong(param.substring("since=".length()));
+                if (param.startsWith("limit=")) limit = Integer.parseInt(param.substring("limit=".length()));
+            }
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, "error: since and limit are numbers\n");
+            return;
+        }
+        StringBuilder out = new StringBuilder();
+        for (NoteFeed.Event event : NoteFeed.read(new File(NotesManager.getDataDirectory(), NoteFeed.FOLDER), since, limit)) {
+            out.append(event.toLine()).append('\n');
+        }
+        respond(exchange, 200, out.toString());
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        if (!admit(exchange)) return;
+        String path = exchange.getRequestURI().getPath();
+        String id = path.startsWith("/notes/") ? path.substring("/notes/".length()) : "";
+        List<Operation> batch = new ArrayList<>();
+        switch (exchange.getRequestMethod()) {
+            case "GET":
+                String query = exchange.getRequestURI().getQuery();
+                if (id.isEmpty() && query != null && query.startsWith("filter=")) {
+                    batch.add(new Operation("filter", decode(query.substring("filter=".length()))));
+                    break;
+                }
+                if (id.isEmpty() && query != null && query.startsWith("region=")) {
+                    batch.add(new Operation("region", decode(query.substring("region=".length()))));
+                    break;
+                }
+                batch.add(id.isEmpty()
+                        ? new Operation("list", query != null && query.startsWith("q=") ? decode(query.substring(2)) : "")
+                        : new Operation("get", id));
+                break;
+            case "DELETE":
+                batch.add(new Operation("delete", id));
+                break;
+            case "POST":
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+                    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                        if (line.isEmpty()) continue;
+                        String[] fields = line.split("\t", -1);
+                        for (int i = 0; i < fields.length; i++) fields[i] = NoteFormats.unescapeLine(fields[i]);
+                        batch.add(new Operation(fields));
+                    }
+                }
+                break;
+            default:
+                respond(exchange, 405, "error: unsupported method\n");
+                return;
+        }
+
+        PENDING.addAll(batch);
+        scheduleDrain();
+        StringBuilder response = new StringBuilder();
+        try {
+            for (Operation op : batch) {
+                response.append(op.result.get(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)).append('\n');
+            }
+        } catch (Exception e) {
+            respond(exchange, 503, "error: " + e + "\n");
+            return;
+        }
+        respond(exchange, 200, response.toString());
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static void scheduleDrain() {
+        if (DRAIN_SCHEDULED.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(AutomationServer::drain);
+        }
+    }
+
+    // Applies up to EDT_CHUNK operations, then yields the EDT so windows keep painting
+    private static void drain() {
+        if (APPLIED.isEmpty()) NotesManager.beginBatch();
+        Operation op;
+        for (int n = 0; n < EDT_CHUNK && (op = PENDING.poll()) != null; n++) {
+            try {
+                op.outcome = apply(op.fields);
+            } catch (Exception e) {
+                op.outcome = "error: " + e.getMessage();
+            }
+            APPLIED.add(op);
+        }
+        if (!PENDING.isEmpty()) {
+            SwingUtilities.invokeLater(AutomationServer::drain);
+            return;
+        }
+        NotesManager.endBatch();
+        for (Operation applied : APPLIED) applied.result.complete(NoteFormats.escapeLine(applied.outcome));
+        APPLIED.clear();
+        DRAIN_SCHEDULED.set(false);
+        if (!PENDING.isEmpty()) scheduleDrain();
+    }
+
+    private static String apply(String[] f) throws BadLocationException {
+        String verb = f[0];
+        if ("list".equals(verb)) {
+            String q = f.length > 1 ? f[1].toLowerCase() : "";
+            StringBuilder out = new StringBuilder();
+            for (NoteModel note : NotesManager.getNotes()) {
+                NoteData data = note.getNoteData();
+                if (q.isEmpty() || data.title.toLowerCase().contains(q) || note.getText().toLowerCase().contains(q)) {
+                    if (out.length() > 0) out.append('\n');
+                    out.append(data.id).append('\t').append(data.title);
+                }
+            }
+            return out.toString();
+        }
+        if ("filter".equals(verb)) {
+            StringBuilder out = new StringBuilder();
+            try {
+                for (String id : NotesManager.getIndex().filter(f.length > 1 ? f[1] : "")) {
+                    if (out.length() > 0) out.append('\n');
+                    out.append(id).append('\t').append(NotesManager.findNote(id).getNoteData().title);
+                }
+            } catch (IllegalArgumentException e) {
+                return "error: " + e.getMessage();
+            }
+            return out.toString();
+        }
+        if ("region".equals(verb)) {
+            // x,y,width,height in screen coordinates
+            String[] r = f.length > 1 ? f[1].split(",") : new String[0];
+            if (r.length != 4) return "error: region is x,y,width,height";
+            Rectangle region;
+            try {
+                region = new Rectangle(Integer.parseInt(r[0].trim()), Integer.parseInt(r[1].trim()),
+                        Integer.parseInt(r[2].trim()), Integer.parseInt(r[3].trim()));
+            } catch (NumberFormatException e) {
+                return "error: region is x,y,width,height";
+            }
+            StringBuilder out = new StringBuilder();
+            for (NoteModel note : NotesManager.findNotesIn(region)) {
+                if (out.length() > 0) out.append('\n');
+                out.append(note.getNoteData().id).append('\t').append(note.getNoteData().title);
+            }
+            return out.toString();
+        }
+        if ("create".equals(verb)) {
+            NoteModel model = new NoteModel(NoteStore.newNoteData());
+            if (f.length > 1) model.getNoteData().title = f[1];
+            if (f.length > 2) NoteFormats.read(NoteFormats.Format.PLAIN, f[2], model.getStyledDocument(), model.getNoteData());
+            NotesManager.addNote(model);
+            NotesManager.saveNotes();
+            return model.getNoteData().id;
+        }
+        if (!Arrays.asList("get", "delete", "title", "update", "append").contains(verb)) {
+            return "error: unknown operation " + verb;
+        }
+        if (f.length < 2) return "error: missing note id";
+        NoteModel note = NotesManager.findNote(f[1]);
+        if (note == null) return "error: no note " + f[1];
+        StyledDocument doc = note.getStyledDocument();
+        switch (verb) {
+            case "get":
+                return note.getText();
+            case "delete":
+                NotesManager.deleteNote(note);
+                return "ok";
+            case "title":
+                if (f.length < 3) return "error: missing title";
+                NotesManager.setTitle(note, f[2]);
+                NotesManager.saveNotes();
+                return "ok";
+            case "update":
+            case "append":
+                if (f.length < 3) return "error: missing text";
+                if (note.getNoteData().isLocked) return "error: note is locked";
+                if ("update".equals(verb)) doc.remove(0, doc.getLength());
+                // In the note's font, as if typed into it
+                NoteFormats.read(NoteFormats.Format.PLAIN, f[2], doc, note.getNoteData());
+                NotesManager.saveNotes();
+                return "ok";
+            default:
+                return "error: unknown operation " + verb;
+        }
+    }
+
+    private static String decode(String s) {
+        try {
+            return java.net.URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return s;
+        }
+    }
+}
+
+// ----------------------------------------------------------------
+// STORE WATCHER (reloads notes changed on disk by other tools)
+class StoreWatcher {
+    // Events arriving within this window are handled together, so a burst of writes is one reload
+    private static final long SETTLE_MS = 150;
+
+    private final NoteStore store;
+
+    public StoreWatcher(NoteStore store) {
+        this.store = store;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::watch, "store-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watch() {
+        Path dataFile = store.getDataFile().getAbsoluteFile().toPath();
+        Path rtfFolder = store.getRtfFolder().getAbsoluteFile().toPath();
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            rtfFolder.toFile().mkdirs();
+            dataFile.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            rtfFolder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while (true) {
+                Set<Path> changed = new LinkedHashSet<>();
+                WatchKey key = watcher.take();
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            changed.add(dataFile);
+                        } else {
+                            changed.add(((Path) key.watchable()).resolve((Path) event.context()));
+                        }
+                    }
+                    key.reset();
+                    key = watcher.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+                }
+                for (Path path : changed) {
+                    if (path.equals(dataFile)) {
+                        reloadIndex(path);
+                    } else if (path.getParent().equals(rtfFolder) && path.toString().endsWith(".rtf")) {
+                        reloadContent(path);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void reloadContent(Path path) {
+        try {
+            byte[] bytes = Files.readAllBytes(path);
+            if (store.isOwnWrite(path.toFile(), bytes)) return;
+            String name = path.getFileName().toString();
+            String id = name.substring(0, name.length() - ".rtf".length());
+            StyledDocument loaded = store.parseContent(path.toFile(), bytes);
+            SwingUtilities.invokeLater(() -> NotesManager.applyExternalContent(id, loaded));
+        } catch (NoSuchFileException e) {
+            // Deleted again before we got to it
+        } catch (IOException | BadLocationException e) {
+            System.err.println("Could not reload " + path + " (" + e + ")");
+        }
+    }
+
+    private void reloadIndex(Path path) {
+        try {
+            if (store.isOwnWrite(path.toFile(), Files.readAllBytes(path))) return;
+        } catch (IOException e) {
+            return;
+        }
+        List<NoteData> index = store.loadIndex();
+        SwingUtilities.invokeLater(() -> {
+            List<NoteData> added = NotesManager.applyExternalIndex(index);
+            if (!added.isEmpty()) {
+                Thread loader = new Thread(() -> loadAdded(added), "store-watcher-load");
+                loader.setDaemon(true);
+                loader.start();
+            }
+        });
+    }
+
+    private void loadAdded(List<NoteData> added) {
+        List<NoteModel> models = new ArrayList<>();
+        for (NoteData data : added) {
+            NoteModel model = new NoteModel(data);
+            File styledContentFile = store.getContentFile(data);
+            if (styledContentFile.exists()) store.readContent(model, styledContentFile);
+            models.add(model);
+        }
+        SwingUtilities.invokeLater(() -> {
+            for (NoteModel model : models) {
+                if (NotesManager.findNote(model.getNoteData().id) == null) NotesManager.addNote(model);
+            }
+        });
+    }
+}
+
+// ----------------------------------------------------------------
+// SYNC ENGINE (exchanges per-note changes with other devices through a shared folder)
+//
+// Each device appends to its own numbered log segments in <folder>/<deviceId>/ and never rewrites
+// them, so a folder-sync tool only has to move the new bytes. One tab-separated record per line:
+//   N  id  clock  paragraph-hashes  n  (field value clock device) x n  m  (hash paragraph) x m
+//   D  id  clock
+// Paragraphs are addressed by hash, and a record only carries the paragraphs that are new since
+// this device last synced the note. Content is merged three-way per paragraph against the last
+// synced state. Metadata fields are last-writer-wins on (clock, device), so every device picks
+// the same winner.
+class SyncEngine {
+    private static final long SEGMENT_BYTES = 1 << 20;
+    private static final String STATE_FILE = "sync_state.properties";
+    // Above this many cells, paragraph matching falls back to common prefix/suffix only
+    private static final long MAX_MATCH_CELLS = 4_000_000L;
+
+    private final File folder;
+    private final File stateFile;
+    private String deviceId;
+    private long clock;
+    private final Map<String, long[]> readPositions = new HashMap<>();
+    private final Map<String, SyncedNote> synced = new HashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    static class Stamp {
+        final long clock;
+        final String device;
+
+        Stamp(long clock, String device) {
+            this.clock = clock;
+            this.device = device;
+        }
+
+        boolean isNewerThan(Stamp other) {
+            return other == null || clock > other.clock || (clock == other.clock && device.compareTo(other.device) > 0);
+        }
+
+        String encode() {
+            return clock + "@" + device;
+        }
+
+        static Stamp decode(String s) {
+            int at = s.indexOf('@');
+            return new Stamp(Long.parseLong(s.substring(0, at)), s.substring(at + 1));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Stamp && ((Stamp) o).clock == clock && ((Stamp) o).device.equals(device);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(clock) * 31 + device.hashCode();
+        }
+    }
+
+    // A note as of the last sync, as read from another device's log, or as found locally
+    static class SyncedNote {
+        String device;
+        boolean deleted;
+        List<String> paragraphs = new ArrayList<>();
+        Map<String, String> fields = new HashMap<>();
+        Map<String, Stamp> stamps = new HashMap<>();
+        long localVersion = -1;
+    }
+
+    // Work for one note that changed remotely; the result may be recomputed on the EDT
+    private static class Pending {
+        final String id;
+        final SyncedNote base;
+        final List<SyncedNote> theirs;
+        final long localVersion;
+        SyncedNote result;
+        boolean delete;
+
+        Pending(String id, SyncedNote base, List<SyncedNote> theirs, long localVersion) {
+            this.id = id;
+            this.base = base;
+            this.theirs = theirs;
+            this.localVersion = localVersion;
+        }
+    }
+
+    public SyncEngine(File folder, File dataDir) {
+        this.folder = folder;
+        this.stateFile = new File(dataDir, STATE_FILE);
+        loadState();
+    }
+
+    public void start(long intervalSeconds) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            if (NotesManager.getStore().getCrypto() != null) {
+                System.err.println("Sync: stopped, the notes are now encrypted");
+                scheduler.shutdown();
+                return;
+            }
+            try {
+                syncOnce();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, 0, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (scheduler != null) scheduler.shutdownNow();
+    }
+
+    // Reads what other devices wrote, merges it into the open notes and appends our own changes
+    public synchronized void syncOnce() throws Exception {
+        // Records and state carry note text and titles in plaintext, and the devices sharing a folder
+        // have no key in common, so nothing is synced from an encrypted store
+        if (NotesManager.getStore().getCrypto() != null) throw new IOException("The notes are encrypted");
+        // Local edits are stamped before the other devices' clocks are folded in
+        long localStamp = clock + 1;
+        Map<String, String> bodies = new HashMap<>();
+        Map<String, long[]> positions = new HashMap<>();
+        for (Map.Entry<String, long[]> e : readPositions.entrySet()) positions.put(e.getKey(), e.getValue().clone());
+        Map<String, List<SyncedNote>> remote = readRemote(bodies, positions);
+
+        Map<String, SyncedNote> local = onEdt(() -> snapshot(remote.keySet(), bodies));
+
+        Set<String> ids = new LinkedHashSet<>(synced.keySet());
+        ids.addAll(local.keySet());
+        ids.addAll(remote.keySet());
+        List<Pending> pending = new ArrayList<>();
+        Map<String, SyncedNote> results = new LinkedHashMap<>();
+        List<String> deletedHere = new ArrayList<>();
+        for (String id : ids) {
+            SyncedNote base = synced.get(id);
+            SyncedNote mine = local.get(id);
+            List<SyncedNote> theirs = remote.getOrDefault(id, Collections.emptyList());
+            if (mine == null) {
+                // New elsewhere, or deleted here while someone else edited it: the edit wins
+                if (theirs.stream().anyMatch(n -> !n.deleted)) {
+                    Pending created = new Pending(id, base, theirs, -1);
+                    created.result = merge(base, null, theirs, localStamp);
+                    pending.add(created);
+                } else if (base != null) {
+                    deletedHere.add(id);
+                }
+                continue;
+            }
+            SyncedNote result = merge(base, mine, theirs, localStamp);
+            if (theirs.isEmpty()) {
+                results.put(id, result);
+                continue;
+            }
+            Pending update = new Pending(id, base, theirs, mine.localVersion);
+            update.result = result;
+            update.delete = result == null;
+            pending.add(update);
+        }
+
+        if (!pending.isEmpty()) {
+            Set<String> missing = new HashSet<>();
+            for (Pending p : pending) {
+                if (p.result != null) missing.addAll(p.result.paragraphs);
+            }
+            missing.removeAll(bodies.keySet());
+            if (!missing.isEmpty()) recoverBodies(missing, bodies);
+            onEdt(() -> {
+                apply(pending, bodies, localStamp);
+                return null;
+            });
+        }
+        for (Pending p : pending) {
+            if (p.delete) synced.remove(p.id);
+            else if (p.result != null) results.put(p.id, p.result);
+        }
+
+        clock = Math.max(clock, localStamp);
+        List<String> records = new ArrayList<>();
+        for (String id : deletedHere) {
+            records.add("D\t" + NoteFormats.escapeLine(id) + "\t" + (++clock));
+            synced.remove(id);
+        }
+        for (Map.Entry<String, SyncedNote> entry : results.entrySet()) {
+            SyncedNote result = entry.getValue();
+            SyncedNote base = synced.get(entry.getKey());
+            List<SyncedNote> theirs = remote.getOrDefault(entry.getKey(), Collections.emptyList());
+            boolean matchesRemote = theirs.size() == 1 && sameState(result, theirs.get(0));
+            // A note kept despite a delete elsewhere is sent in full, since the others dropped it
+            boolean resurrected = theirs.stream().anyMatch(n -> n.deleted);
+            if (!sameState(result, base) && !matchesRemote) {
+                records.add(encodeRecord(entry.getKey(), result, resurrected ? null : base, bodies));
+            }
+            synced.put(entry.getKey(), result);
+        }
+        appendRecords(records);
+        readPositions.putAll(positions);
+        saveState();
+    }
+
+    // Three-way merge of one note; mine == null means the note is not open here. Returns null to delete.
+    private SyncedNote merge(SyncedNote base, SyncedNote mine, List<SyncedNote> theirs, long localStamp) {
+        SyncedNote start = base != null ? base : new SyncedNote();
+        SyncedNote result = new SyncedNote();
+        boolean changedHere = false;
+        if (mine != null) {
+            result.paragraphs = mine.paragraphs;
+            result.fields.putAll(mine.fields);
+            result.localVersion = mine.localVersion;
+            for (Map.Entry<String, String> field : mine.fields.entrySet()) {
+                boolean same = base != null && field.getValue().equals(base.fields.get(field.getKey()));
+                result.stamps.put(field.getKey(), same ? base.stamps.get(field.getKey()) : new Stamp(localStamp, deviceId));
+                changedHere |= !same;
+            }
+            changedHere |= base == null || !mine.paragraphs.equals(base.paragraphs);
+        } else {
+            result.paragraphs = start.paragraphs;
+            result.fields.putAll(start.fields);
+            result.stamps.putAll(start.stamps);
+        }
+        for (SyncedNote their : theirs) {
+            // An edit here beats a delete elsewhere; the next record puts the note back for everyone
+            if (their.deleted) {
+                if (!changedHere && mine != null) return null;
+                continue;
+            }
+            result.paragraphs = merge3(start.paragraphs, result.paragraphs, their.paragraphs,
+                    deviceId.compareTo(their.device) < 0);
+            for (Map.Entry<String, Stamp> stamp : their.stamps.entrySet()) {
+                if (stamp.getValue().isNewerThan(result.stamps.get(stamp.getKey()))) {
+                    result.stamps.put(stamp.getKey(), stamp.getValue());
+                    result.fields.put(stamp.getKey(), their.fields.get(stamp.getKey()));
+                }
+            }
+        }
+        return result;
+    }
+
+    // Paragraph-level three-way merge. Where both sides changed the same stretch, both versions are
+    // kept, ordered by device id so that every device produces the same text.
+    static List<String> merge3(List<String> base, List<String> mine, List<String> theirs, boolean mineFirst) {
+        if (mine.equals(theirs) || theirs.equals(base)) return mine;
+        if (mine.equals(base)) return theirs;
+        int[] toMine = match(base, mine);
+        int[] toTheirs = match(base, theirs);
+        List<String> out = new ArrayList<>();
+        int b = 0, m = 0, t = 0;
+        for (int i = 0; i <= base.size(); i++) {
+            boolean end = i == base.size();
+            if (!end && (toMine[i] < 0 || toTheirs[i] < 0)) continue;
+            int mineEnd = end ? mine.size() : toMine[i];
+            int theirsEnd = end ? theirs.size() : toTheirs[i];
+            List<String> baseChunk = base.subList(b, i);
+            List<String> mineChunk = mine.subList(m, mineEnd);
+            List<String> theirsChunk = theirs.subList(t, theirsEnd);
+            if (mineChunk.equals(baseChunk)) {
+                out.addAll(theirsChunk);
+            } else if (theirsChunk.equals(baseChunk) || theirsChunk.equals(mineChunk)) {
+                out.addAll(mineChunk);
+            } else {
+                out.addAll(mineFirst ? mineChunk : theirsChunk);
+                out.addAll(mineFirst ? theirsChunk : mineChunk);
+            }
+            if (!end) out.add(base.get(i));
+            b = i + 1;
+            m = mineEnd + 1;
+            t = theirsEnd + 1;
+        }
+        return out;
+    }
+
+    // Longest common subsequence alignment: for each base index, the matching index in other or -1
+    static int[] match(List<String> base, List<String> other) {
+        int[] result = new int[base.size()];
+        Arrays.fill(result, -1);
+        int prefix = 0;
+        while (prefix < base.size() && prefix < other.size() && base.get(prefix).equals(other.get(prefix))) {
+            result[prefix] = prefix;
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < base.size() - prefix && suffix < other.size() - prefix
+                && base.get(base.size() - 1 - suffix).equals(other.get(other.size() - 1 - suffix))) {
+            result[base.size() - 1 - suffix] = other.size() - 1 - suffix;
+            suffix++;
+        }
+        int n = base.size() - prefix - suffix, k = other.size() - prefix - suffix;
+        if (n == 0 || k == 0 || (long) n * k > MAX_MATCH_CELLS) return result;
+        int[][] lcs = new int[n + 1][k + 1];
+        for (int i = n - 1; i >= 0; i--) {
+            for (int j = k - 1; j >= 0; j--) {
+                lcs[i][j] = base.get(prefix + i).equals(other.get(prefix + j))
+                        ? lcs[i + 1][j + 1] + 1 : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+            }
+        }
+        for (int i = 0, j = 0; i < n && j < k; ) {
+            if (base.get(prefix + i).equals(other.get(prefix + j))) {
+                result[prefix + i] = prefix + j;
+                i++;
+                j++;
+            } else if (lcs[i + 1][j] >= lcs[i][j + 1]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return result;
+    }
+
+    // EDT: captures the metadata of every note, and the paragraphs of those that changed since the last sync
+    private Map<String, SyncedNote> snapshot(Set<String> remoteIds, Map<String, String> bodies) {
+        Map<String, SyncedNote> local = new LinkedHashMap<>();
+        for (NoteModel model : NotesManager.getNotes()) {
+            String id = model.getNoteData().id;
+            SyncedNote base = synced.get(id);
+            SyncedNote note = new SyncedNote();
+            note.device = deviceId;
+            note.fields = NoteStore.fieldsOf(model.getNoteData());
+            note.localVersion = model.getVersion();
+            if (base != null && base.localVersion == note.localVersion && !remoteIds.contains(id)) {
+                note.paragraphs = base.paragraphs;
+            } else {
+                note.paragraphs = encodeParagraphs(model.getStyledDocument(), bodies);
+            }
+            local.put(id, note);
+        }
+        return local;
+    }
+
+    // EDT: applies merged notes, re-merging any note that was edited while the merge ran
+    private void apply(List<Pending> pending, Map<String, String> bodies, long localStamp) {
+        NotesManager.beginBatch();
+        try {
+            for (Pending p : pending) {
+                NoteModel model = NotesManager.findNote(p.id);
+                if (model != null && model.getVersion() != p.localVersion) {
+                    SyncedNote mine = new SyncedNote();
+                    mine.fields = NoteStore.fieldsOf(model.getNoteData());
+                    mine.paragraphs = encodeParagraphs(model.getStyledDocument(), bodies);
+                    mine.localVersion = model.getVersion();
+                    p.result = merge(p.base, mine, p.theirs, localStamp);
+                    p.delete = p.result == null;
+                }
+                if (p.delete) {
+                    if (model != null) NotesManager.deleteNote(model);
+                    continue;
+                }
+                if (p.result == null || !bodies.keySet().containsAll(p.result.paragraphs)) {
+                    System.err.println("Sync: paragraphs of note " + p.id + " are not available yet");
+                    p.result = null;
+                    continue;
+                }
+                NoteData data = dataOf(p.id, p.result.fields);
+                if (model == null) {
+                    model = new NoteModel(data);
+                    decodeParagraphs(p.result.paragraphs, bodies, model.getStyledDocument());
+                    NotesManager.addNote(model);
+                } else {
+                    List<String> current = encodeParagraphs(model.getStyledDocument(), bodies);
+                    if (!current.equals(p.result.paragraphs)) {
+                        decodeParagraphs(p.result.paragraphs, bodies, model.getStyledDocument());
+                    }
+                    data.content = model.getNoteData().content;
+                    model.getNoteData().copyFrom(data);
+                    NotesManager.refreshWindow(model);
+                }
+                p.result.localVersion = model.getVersion();
+            }
+            NotesManager.saveNotes();
+        } finally {
+            NotesManager.endBatch();
+        }
+    }
+
+    static NoteData dataOf(String id, Map<String, String> fields) {
+        Properties props = new Properties();
+        NoteStore.writeProperties(props, "", NoteStore.newNoteData());
+        props.putAll(fields);
+        props.setProperty("id", id);
+        return NoteStore.readProperties(props, "");
+    }
+
+    // Each paragraph becomes runs of "bold italic underline size rgb family text" joined by control characters
+    static List<String> encodeParagraphs(StyledDocument doc, Map<String, String> bodies) {
+        List<String> hashes = new ArrayList<>();
+        Element root = doc.getDefaultRootElement();
+        try {
+            for (int p = 0; p < root.getElementCount(); p++) {
+                Element paragraph = root.getElement(p);
+                StringBuilder body = new StringBuilder();
+                for (int r = 0; r < paragraph.getElementCount(); r++) {
+                    Element leaf = paragraph.getElement(r);
+                    int end = Math.min(leaf.getEndOffset(), doc.getLength());
+                    if (end <= leaf.getStartOffset()) continue;
+                    String text = doc.getText(leaf.getStartOffset(), end - leaf.getStartOffset()).replace("\n", "");
+                    if (text.isEmpty()) continue;
+                    AttributeSet a = leaf.getAttributes();
+                    if (body.length() > 0) body.append('\u001e');
+                    body.append(StyleConstants.isBold(a) ? 1 : 0).append('\u001f')
+                            .append(StyleConstants.isItalic(a) ? 1 : 0).append('\u001f')
+                            .append(StyleConstants.isUnderline(a) ? 1 : 0).append('\u001f')
+                            .append(StyleConstants.getFontSize(a)).append('\u001f')
+                            .append(StyleConstants.getForeground(a).getRGB()).append('\u001f')
+                            .append(StyleConstants.getFontFamily(a)).append('\u001f')
+                            .append(text);
+                }
+                String encoded = body.toString();
+                String hash = hash(encoded);
+                bodies.put(hash, encoded);
+                hashes.add(hash);
+            }
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+        return hashes;
+    }
+
+    static void decodeParagraphs(List<String> hashes, Map<String, String> bodies, StyledDocument doc) {
+        try {
+            doc.remove(0, doc.getLength());
+            for (int p = 0; p < hashes.size(); p++) {
+                if (p > 0) doc.insertString(doc.getLength(), "\n", null);
+                String body = bodies.get(hashes.get(p));
+                if (body.isEmpty()) continue;
+                for (String run : body.split("\u001e")) {
+                    String[] parts = run.split("\u001f", 7);
+                    SimpleAttributeSet attrs = new SimpleAttributeSet();
+                    StyleConstants.setBold(attrs, "1".equals(parts[0]));
+                    StyleConstants.setItalic(attrs, "1".equals(parts[1]));
+                    StyleConstants.setUnderline(attrs, "1".equals(parts[2]));
+                    StyleConstants.setFontSize(attrs, Integer.parseInt(parts[3]));
+                    StyleConstants.setForeground(attrs, new Color(Integer.parseInt(parts[4]), true));
+                    StyleConstants.setFontFamily(attrs, parts[5]);
+                    doc.insertString(doc.getLength(), parts[6], attrs);
+                }
+            }
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static String hash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) hex.append(String.format("%02x", digest[i]));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean sameState(SyncedNote a, SyncedNote b) {
+        return b != null && !b.deleted && a.paragraphs.equals(b.paragraphs) && a.fields.equals(b.fields);
+    }
+
+    private String encodeRecord(String id, SyncedNote result, SyncedNote base, Map<String, String> bodies) {
+        StringBuilder record = new StringBuilder("N\t").append(NoteFormats.escapeLine(id))
+                .append('\t').append(++clock)
+                .append('\t').append(String.join(",", result.paragraphs));
+        List<String> changedFields = new ArrayList<>();
+        for (Map.Entry<String, Stamp> stamp : result.stamps.entrySet()) {
+            if (base == null || !stamp.getValue().equals(base.stamps.get(stamp.getKey()))) changedFields.add(stamp.getKey());
+        }
+        record.append('\t').append(changedFields.size());
+        for (String field : changedFields) {
+            Stamp stamp = result.stamps.get(field);
+            record.append('\t').append(NoteFormats.escapeLine(field))
+                    .append('\t').append(NoteFormats.escapeLine(result.fields.get(field)))
+                    .append('\t').append(stamp.clock)
+                    .append('\t').append(NoteFormats.escapeLine(stamp.device));
+        }
+        Set<String> newParagraphs = new LinkedHashSet<>(result.paragraphs);
+        if (base != null) newParagraphs.removeAll(base.paragraphs);
+        record.append('\t').append(newParagraphs.size());
+        for (String hash : newParagraphs) {
+            record.append('\t').append(hash).append('\t').append(NoteFormats.escapeLine(bodies.get(hash)));
+        }
+        return record.toString();
+    }
+
+    // Reads complete lines past the stored position of every other device's log
+    private Map<String, List<SyncedNote>> readRemote(Map<String, String> bodies, Map<String, long[]> positions) throws IOException {
+        Map<String, List<SyncedNote>> remote = new HashMap<>();
+        File[] devices = folder.listFiles(File::isDirectory);
+        if (devices == null) return remote;
+        for (File device : devices) {
+            if (device.getName().equals(deviceId)) continue;
+            long[] position = positions.computeIfAbsent(device.getName(), d -> new long[] {1, 0});
+            Map<String, SyncedNote> notes = new LinkedHashMap<>();
+            while (true) {
+                File segment = segmentFile(device, position[0]);
+                if (!segment.exists()) break;
+                byte[] bytes;
+                try (RandomAccessFile in = new RandomAccessFile(segment, "r")) {
+                    long available = in.length() - position[1];
+                    bytes = new byte[(int) Math.max(0, available)];
+                    in.seek(position[1]);
+                    in.readFully(bytes);
+                }
+                int complete = bytes.length;
+                while (complete > 0 && bytes[complete - 1] != '\n') complete--;
+                for (String line : new String(bytes, 0, complete, StandardCharsets.UTF_8).split("\n")) {
+                    if (!line.isEmpty()) readRecord(device.getName(), line, notes, bodies);
+                }
+                position[1] += complete;
+                if (complete < bytes.length || !segmentFile(device, position[0] + 1).exists()) break;
+                position[0]++;
+                position[1] = 0;
+            }
+            for (Map.Entry<String, SyncedNote> note : notes.entrySet()) {
+                remote.computeIfAbsent(note.getKey(), id -> new ArrayList<>()).add(note.getValue());
+            }
+        }
+        return remote;
+    }
+
+    // A merge can bring back a paragraph this device no longer has (both sides changed the same
+    // stretch), and records only carry paragraphs new to their writer. Every paragraph was sent in
+    // full by someone at some point, so scan all logs from the start for the few that are missing.
+    private void recoverBodies(Set<String> missing, Map<String, String> bodies) throws IOException {
+        File[] devices = folder.listFiles(File::isDirectory);
+        if (devices == null) return;
+        for (File device : devices) {
+            for (long segment = 1; segmentFile(device, segment).exists() && !missing.isEmpty(); segment++) {
+                for (String line : Files.readAllLines(segmentFile(device, segment).toPath(), StandardCharsets.UTF_8)) {
+                    Map<String, String> found = new HashMap<>();
+                    if (!line.isEmpty()) readRecord(device.getName(), line, new HashMap<>(), found);
+                    for (Map.Entry<String, String> body : found.entrySet()) {
+                        if (missing.remove(body.getKey())) bodies.put(body.getKey(), body.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    private void readRecord(String device, String line, Map<String, SyncedNote> notes, Map<String, String> bodies) {
+        String[] f = line.split("\t", -1);
+        for (int i = 0; i < f.length; i++) f[i] = NoteFormats.unescapeLine(f[i]);
+        try {
+            SyncedNote note = notes.computeIfAbsent(f[1], id -> new SyncedNote());
+            note.device = device;
+            long recordClock = Long.parseLong(f[2]);
+            clock = Math.max(clock, recordClock);
+            if ("D".equals(f[0])) {
+                note.deleted = true;
+                return;
+            }
+            note.deleted = false;
+            note.paragraphs = f[3].isEmpty() ? new ArrayList<>() : new ArrayList<>(Arrays.asList(f[3].split(",")));
+            int i = 4;
+            int fieldCount = Integer.parseInt(f[i++]);
+            for (int n = 0; n < fieldCount; n++, i += 4) {
+                Stamp stamp = new Stamp(Long.parseLong(f[i + 2]), f[i + 3]);
+                if (stamp.isNewerThan(note.stamps.get(f[i]))) {
+                    note.stamps.put(f[i], stamp);
+                    note.fields.put(f[i], f[i + 1]);
+                }
+            }
+            int bodyCount = Integer.parseInt(f[i++]);
+            for (int n = 0; n < bodyCount; n++, i += 2) {
+                bodies.put(f[i], f[i + 1]);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Sync: skipped a malformed record from " + device);
+        }
+    }
+
+    private void appendRecords(List<String> records) throws IOException {
+        if (records.isEmpty()) return;
+        File own = new File(folder, deviceId);
+        own.mkdirs();
+        long segment = 1;
+        while (segmentFile(own, segment + 1).exists()) segment++;
+        if (segmentFile(own, segment).length() >= SEGMENT_BYTES) segment++;
+        StringBuilder out = new StringBuilder();
+        for (String record : records) out.append(record).append('\n');
+        try (FileOutputStream fos = new FileOutputStream(segmentFile(own, segment), true)) {
+            fos.write(out.toString().getBytes(StandardCharsets.UTF_8));
+            fos.getFD().sync();
+        }
+    }
+
+    private static File segmentFile(File device, long segment) {
+        return new File(device, String.format("%06d.log", segment));
+    }
+
+    private static <T> T onEdt(Callable<T> task) throws Exception {
+        if (SwingUtilities.isEventDispatchThread()) return task.call();
+        FutureTask<T> future = new FutureTask<>(task);
+        SwingUtilities.invokeLater(future);
+        return future.get();
+    }
+
+    private void loadState() {
+        Properties props = new Properties();
+        if (stateFile.exists()) {
+            try (FileInputStream fis = new FileInputStream(stateFile)) {
+                props.load(fis);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        deviceId = props.getProperty("device", UUID.randomUUID().toString());
+        clock = Long.parseLong(props.getProperty("clock", "0"));
+        for (String key : props.stringPropertyNames()) {
+            String value = props.getProperty(key);
+            if (key.startsWith("read.")) {
+                String[] parts = value.split(":");
+                readPositions.put(key.substring(5), new long[] {Long.parseLong(parts[0]), Long.parseLong(parts[1])});
+            } else if (key.startsWith("note.")) {
+                int dot = key.indexOf('.', 5);
+                SyncedNote note = synced.computeIfAbsent(key.substring(5, dot), id -> new SyncedNote());
+                String rest = key.substring(dot + 1);
+                if (rest.equals("p")) {
+                    note.paragraphs = value.isEmpty() ? new ArrayList<>() : new ArrayList<>(Arrays.asList(value.split(",")));
+                } else if (rest.startsWith("f.")) {
+                    note.fields.put(rest.substring(2), value);
+                } else if (rest.startsWith("s.")) {
+                    note.stamps.put(rest.substring(2), Stamp.decode(value));
+                }
+            }
+        }
+    }
+
+    // Dropped when the store is encrypted, since it holds titles and other fields of every note
+    static void removeState(File dataDir) {
+        File state = new File(dataDir, STATE_FILE);
+        if (state.exists() && !state.delete()) System.err.println("Could not delete " + state);
+    }
+
+    private void saveState() {
+        Properties props = new Properties();
+        props.setProperty("device", deviceId);
+        props.setProperty("clock", String.valueOf(clock));
+        for (Map.Entry<String, long[]> position : readPositions.entrySet()) {
+            props.setProperty("read." + position.getKey(), position.getValue()[0] + ":" + position.getValue()[1]);
+        }
+        for (Map.Entry<String, SyncedNote> entry : synced.entrySet()) {
+            String prefix = "note." + entry.getKey() + ".";
+            SyncedNote note = entry.getValue();
+            props.setProperty(prefix + "p", String.join(",", note.paragraphs));
+            for (Map.Entry<String, String> field : note.fields.entrySet()) {
+                props.setProperty(prefix + "f." + field.getKey(), field.getValue());
+            }
+            for (Map.Entry<String, Stamp> stamp : note.stamps.entrySet()) {
+                props.setProperty(prefix + "s." + stamp.getKey(), stamp.getValue().encode());
+            }
+        }
+        try (FileOutputStream fos = new FileOutputStream(stateFile)) {
+            props.store(fos, "Sync State");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+// ----------------------------------------------------------------
+// CHANGE FEED (ordered note events for other tools: subscribers and an append-only log)
+//
+// NotesManager reports notes added and removed, document edits, and every saveNotes() or refresh
+// (something about some note may have changed). Nothing is published right away: FLUSH_MS later
+// the feed diffs each note against the snapshot it last published and emits one typed event per
+// kind of change, so a burst of keystrokes or a drag becomes a single EDITED or MOVED event.
+// Sequence numbers are assigned on the EDT in that order and continue across restarts. The
+// "change-feed" thread appends each batch to the log with one write, rotates segments, and then
+// hands the batch to subscribers.
+//
+// The log is changes/changes-<first sequence>.log in the data folder, one event per line:
+//   sequence<TAB>epoch millis<TAB>type<TAB>note id<TAB>detail
+// where detail names what changed (fields, or x,y,width,height for MOVED) but never note text.
+// A consumer resumes after the last sequence it saw with read(), or by tailing the newest segment.
+class NoteFeed {
+    enum Type { CREATED, EDITED, MOVED, RESTYLED, UPDATED, DELETED }
+
+    static final class Event {
+        final long sequence;
+        final long time;
+        final Type type;
+        final String noteId;
+        final String detail;
+
+        Event(long sequence, long time, Type type, String noteId, String detail) {
+            this.sequence = sequence;
+            this.time = time;
+            this.type = type;
+            this.noteId = noteId;
+            this.detail = detail;
+        }
+
+        String toLine() {
+            return sequence + "\t" + time + "\t" + type + "\t" + noteId + "\t" + detail;
+        }
+
+        static Event parse(String line) {
+            String[] f = line.split("\t", -1);
+            if (f.length != 5) return null;
+            try {
+                return new Event(Long.parseLong(f[0]), Long.parseLong(f[1]), Type.valueOf(f[2]), f[3], f[4]);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    public static final String FOLDER = "changes";
+    private static final int FLUSH_MS = 250;
+    private static final long SEGMENT_BYTES = 1 << 20;
+    private static final int MAX_SEGMENTS = 16;
+
+    private final File folder;
+    private final List<Consumer<List<Event>>> subscribers = new CopyOnWriteArrayList<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "change-feed");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // EDT only: what was last published about each note, and what happened since
+    private final Map<String, NoteData> published = new HashMap<>();
+    private final List<Event> pending = new ArrayList<>();
+    private final Set<String> edited = new LinkedHashSet<>();
+    private boolean rescan;
+    private long nextSequence;
+    private final javax.swing.Timer flushTimer = new javax.swing.Timer(FLUSH_MS, e -> flush());
+
+    // Writer thread only
+    private File segment;
+
+    public NoteFeed(File dataDir) {
+        folder = new File(dataDir, FOLDER);
+        List<File> segments = segments(folder);
+        List<Event> last = segments.isEmpty() ? Collections.emptyList() : readSegment(segments.get(segments.size() - 1));
+        if (!last.isEmpty()) {
+            nextSequence = last.get(last.size() - 1).sequence + 1;
+        } else {
+            nextSequence = segments.isEmpty() ? 1 : sequenceOf(segments.get(segments.size() - 1));
+        }
+        flushTimer.setRepeats(false);
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    // EDT: the notes that exist when the feed starts are its baseline, not CREATED events
+    public void start(List<NoteModel> notes) {
+        for (NoteModel note : notes) published.put(note.getNoteData().id, note.getNoteData().copy());
+    }
+
+    // Called on the "change-feed" thread with each batch, in sequence order; returns an unsubscribe
+    public Runnable subscribe(Consumer<List<Event>> subscriber) {
+        subscribers.add(subscriber);
+        return () -> subscribers.remove(subscriber);
+    }
+
+    public void noteAdded(NoteData data) {
+        published.put(data.id, data.copy());
+        pending.add(event(Type.CREATED, data.id, ""));
+        schedule();
+    }
+
+    public void noteRemoved(String id) {
+        if (published.remove(id) == null) return;
+        edited.remove(id);
+        pending.add(event(Type.DELETED, id, ""));
+        schedule();
+    }
+
+    public void contentEdited(String id) {
+        edited.add(id);
+        schedule();
+    }
+
+    public void propertiesChanged() {
+        rescan = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (!flushTimer.isRunning()) flushTimer.start();
+    }
+
+    private Event event(Type type, String id, String detail) {
+        return new Event(nextSequence++, System.currentTimeMillis(), type, id, detail);
+    }
+
+    // EDT: publishes everything noted so far
+    public void flush() {
+        flushTimer.stop();
+        for (String id : edited) {
+            if (published.containsKey(id)) pending.add(event(Type.EDITED, id, "content"));
+        }
+        edited.clear();
+        if (rescan) {
+            rescan = false;
+            for (NoteModel note : NotesManager.getNotes()) diff(note.getNoteData());
+        }
+        if (pending.isEmpty()) return;
+        List<Event> batch = new ArrayList<>(pending);
+        pending.clear();
+        writer.execute(() -> write(batch));
+    }
+
+    // EDT: publishes what is pending and waits until it is in the log
+    public void close() {
+        flush();
+        try {
+            writer.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void diff(NoteData now) {
+        NoteData before = published.get(now.id);
+        if (before == null) return;
+        int found = pending.size();
+        if (!now.title.equals(before.title)) pending.add(event(Type.EDITED, now.id, "title"));
+        if (now.x != before.x || now.y != before.y || now.width != before.width || now.height != before.height) {
+            pending.add(event(Type.MOVED, now.id, now.x + "," + now.y + "," + now.width + "," + now.height));
+        }
+        List<String> style = new ArrayList<>();
+        if (!now.noteBackground.equals(before.noteBackground)) style.add("background");
+        if (!now.toolbarColor.equals(before.toolbarColor)) style.add("toolbar");
+        if (!now.fontFamily.equals(before.fontFamily) || now.fontSize != before.fontSize) style.add("font");
+        if (now.transparency != before.transparency) style.add("transparency");
+        if (!style.isEmpty()) pending.add(event(Type.RESTYLED, now.id, String.join(",", style)));
+        List<String> other = new ArrayList<>();
+        if (now.isLocked != before.isLocked) other.add("locked");
+        if (now.alwaysOnTop != before.alwaysOnTop) other.add("pinned");
+        if (!now.tags.equals(before.tags)) other.add("tags");
+        if (!now.notebook.equals(before.notebook)) other.add("notebook");
+        if (now.markdown != before.markdown) other.add("markdown");
+        if (now.remindAt != before.remindAt || now.repeatMillis != before.repeatMillis
+                || now.hideAt != before.hideAt || now.showForMillis != before.showForMillis) other.add("reminder");
+        if (!other.isEmpty()) pending.add(event(Type.UPDATED, now.id, String.join(",", other)));
+        if (pending.size() > found) published.put(now.id, now.copy());
+    }
+
+    private void write(List<Event> batch) {
+        StringBuilder lines = new StringBuilder();
+        for (Event event : batch) lines.append(event.toLine()).append('\n');
+        try {
+            if (segment == null || segment.length() >= SEGMENT_BYTES) segment = rotate(batch.get(0).sequence);
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(segment, true), StandardCharsets.UTF_8)) {
+                out.write(lines.toString());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Consumer<List<Event>> subscriber : subscribers) {
+            try {
+                subscriber.accept(Collections.unmodifiableList(batch));
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Continues the newest segment while it has room, else starts one and drops the oldest
+    private File rotate(long firstSequence) {
+        folder.mkdirs();
+        List<File> segments = segments(folder);
+        if (!segments.isEmpty() && segments.get(segments.size() - 1).length() < SEGMENT_BYTES) {
+            return segments.get(segments.size() - 1);
+        }
+        File next = new File(folder, String.format("changes-%020d.log", firstSequence));
+        segments.add(next);
+        for (int i = 0; i < segments.size() - MAX_SEGMENTS; i++) {
+            if (!segments.get(i).delete()) System.err.println("Could not delete " + segments.get(i));
+        }
+        return next;
+    }
+
+    // Oldest first
+    static List<File> segments(File folder) {
+        File[] files = folder.listFiles((dir, name) -> name.startsWith("changes-") && name.endsWith(".log"));
+        List<File> segments = new ArrayList<>(files == null ? Collections.emptyList() : Arrays.asList(files));
+        segments.sort(Comparator.comparing(File::getName));
+        return segments;
+    }
+
+    // The sequence of the first event in a segment, from its name
+    private static long sequenceOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring("changes-".length(), name.length() - ".log".length()));
+    }
+
+    // Up to max events with sequence >= from; a line still being written is left for the next read
+    public static List<Event> read(File folder, long from, int max) {
+        List<File> segments = segments(folder);
+        int start = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            if (sequenceOf(segments.get(i)) <= from) start = i;
+        }
+        List<Event> events = new ArrayList<>();
+        for (File file : segments.subList(start, segments.size())) {
+            for (Event event : readSegment(file)) {
+                if (event.sequence < from) continue;
+                if (events.size() >= max) return events;
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    private static List<Event> readSegment(File file) {
+        List<Event> events = new ArrayList<>();
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            return events;
+        }
+        int lineStart = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != '\n') continue;
+            Event event = Event.parse(new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8));
+            if (event != null) events.add(event);
+            lineStart = i + 1;
+        }
+        return events;
+    }
+}
+
+// ----------------------------------------------------------------
+// NOTE INDEX (compressed bitmaps per tag, notebook, color and flag, for boolean filters)
+//
+// Every note gets a small integer ordinal, and each term ("tag:work", "notebook:home",
+// "color:ffffe0", "pinned", "locked") keeps a Roaring-style bitmap of the ordinals that have it.
+// A filter such as "work AND pinned AND NOT locked" is evaluated with bitmap AND/OR/ANDNOT, so its
+// cost follows the number of 64K-ordinal chunks rather than the number of notes. update() diffs a
+// note's terms against what was indexed for it, so keeping the index current is cheap (EDT only).
+class NoteIndex {
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    private final List<String> ids = new ArrayList<>();
+    private final Deque<Integer> freeOrdinals = new ArrayDeque<>();
+    private final Map<String, Set<String>> indexedTerms = new HashMap<>();
+    private final Map<String, Bitmap> postings = new HashMap<>();
+    private final Bitmap all = new Bitmap();
+
+    static Set<String> parseTags(String text) {
+        Set<String> tags = new TreeSet<>();
+        for (String tag : text.split(",")) {
+            tag = tag.trim().toLowerCase();
+            if (!tag.isEmpty()) tags.add(tag);
+        }
+        return tags;
+    }
+
+    static Set<String> termsOf(NoteData data) {
+        Set<String> terms = new HashSet<>();
+        for (String tag : data.tags) terms.add("tag:" + tag);
+        if (!data.notebook.isEmpty()) terms.add("notebook:" + data.notebook.toLowerCase());
+        terms.add("color:" + String.format("%06x", data.noteBackground.getRGB() & 0xffffff));
+        if (data.isLocked) terms.add("locked");
+        if (data.alwaysOnTop) terms.add("pinned");
+        return terms;
+    }
+
+    public void update(NoteData data) {
+        Integer ordinal = ordinals.get(data.id);
+        if (ordinal == null) {
+            ordinal = freeOrdinals.isEmpty() ? ids.size() : freeOrdinals.pop();
+            if (ordinal == ids.size()) ids.add(data.id); else ids.set(ordinal, data.id);
+            ordinals.put(data.id, ordinal);
+            all.add(ordinal);
+        }
+        Set<String> terms = termsOf(data);
+        Set<String> before = indexedTerms.getOrDefault(data.id, Collections.emptySet());
+        for (String term : before) {
+            if (!terms.contains(term)) removePosting(term, ordinal);
+        }
+        for (String term : terms) {
+            if (!before.contains(term)) postings.computeIfAbsent(term, t -> new Bitmap()).add(ordinal);
+        }
+        indexedTerms.put(data.id, terms);
+    }
+
+    public void remove(String id) {
+        Integer ordinal = ordinals.remove(id);
+        if (ordinal == null) return;
+        for (String term : indexedTerms.remove(id)) removePosting(term, ordinal);
+        all.remove(ordinal);
+        ids.set(ordinal, null);
+        freeOrdinals.push(ordinal);
+    }
+
+    private void removePosting(String term, int ordinal) {
+        Bitmap bitmap = postings.get(term);
+        if (bitmap == null) return;
+        bitmap.remove(ordinal);
+        if (bitmap.isEmpty()) postings.remove(term);
+    }
+
+    public Set<String> getNotebooks() {
+        Set<String> notebooks = new TreeSet<>();
+        for (Map.Entry<String, Set<String>> entry : indexedTerms.entrySet()) {
+            for (String term : entry.getValue()) {
+                if (term.startsWith("notebook:")) notebooks.add(term.substring("notebook:".length()));
+            }
+        }
+        return notebooks;
+    }
+
+    // Ids of the notes matching query; throws IllegalArgumentException for a malformed query
+    public List<String> filter(String query) {
+        Bitmap matches = evaluate(query);
+        List<String> found = new ArrayList<>(matches.cardinality());
+        matches.forEach(ordinal -> found.add(ids.get(ordinal)));
+        return found;
+    }
+
+    public Bitmap evaluate(String query) {
+        Parser parser = new Parser(query);
+        Bitmap result = parser.parseOr();
+        if (parser.peek() != null) throw new IllegalArgumentException("Unexpected \"" + parser.peek() + "\"");
+        return result;
+    }
+
+    // or := and (OR and)*   and := unary ([AND] unary)*   unary := NOT unary | ( or ) | term
+    private class Parser {
+        private final List<String> tokens = new ArrayList<>();
+        private int position;
+
+        Parser(String query) {
+            java.util.regex.Matcher m = java.util.regex.Pattern.compile("\"([^\"]*)\"|[()!]|[^\\s()!]+").matcher(query);
+            while (m.find()) tokens.add(m.group(1) != null ? "\"" + m.group(1) : m.group());
+        }
+
+        String peek() {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+
+        private boolean accept(String keyword) {
+            String token = peek();
+            if (token != null && token.equalsIgnoreCase(keyword)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        Bitmap parseOr() {
+            Bitmap result = parseAnd();
+            while (accept("OR") || accept("||")) result = result.or(parseAnd());
+            return result;
+        }
+
+        Bitmap parseAnd() {
+            Bitmap result = parseUnary();
+            while (true) {
+                if (accept("AND") || accept("&&")) {
+                    result = result.and(parseUnary());
+                } else {
+                    String next = peek();
+                    if (next == null || next.equals(")") || next.equalsIgnoreCase("OR") || next.equals("||")) return result;
+                    result = result.and(parseUnary());
+                }
+            }
+        }
+
+        Bitmap parseUnary() {
+            if (accept("NOT") || accept("!")) return all.andNot(parseUnary());
+            if (accept("(")) {
+                Bitmap inner = parseOr();
+                if (!accept(")")) throw new IllegalArgumentException("Missing \")\"");
+                return inner;
+            }
+            String token = peek();
+            if (token == null) throw new IllegalArgumentException("Missing a tag at the end");
+            if (token.equals(")") || token.equalsIgnoreCase("AND") || token.equalsIgnoreCase("OR")
+                    || token.equals("&&") || token.equals("||")) {
+                throw new IllegalArgumentException("Unexpected \"" + token + "\"");
+            }
+            position++;
+            Bitmap posting = postings.get(term(token));
+            return posting != null ? posting : new Bitmap();
+        }
+
+        private String term(String token) {
+            String word = (token.startsWith("\"") ? token.substring(1) : token).toLowerCase();
+            if (token.startsWith("\"")) return "tag:" + word;
+            if (word.equals("pinned") || word.equals("ontop")) return "pinned";
+            if (word.equals("locked")) return "locked";
+            if (word.startsWith("#")) return "color:" + word.substring(1);
+            if (word.startsWith("tag:") || word.startsWith("notebook:") || word.startsWith("color:")) return word;
+            return "tag:" + word;
+        }
+    }
+
+    // Roaring-style bitmap: ordinals are split on their high 16 bits into chunks that hold the low
+    // 16 bits as a sorted array while sparse and as a 65536-bit bitmap once dense
+    static final class Bitmap {
+        private final TreeMap<Integer, Chunk> chunks = new TreeMap<>();
+
+        void add(int value) {
+            chunks.computeIfAbsent(value >>> 16, k -> new Chunk()).add((char) value);
+        }
+
+        void remove(int value) {
+            Chunk chunk = chunks.get(value >>> 16);
+            if (chunk != null && chunk.remove((char) value) && chunk.cardinality == 0) chunks.remove(value >>> 16);
+        }
+
+        boolean contains(int value) {
+            Chunk chunk = chunks.get(value >>> 16);
+            return chunk != null && chunk.contains((char) value);
+        }
+
+        boolean isEmpty() {
+            return chunks.isEmpty();
+        }
+
+        int cardinality() {
+            int total = 0;
+            for (Chunk chunk : chunks.values()) total += chunk.cardinality;
+            return total;
+        }
+
+        Bitmap and(Bitmap other) {
+            Bitmap result = new Bitmap();
+            for (Map.Entry<Integer, Chunk> entry : chunks.entrySet()) {
+                Chunk theirs = other.chunks.get(entry.getKey());
+                if (theirs != null) result.put(entry.getKey(), entry.getValue().and(theirs));
+            }
+            return result;
+        }
+
+        Bitmap or(Bitmap other) {
+            Bitmap result = new Bitmap();
+            for (Map.Entry<Integer, Chunk> entry : chunks.entrySet()) {
+                Chunk theirs = other.chunks.get(entry.getKey());
+                result.put(entry.getKey(), theirs == null ? entry.getValue() : entry.getValue().or(theirs));
+            }
+            for (Map.Entry<Integer, Chunk> entry : other.chunks.entrySet()) {
+                if (!chunks.containsKey(entry.getKey())) result.put(entry.getKey(), entry.getValue());
+            }
+            return result;
+        }
+
+        Bitmap andNot(Bitmap other) {
+            Bitmap result = new Bitmap();
+            for (Map.Entry<Integer, Chunk> entry : chunks.entrySet()) {
+                Chunk theirs = other.chunks.get(entry.getKey());
+                result.put(entry.getKey(), theirs == null ? entry.getValue() : entry.getValue().andNot(theirs));
+            }
+            return result;
+        }
+
+        void forEach(IntConsumer action) {
+            for (Map.Entry<Integer, Chunk> entry : chunks.entrySet()) entry.getValue().forEach(entry.getKey() << 16, action);
+        }
+
+        // Results share unchanged chunks with their inputs, so chunks are never modified once shared
+        private void put(int key, Chunk chunk) {
+            if (chunk.cardinality > 0) chunks.put(key, chunk);
+        }
+    }
+
+    static final class Chunk {
+        private static final int ARRAY_MAX = 4096;
+        private char[] values = new char[4];
+        private long[] words;
+        private int cardinality;
+
+        boolean add(char v) {
+            if (words != null) {
+                long bit = 1L << v;
+                if ((words[v >>> 6] & bit) != 0) return false;
+                words[v >>> 6] |= bit;
+                cardinality++;
+                return true;
+            }
+            int i = Arrays.binarySearch(values, 0, cardinality, v);
+            if (i >= 0) return false;
+            if (cardinality == ARRAY_MAX) {
+                words = toWords();
+                values = null;
+                return add(v);
+            }
+            i = -i - 1;
+            if (cardinality == values.length) values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2));
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = v;
+            cardinality++;
+            return true;
+        }
+
+        boolean remove(char v) {
+            if (words != null) {
+                long bit = 1L << v;
+                if ((words[v >>> 6] & bit) == 0) return false;
+                words[v >>> 6] &= ~bit;
+                if (--cardinality <= ARRAY_MAX) {
+                    Chunk sparse = fromWords(words);
+                    values = sparse.values;
+                    words = null;
+                }
+                return true;
+            }
+            int i = Arrays.binarySearch(values, 0, cardinality, v);
+            if (i < 0) return false;
+            System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+            cardinality--;
+            return true;
+        }
+
+        boolean contains(char v) {
+            if (words != null) return (words[v >>> 6] & (1L << v)) != 0;
+            return Arrays.binarySearch(values, 0, cardinality, v) >= 0;
+        }
+
+        Chunk and(Chunk other) {
+            if (words == null && other.words == null) {
+                Chunk result = new Chunk();
+                result.values = new char[Math.min(cardinality, other.cardinality)];
+                int i = 0, j = 0;
+                while (i < cardinality && j < other.cardinality) {
+                    if (values[i] < other.values[j]) i++;
+                    else if (values[i] > other.values[j]) j++;
+                    else { result.values[result.cardinality++] = values[i]; i++; j++; }
+                }
+                return result;
+            }
+            if (words == null || other.words == null) {
+                Chunk sparse = words == null ? this : other, dense = words == null ? other : this;
+                Chunk result = new Chunk();
+                result.values = new char[sparse.cardinality];
+                for (int i = 0; i < sparse.cardinality; i++) {
+                    if (dense.contains(sparse.values[i])) result.values[result.cardinality++] = sparse.values[i];
+                }
+                return result;
+            }
+            long[] result = new long[1024];
+            for (int i = 0; i < 1024; i++) result[i] = words[i] & other.words[i];
+            return fromWords(result);
+        }
+
+        Chunk or(Chunk other) {
+            long[] result = toWords();
+            if (other.words != null) {
+                for (int i = 0; i < 1024; i++) result[i] |= other.words[i];
+            } else {
+                for (int i = 0; i < other.cardinality; i++) result[other.values[i] >>> 6] |= 1L << other.values[i];
+            }
+            return fromWords(result);
+        }
+
+        Chunk andNot(Chunk other) {
+            if (words == null) {
+                Chunk result = new Chunk();
+                result.values = new char[cardinality];
+                for (int i = 0; i < cardinality; i++) {
+                    if (!other.contains(values[i])) result.values[result.cardinality++] = values[i];
+                }
+                return result;
+            }
+            long[] result = words.clone();
+            if (other.words != null) {
+                for (int i = 0; i < 1024; i++) result[i] &= ~other.words[i];
+            } else {
+                for (int i = 0; i < other.cardinality; i++) result[other.values[i] >>> 6] &= ~(1L << other.values[i]);
+            }
+            return fromWords(result);
+        }
+
+        void forEach(int high, IntConsumer action) {
+            if (words == null) {
+                for (int i = 0; i < cardinality; i++) action.accept(high | values[i]);
+                return;
+            }
+            for (int i = 0; i < 1024; i++) {
+                for (long word = words[i]; word != 0; word &= word - 1) {
+                    action.accept(high | (i << 6) + Long.numberOfTrailingZeros(word));
+                }
+            }
+        }
+
+        private long[] toWords() {
+            if (words != null) return words.clone();
+            long[] result = new long[1024];
+            for (int i = 0; i < cardinality; i++) result[values[i] >>> 6] |= 1L << values[i];
+            return result;
+        }
+
+        private static Chunk fromWords(long[] words) {
+            Chunk chunk = new Chunk();
+            for (long word : words) chunk.cardinality += Long.bitCount(word);
+            if (chunk.cardinality > ARRAY_MAX) {
+                chunk.words = words;
+                chunk.values = null;
+                return chunk;
+            }
+            chunk.values = new char[Math.max(4, chunk.cardinality)];
+            int n = 0;
+            for (int i = 0; i < 1024; i++) {
+                for (long word = words[i]; word != 0; word &= word - 1) {
+                    chunk.values[n++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+                }
+            }
+            return chunk;
+        }
+    }
+}
+
+// ----------------------------------------------------------------
+// RESTYLE ENGINE (new default colors and fonts applied to many existing notes at once)
+//
+// plan() reads a document under its read lock, so it can run off the EDT, and records only the runs
+// still in the note's own default font family or size: text that was given another font keeps it,
+// and notes that already match are neither touched nor rewritten. apply() runs on the EDT and
+// re-plans a note that was edited since it was planned.
+class NoteRestyle {
+    private static final int FAMILY = 1;
+    private static final int SIZE = 2;
+
+    // null leaves that part of the notes as it is
+    final Color background;
+    final Color toolbar;
+    final String fontFamily;
+    final Integer fontSize;
+    // Attributes to set on a run, by FAMILY | SIZE
+    private final AttributeSet[] runAttributes = new AttributeSet[4];
+
+    NoteRestyle(Color background, Color toolbar, String fontFamily, Integer fontSize) {
+        this.background = background;
+        this.toolbar = toolbar;
+        this.fontFamily = fontFamily;
+        this.fontSize = fontSize;
+        if (fontFamily != null) runAttributes[FAMILY] = NoteStyleContext.attribute(StyleConstants.FontFamily, fontFamily);
+        if (fontSize != null) runAttributes[SIZE] = NoteStyleContext.attribute(StyleConstants.FontSize, fontSize);
+        if (fontFamily != null && fontSize != null) {
+            SimpleAttributeSet both = new SimpleAttributeSet(runAttributes[FAMILY]);
+            both.addAttributes(runAttributes[SIZE]);
+            runAttributes[FAMILY | SIZE] = both;
+        }
+    }
+
+    // The changes for one note, computed against one version of its document
+    static final class Plan {
+        final NoteModel note;
+        final long version;
+        // start, length and FAMILY | SIZE of each stretch of runs to change
+        final List<int[]> spans = new ArrayList<>();
+        boolean changesData;
+
+        Plan(NoteModel note, long version) {
+            this.note = note;
+            this.version = version;
+        }
+
+        boolean hasChanges() {
+            return changesData || !spans.isEmpty();
+        }
+    }
+
+    public Plan plan(NoteModel note) {
+        NoteData data = note.getNoteData();
+        Plan plan = new Plan(note, note.getVersion());
+        plan.changesData = (background != null && !background.equals(data.noteBackground))
+                || (toolbar != null && !toolbar.equals(data.toolbarColor))
+                || (fontFamily != null && !fontFamily.equals(data.fontFamily))
+                || (fontSize != null && fontSize != data.fontSize);
+        if (fontFamily == null && fontSize == null) return plan;
+
+        StyledDocument doc = note.getStyledDocument();
+        AbstractDocument locked = doc instanceof AbstractDocument ? (AbstractDocument) doc : null;
+        if (locked != null) locked.readLock();
+        try {
+            int length = doc.getLength();
+            Element root = doc.getDefaultRootElement();
+            int[] open = null;
+            for (int p = 0; p < root.getElementCount(); p++) {
+                Element paragraph = root.getElement(p);
+                for (int r = 0; r < paragraph.getElementCount(); r++) {
+                    Element run = paragraph.getElement(r);
+                    int start = run.getStartOffset(), end = Math.min(run.getEndOffset(), length);
+                    if (end <= start) continue;
+                    int change = changesFor(run.getAttributes(), data);
+                    if (open != null && open[2] == change && open[0] + open[1] == start) {
+                        open[1] = end - open[0];
+                    } else if (change != 0) {
+                        open = new int[] {start, end - start, change};
+                        plan.spans.add(open);
+                    } else {
+                        open = null;
+                    }
+                }
+            }
+        } finally {
+            if (locked != null) locked.readUnlock();
+        }
+        return plan;
+    }
+
+    // Runs without a family or size of their own count as being in the note's defaults
+    private int changesFor(AttributeSet attrs, NoteData data) {
+        int change = 0;
+        if (fontFamily != null) {
+            Object family = attrs.getAttribute(StyleConstants.FontFamily);
+            if ((family == null || family.equals(data.fontFamily)) && !fontFamily.equals(family)) change |= FAMILY;
+        }
+        if (fontSize != null) {
+            Object size = attrs.getAttribute(StyleConstants.FontSize);
+            if ((size == null || size.equals(data.fontSize)) && !fontSize.equals(size)) change |= SIZE;
+        }
+        return change;
+    }
+
+    // EDT only; returns the number of runs changed
+    public int apply(Plan plan) {
+        NoteModel note = plan.note;
+        if (note.getVersion() != plan.version) plan = plan(note);
+        StyledDocument doc = note.getStyledDocument();
+        for (int[] span : plan.spans) {
+            doc.setCharacterAttributes(span[0], span[1], runAttributes[span[2]], false);
+        }
+        NoteData data = note.getNoteData();
+        if (background != null) data.noteBackground = background;
+        if (toolbar != null) data.toolbarColor = toolbar;
+        if (fontFamily != null) data.fontFamily = fontFamily;
+        if (fontSize != null) data.fontSize = fontSize;
+        return plan.spans.size();
+    }
+}
+
+// ----------------------------------------------------------------
+// NOTE THUMBNAILS (miniature previews for the Notes List, rendered off the EDT)
+//
+// A thumbnail is drawn straight from the document and NoteData onto an image: background, toolbar
+// strip, title and the first lines with their fonts and colors, scaled down. Rendering runs on one
+// worker thread; finished images go into an LRU bounded by bytes, keyed by note id and checked
+// against the note's content version (bumped by NoteModel's DocumentListener) and a stamp of its
+// colors, fonts and title, so stale entries are never shown even before they are invalidated.
+class NoteThumbnails {
+    static final int WIDTH = 120;
+    static final int HEIGHT = 90;
+    private static final int TOOLBAR = 12;
+    private static final int PAD = 4;
+    private static final float SCALE = 0.45f;
+    private static final long MAX_BYTES = 32L << 20;
+
+    private static final class Entry {
+        final long version;
+        final int stamp;
+        final BufferedImage image;
+
+        Entry(long version, int stamp, BufferedImage image) {
+            this.version = version;
+            this.stamp = stamp;
+            this.image = image;
+        }
+
+        long bytes() {
+            return (long) image.getWidth() * image.getHeight() * 4;
+        }
+    }
+
+    // Guarded by this; access order, so the eldest entry is the least recently shown
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    // Requests not yet rendered and who is waiting for them (EDT only)
+    private final Map<String, List<Consumer<BufferedImage>>> waiting = new HashMap<>();
+    private final Map<String, Future<?>> queued = new HashMap<>();
+    private final ExecutorService renderer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "thumbnails");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // EDT only: a current thumbnail, or null after queueing one that is handed to ready on the EDT
+    public BufferedImage get(NoteModel note, Consumer<BufferedImage> ready) {
+        BufferedImage cached = lookup(note);
+        if (cached != null) return cached;
+        String id = note.getNoteData().id;
+        List<Consumer<BufferedImage>> callbacks = waiting.get(id);
+        if (callbacks != null) {
+            callbacks.add(ready);
+            return null;
+        }
+        callbacks = new ArrayList<>();
+        callbacks.add(ready);
+        waiting.put(id, callbacks);
+        queued.put(id, renderer.submit(() -> {
+            BufferedImage image = store(id, note);
+            SwingUtilities.invokeLater(() -> {
+                queued.remove(id);
+                List<Consumer<BufferedImage>> done = waiting.remove(id);
+                if (done != null) for (Consumer<BufferedImage> callback : done) callback.accept(image);
+            });
+        }));
+        return null;
+    }
+
+    // EDT only: drops requests nobody is waiting for any more, e.g. rows of a list that was refiltered
+    public void cancelPending() {
+        for (Future<?> future : queued.values()) future.cancel(false);
+        queued.clear();
+        waiting.clear();
+    }
+
+    public synchronized void invalidate(String id) {
+        Entry removed = cache.remove(id);
+        if (removed != null) bytes -= removed.bytes();
+    }
+
+    synchronized BufferedImage lookup(NoteModel note) {
+        Entry entry = cache.get(note.getNoteData().id);
+        if (entry == null || entry.version != note.getVersion() || entry.stamp != stamp(note.getNoteData())) return null;
+        return entry.image;
+    }
+
+    // Renders on the calling thread and caches the result
+    BufferedImage store(String id, NoteModel note) {
+        long version = note.getVersion();
+        int stamp = stamp(note.getNoteData());
+        BufferedImage image = render(note);
+        store(id, new Entry(version, stamp, image));
+        return image;
+    }
+
+    synchronized void store(String id, Entry entry) {
+        Entry previous = cache.put(id, entry);
+        if (previous != null) bytes -= previous.bytes();
+        bytes += entry.bytes();
+        Iterator<Entry> eldest = cache.values().iterator();
+        while (bytes > MAX_BYTES && eldest.hasNext()) {
+            bytes -= eldest.next().bytes();
+            eldest.remove();
+        }
+    }
+
+    // Everything besides the document that shows in a thumbnail
+    static int stamp(NoteData data) {
+        return Objects.hash(data.title, data.noteBackground, data.toolbarColor, data.fontFamily, data.fontSize);
+    }
+
+    static BufferedImage render(NoteModel note) {
+        NoteData data = note.getNoteData();
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setColor(data.noteBackground);
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        g.setColor(data.toolbarColor);
+        g.fillRect(0, 0, WIDTH, TOOLBAR);
+        g.setColor(Color.DARK_GRAY);
+        g.setFont(new Font(data.fontFamily, Font.BOLD, 9));
+        g.drawString(data.title, PAD, TOOLBAR - 2);
+
+        StyledDocument doc = note.getStyledDocument();
+        AbstractDocument locked = doc instanceof AbstractDocument ? (AbstractDocument) doc : null;
+        if (locked != null) locked.readLock();
+        try {
+            drawText(g, doc, data);
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        } finally {
+            if (locked != null) locked.readUnlock();
+            g.dispose();
+        }
+        return image;
+    }
+
+    // One word waiting for its line to be complete, so the line can share one baseline
+    private static final class Word {
+        final String text;
+        final int x;
+        final Font font;
+        final Color color;
+
+        Word(String text, int x, Font font, Color color) {
+            this.text = text;
+            this.x = x;
+            this.font = font;
+            this.color = color;
+        }
+    }
+
+    // Word-wrapped runs, each in its own scaled font and color, until the image is full
+    private static void drawText(Graphics2D g, StyledDocument doc, NoteData data) throws BadLocationException {
+        Map<AttributeSet, Font> fonts = new HashMap<>();
+        List<Word> line = new ArrayList<>();
+        int y = TOOLBAR + PAD;
+        Element root = doc.getDefaultRootElement();
+        for (int p = 0; p < root.getElementCount() && y < HEIGHT; p++) {
+            Element paragraph = root.getElement(p);
+            int x = PAD, ascent = 0, lineHeight = 0;
+            for (int r = 0; r < paragraph.getElementCount(); r++) {
+                Element run = paragraph.getElement(r);
+                int end = Math.min(run.getEndOffset(), doc.getLength());
+                if (end <= run.getStartOffset()) continue;
+                AttributeSet attrs = run.getAttributes();
+                Font font = fonts.computeIfAbsent(attrs.copyAttributes(), a -> scaledFont(a, data));
+                FontMetrics metrics = g.getFontMetrics(font);
+                Color color = attrs.isDefined(StyleConstants.Foreground) ? StyleConstants.getForeground(attrs) : Color.BLACK;
+                String text = doc.getText(run.getStartOffset(), end - run.getStartOffset()).replace("\n", "");
+                for (String word : text.split("(?<= )")) {
+                    int width = metrics.stringWidth(word);
+                    if (x + width > WIDTH - PAD && x > PAD) {
+                        drawLine(g, line, y + ascent);
+                        y += lineHeight;
+                        if (y >= HEIGHT) return;
+                        x = PAD;
+                        ascent = 0;
+                        lineHeight = 0;
+                    }
+                    ascent = Math.max(ascent, metrics.getAscent());
+                    lineHeight = Math.max(lineHeight, metrics.getHeight());
+                    line.add(new Word(word, x, font, color));
+                    x += width;
+                }
+            }
+            if (line.isEmpty()) {
+                y += g.getFontMetrics(fonts.computeIfAbsent(paragraph.getAttributes().copyAttributes(), a -> scaledFont(a, data))).getHeight();
+            } else {
+                drawLine(g, line, y + ascent);
+                y += lineHeight;
+            }
+        }
+    }
+
+    private static void drawLine(Graphics2D g, List<Word> line, int baseline) {
+        for (Word word : line) {
+            g.setFont(word.font);
+            g.setColor(word.color);
+            g.drawString(word.text, word.x, baseline);
+        }
+        line.clear();
+    }
+
+    private static Font scaledFont(AttributeSet attrs, NoteData data) {
+        String family = attrs.isDefined(StyleConstants.FontFamily) ? StyleConstants.getFontFamily(attrs) : data.fontFamily;
+        int size = attrs.isDefined(StyleConstants.FontSize) ? StyleConstants.getFontSize(attrs) : data.fontSize;
+        int style = (StyleConstants.isBold(attrs) ? Font.BOLD : 0) | (StyleConstants.isItalic(attrs) ? Font.ITALIC : 0);
+        return new Font(family, style, Math.max(5, Math.round(size * SCALE)));
+    }
+}
+
+// ----------------------------------------------------------------
+// DUPLICATE FINDER (MinHash signatures and locality-sensitive hashing)
+//
+// Each note's title and text are reduced to the set of its 5-character shingles, and the set to a
+// MinHash signature of HASHES values: the fraction of equal values estimates the Jaccard
+// similarity of two notes. Signatures are split into BANDS bands of ROWS values and only notes that
+// agree on a whole band become candidates, so pairs below about (1/BANDS)^(1/ROWS) = 0.71 are
+// rarely compared at all. Signatures are computed in parallel and kept per note until its content
+// version or title changes, so after an edit only that note is hashed again.
+class NoteDuplicates {
+    public static final double DEFAULT_THRESHOLD = 0.8;
+    private static final int SHINGLE = 5;
+    private static final int BANDS = 16;
+    private static final int ROWS = 8;
+    private static final int HASHES = BANDS * ROWS;
+    private static final long[] MULTIPLIERS = new long[HASHES];
+    private static final long[] ADDENDS = new long[HASHES];
+
+    static {
+        Random random = new Random(0x5eed);
+        for (int i = 0; i < HASHES; i++) {
+            MULTIPLIERS[i] = random.nextLong() | 1;
+            ADDENDS[i] = random.nextLong();
+        }
+    }
+
+    private static final class Signature {
+        final long version;
+        final String title;
+        final int[] values;
+
+        Signature(long version, String title, int[] values) {
+            this.version = version;
+            this.title = title;
+            this.values = values;
+        }
+    }
+
+    // A group of notes that are each at least threshold alike to the first, longest one
+    static final class Cluster {
+        final List<NoteModel> notes;
+        final double similarity;
+
+        Cluster(List<NoteModel> notes, double similarity) {
+            this.notes = notes;
+            this.similarity = similarity;
+        }
+    }
+
+    private final Map<String, Signature> signatures = new ConcurrentHashMap<>();
+
+    public void forget(String id) {
+        signatures.remove(id);
+    }
+
+    // Largest clusters first
+    public List<Cluster> find(List<NoteModel> notes, double threshold) {
+        List<int[]> sigs = new ArrayList<>(notes.size());
+        notes.parallelStream().map(this::signature).forEachOrdered(sigs::add);
+
+        Map<Long, List<Integer>> buckets = new HashMap<>();
+        for (int i = 0; i < sigs.size(); i++) {
+            int[] sig = sigs.get(i);
+            if (sig == null) continue;
+            for (int band = 0; band < BANDS; band++) {
+                long key = band;
+                for (int r = band * ROWS; r < (band + 1) * ROWS; r++) key = key * 0x9E3779B97F4A7C15L + sig[r];
+                buckets.computeIfAbsent(key, k -> new ArrayList<>(2)).add(i);
+            }
+        }
+
+        // Union-find over the candidate pairs that really are alike
+        int[] parent = new int[sigs.size()];
+        for (int i = 0; i < parent.length; i++) parent[i] = i;
+        int[] edges = new int[sigs.size()];
+        for (List<Integer> bucket : buckets.values()) {
+            for (int a = 0; a < bucket.size(); a++) {
+                for (int b = a + 1; b < bucket.size(); b++) {
+                    int i = bucket.get(a), j = bucket.get(b);
+                    int rootI = root(parent, i), rootJ = root(parent, j);
+                    if (rootI == rootJ) continue;
+                    double similarity = similarity(sigs.get(i), sigs.get(j));
+                    if (similarity < threshold) continue;
+                    parent[rootJ] = rootI;
+                    edges[rootI] += edges[rootJ] + 1;
+                }
+            }
+        }
+
+        Map<Integer, List<Integer>> groups = new HashMap<>();
+        for (int i = 0; i < parent.length; i++) {
+            int r = root(parent, i);
+            if (edges[r] > 0) groups.computeIfAbsent(r, k -> new ArrayList<>()).add(i);
+        }
+        // Linking is single linkage, so a chain A~B~C lands in one group even when A and C share
+        // little; split each group around its longest note so every member is alike to the one kept
+        List<Cluster> clusters = new ArrayList<>();
+        for (List<Integer> group : groups.values()) {
+            group.sort(Comparator.comparingInt((Integer i) -> -notes.get(i).getStyledDocument().getLength()));
+            while (group.size() > 1) {
+                int[] kept = sigs.get(group.get(0));
+                List<NoteModel> members = new ArrayList<>();
+                members.add(notes.get(group.get(0)));
+                double alike = 0;
+                Iterator<Integer> rest = group.iterator();
+                rest.next();
+                rest.remove();
+                while (rest.hasNext()) {
+                    int i = rest.next();
+                    double similarity = similarity(kept, sigs.get(i));
+                    if (similarity < threshold) continue;
+                    members.add(notes.get(i));
+                    alike += similarity;
+                    rest.remove();
+                }
+                if (members.size() > 1) clusters.add(new Cluster(members, alike / (members.size() - 1)));
+            }
+        }
+        clusters.sort(Comparator.comparingInt((Cluster c) -> -c.notes.size()).thenComparingDouble(c -> -c.similarity));
+        return clusters;
+    }
+
+    // The kept note followed by those of the others still at least threshold alike to it; notes
+    // can change between find and the delete or merge that acts on its clusters
+    public List<NoteModel> alikeTo(NoteModel kept, List<NoteModel> others, double threshold) {
+        List<NoteModel> alike = new ArrayList<>();
+        alike.add(kept);
+        int[] keptSig = signature(kept);
+        if (keptSig == null) return alike;
+        for (NoteModel other : others) {
+            if (other == kept) continue;
+            int[] sig = signature(other);
+            if (sig != null && similarity(keptSig, sig) >= threshold) alike.add(other);
+        }
+        return alike;
+    }
+
+    private static int root(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    static double similarity(int[] a, int[] b) {
+        int same = 0;
+        for (int i = 0; i < HASHES; i++) {
+            if (a[i] == b[i]) same++;
+        }
+        return (double) same / HASHES;
+    }
+
+    // null for a note without any text
+    int[] signature(NoteModel note) {
+        NoteData data = note.getNoteData();
+        long version = note.getVersion();
+        String title = data.title;
+        Signature cached = signatures.get(data.id);
+        if (cached != null && cached.version == version && cached.title.equals(title)) return cached.values;
+        int[] values = minHash(shingles(title + "\n" + textOf(note)));
+        signatures.put(data.id, new Signature(version, title, values));
+        return values;
+    }
+
+    private static String textOf(NoteModel note) {
+        StyledDocument doc = note.getStyledDocument();
+        AbstractDocument locked = doc instanceof AbstractDocument ? (AbstractDocument) doc : null;
+        if (locked != null) locked.readLock();
+        try {
+            return doc.getText(0, doc.getLength());
+        } catch (BadLocationException e) {
+            return "";
+        } finally {
+            if (locked != null) locked.readUnlock();
+        }
+    }
+
+    // Distinct hashes of the SHINGLE-character windows of the lower-cased, space-collapsed text
+    static int[] shingles(String text) {
+        StringBuilder normal = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            if (Character.isWhitespace(c)) {
+                if (normal.length() > 0 && normal.charAt(normal.length() - 1) != ' ') normal.append(' ');
+            } else {
+                normal.append(c);
+            }
+        }
+        int length = normal.length();
+        if (length > 0 && normal.charAt(length - 1) == ' ') length--;
+        if (length == 0) return new int[0];
+        int count = Math.max(1, length - SHINGLE + 1);
+        int[] hashes = new int[count];
+        for (int start = 0; start < count; start++) {
+            int h = 0;
+            for (int i = start; i < Math.min(start + SHINGLE, length); i++) h = h * 31 + normal.charAt(i);
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            hashes[start] = h;
+        }
+        Arrays.sort(hashes);
+        int distinct = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if (i == 0 || hashes[i] != hashes[i - 1]) hashes[distinct++] = hashes[i];
+        }
+        return Arrays.copyOf(hashes, distinct);
+    }
+
+    static int[] minHash(int[] shingles) {
+        if (shingles.length == 0) return null;
+        int[] values = new int[HASHES];
+        Arrays.fill(values, Integer.MAX_VALUE);
+        for (int shingle : shingles) {
+            long x = shingle & 0xffffffffL;
+            for (int i = 0; i < HASHES; i++) {
+                int h = (int) ((MULTIPLIERS[i] * x + ADDENDS[i]) >>> 33);
+                if (h < values[i]) values[i] = h;
+            }
+        }
+        return values;
+    }
+
+    // Appends the paragraphs of source that target does not have yet, keeping their formatting
+    static void appendMissingParagraphs(StyledDocument target, StyledDocument source) throws BadLocationException {
+        Set<String> present = new HashSet<>();
+        Element targetRoot = target.getDefaultRootElement();
+        for (int p = 0; p < targetRoot.getElementCount(); p++) present.add(paragraphText(target, targetRoot.getElement(p)));
+        Element root = source.getDefaultRootElement();
+        for (int p = 0; p < root.getElementCount(); p++) {
+            Element paragraph = root.getElement(p);
+            String text = paragraphText(source, paragraph);
+            if (text.isEmpty() || !present.add(text)) continue;
+            if (target.getLength() > 0) target.insertString(target.getLength(), "\n", null);
+            for (int r = 0; r < paragraph.getElementCount(); r++) {
+                Element run = paragraph.getElement(r);
+                int end = Math.min(run.getEndOffset(), source.getLength());
+                if (end <= run.getStartOffset()) continue;
+                String chunk = source.getText(run.getStartOffset(), end - run.getStartOffset()).replace("\n", "");
+                target.insertString(target.getLength(), chunk, run.getAttributes().copyAttributes());
+            }
+        }
+    }
+
+    private static String paragraphText(StyledDocument doc, Element paragraph) throws BadLocationException {
+        int end = Math.min(paragraph.getEndOffset(), doc.getLength());
+        return end <= paragraph.getStartOffset() ? "" : doc.getText(paragraph.getStartOffset(), end - paragraph.getStartOffset()).trim();
+    }
+}
+
+// ----------------------------------------------------------------
+// NOTE LAYOUT (quadtree over the bounds of visible note windows, across all screens)
+//
+// Each window is kept in the smallest node that fully contains it, and windows outside every
+// screen stay in the root, so a region query only visits the nodes that overlap the region.
+// Placement of new notes, snapping while dragging, tiling and cascading are all answered from
+// the index (EDT only).
+class NoteLayout {
+    private static final int NODE_CAPACITY = 8;
+    private static final int MAX_DEPTH = 10;
+    static final int SNAP_DISTANCE = 12;
+    static final int GAP = 8;
+    private static final int CASCADE_STEP = 30;
+    private static final int TILE_MIN_WIDTH = 160;
+    private static final int TILE_MIN_HEIGHT = 120;
+
+    private final Map<String, Rectangle> bounds = new HashMap<>();
+    private final Map<String, Node> nodes = new HashMap<>();
+    private Node root;
+
+    private static class Node {
+        final Rectangle area;
+        final int depth;
+        final List<String> ids = new ArrayList<>();
+        Node[] children;
+
+        Node(Rectangle area, int depth) {
+            this.area = area;
+            this.depth = depth;
+        }
+    }
+
+    // Covers the screens as they are when the first window is indexed
+    NoteLayout() {
+    }
+
+    NoteLayout(Rectangle world) {
+        root = new Node(world, 0);
+    }
+
+    // Usable area of each screen, without task bars and menu bars
+    static List<Rectangle> screenAreas() {
+        List<Rectangle> areas = new ArrayList<>();
+        if (GraphicsEnvironment.isHeadless()) return areas;
+        for (GraphicsDevice device : GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices()) {
+            GraphicsConfiguration config = device.getDefaultConfiguration();
+            Rectangle b = config.getBounds();
+            Insets insets = Toolkit.getDefaultToolkit().getScreenInsets(config);
+            areas.add(new Rectangle(b.x + insets.left, b.y + insets.top,
+                    b.width - insets.left - insets.right, b.height - insets.top - insets.bottom));
+        }
+        return areas;
+    }
+
+    static Rectangle areaAt(Point point, List<Rectangle> areas) {
+        for (Rectangle area : areas) {
+            if (area.contains(point)) return area;
+        }
+        return areas.get(0);
+    }
+
+    public void put(String id, Rectangle rect) {
+        remove(id);
+        if (root == null) {
+            Rectangle world = new Rectangle(0, 0, 1920, 1080);
+            for (Rectangle area : screenAreas()) world = world.union(area);
+            root = new Node(world, 0);
+        }
+        Rectangle copy = new Rectangle(rect);
+        bounds.put(id, copy);
+        insert(root, id, copy);
+    }
+
+    public void remove(String id) {
+        Node node = nodes.remove(id);
+        if (node != null) node.ids.remove(id);
+        bounds.remove(id);
+    }
+
+    public Rectangle getBounds(String id) {
+        return bounds.get(id);
+    }
+
+    public int size() {
+        return bounds.size();
+    }
+
+    // Ids of the windows that overlap region
+    public List<String> query(Rectangle region) {
+        List<String> found = new ArrayList<>();
+        if (root != null) query(root, region, found);
+        return found;
+    }
+
+    private void insert(Node node, String id, Rectangle rect) {
+        while (node.children != null) {
+            Node child = childContaining(node, rect);
+            if (child == null) break;
+            node = child;
+        }
+        node.ids.add(id);
+        nodes.put(id, node);
+        if (node.children == null && node.ids.size() > NODE_CAPACITY && node.depth < MAX_DEPTH) {
+            split(node);
+        }
+    }
+
+    private void split(Node node) {
+        Rectangle a = node.area;
+        int halfW = a.width / 2, halfH = a.height / 2;
+        node.children = new Node[] {
+                new Node(new Rectangle(a.x, a.y, halfW, halfH), node.depth + 1),
+                new Node(new Rectangle(a.x + halfW, a.y, a.width - halfW, halfH), node.depth + 1),
+                new Node(new Rectangle(a.x, a.y + halfH, halfW, a.height - halfH), node.depth + 1),
+                new Node(new Rectangle(a.x + halfW, a.y + halfH, a.width - halfW, a.height - halfH), node.depth + 1)};
+        for (Iterator<String> it = node.ids.iterator(); it.hasNext(); ) {
+            String id = it.next();
+            Node child = childContaining(node, bounds.get(id));
+            if (child != null) {
+                it.remove();
+                child.ids.add(id);
+                nodes.put(id, child);
+            }
+        }
+    }
+
+    private static Node childContaining(Node node, Rectangle rect) {
+        for (Node child : node.children) {
+            if (child.area.contains(rect)) return child;
+        }
+        return null;
+    }
+
+    private void query(Node node, Rectangle region, List<String> found) {
+        for (String id : node.ids) {
+            if (bounds.get(id).intersects(region)) found.add(id);
+        }
+        if (node.children != null) {
+            for (Node child : node.children) {
+                if (child.area.intersects(region)) query(child, region, found);
+            }
+        }
+    }
+
+    private boolean overlapsAny(Node node, Rectangle region) {
+        for (String id : node.ids) {
+            if (bounds.get(id).intersects(region)) return true;
+        }
+        if (node.children != null) {
+            for (Node child : node.children) {
+                if (child.area.intersects(region) && overlapsAny(child, region)) return true;
+            }
+        }
+        return false;
+    }
+
+    // Top-left corner for a width x height note on area that keeps GAP clear of every window,
+    // trying the area's corner and the spots right of and below each window on it (top rows
+    // first); null when the area is full
+    public Point findFreeSpot(Rectangle area, int width, int height) {
+        List<Point> candidates = new ArrayList<>();
+        candidates.add(new Point(area.x + GAP, area.y + GAP));
+        for (String id : query(area)) {
+            Rectangle r = bounds.get(id);
+            candidates.add(new Point(r.x + r.width + GAP, r.y));
+            candidates.add(new Point(r.x, r.y + r.height + GAP));
+            candidates.add(new Point(area.x + GAP, r.y + r.height + GAP));
+        }
+        candidates.sort(Comparator.comparingInt((Point p) -> p.y).thenComparingInt(p -> p.x));
+        for (Point p : candidates) {
+            if (!area.contains(new Rectangle(p.x, p.y, width, height))) continue;
+            Rectangle clearance = new Rectangle(p.x - GAP + 1, p.y - GAP + 1, width + 2 * GAP - 2, height + 2 * GAP - 2);
+            if (root == null || !overlapsAny(root, clearance)) return p;
+        }
+        return null;
+    }
+
+    // A free spot on area, or the next cascade step from its corner when it is full
+    public Point place(Rectangle area, int width, int height) {
+        Point free = findFreeSpot(area, width, height);
+        if (free != null) return free;
+        int steps = Math.max(1, Math.min((area.width - width) / CASCADE_STEP, (area.height - height) / CASCADE_STEP));
+        int step = size() % steps;
+        return new Point(area.x + GAP + step * CASCADE_STEP, area.y + GAP + step * CASCADE_STEP);
+    }
+
+    // Where a window being dragged to proposed should go so that edges within SNAP_DISTANCE of a
+    // neighbour's edges line up with them (GAP apart when side by side), or with the screen's edges
+    public Point snap(String id, Rectangle proposed, Rectangle area) {
+        int reach = SNAP_DISTANCE + GAP;
+        Rectangle near = new Rectangle(proposed.x - reach, proposed.y - reach,
+                proposed.width + 2 * reach, proposed.height + 2 * reach);
+        int left = proposed.x, right = proposed.x + proposed.width;
+        int top = proposed.y, bottom = proposed.y + proposed.height;
+        int dx = nearest(SNAP_DISTANCE + 1, area.x - left, area.x + area.width - right);
+        int dy = nearest(SNAP_DISTANCE + 1, area.y - top, area.y + area.height - bottom);
+        for (String other : query(near)) {
+            if (other.equals(id)) continue;
+            Rectangle o = bounds.get(other);
+            if (o.y < bottom + SNAP_DISTANCE && top < o.y + o.height + SNAP_DISTANCE) {
+                dx = nearest(dx, o.x + o.width + GAP - left, o.x - GAP - right, o.x - left, o.x + o.width - right);
+            }
+            if (o.x < right + SNAP_DISTANCE && left < o.x + o.width + SNAP_DISTANCE) {
+                dy = nearest(dy, o.y + o.height + GAP - top, o.y - GAP - bottom, o.y - top, o.y + o.height - bottom);
+            }
+        }
+        return new Point(left + (Math.abs(dx) <= SNAP_DISTANCE ? dx : 0), top + (Math.abs(dy) <= SNAP_DISTANCE ? dy : 0));
+    }
+
+    private static int nearest(int best, int... offsets) {
+        for (int offset : offsets) {
+            if (Math.abs(offset) < Math.abs(best)) best = offset;
+        }
+        return best;
+    }
+
+    // New bounds for every indexed window: a grid per screen when tiling, keeping sizes when
+    // cascading. Windows off every screen join the first one.
+    public Map<String, Rectangle> arrange(List<Rectangle> areas, boolean tile) {
+        Map<String, Rectangle> arranged = new LinkedHashMap<>();
+        if (areas.isEmpty()) return arranged;
+        Map<Rectangle, List<String>> byArea = new LinkedHashMap<>();
+        for (Rectangle area : areas) byArea.put(area, new ArrayList<>());
+        for (Map.Entry<String, Rectangle> entry : bounds.entrySet()) {
+            Rectangle r = entry.getValue();
+            byArea.get(areaAt(new Point((int) r.getCenterX(), (int) r.getCenterY()), areas)).add(entry.getKey());
+        }
+        for (Map.Entry<Rectangle, List<String>> entry : byArea.entrySet()) {
+            List<String> ids = entry.getValue();
+            ids.sort(Comparator.comparingInt((String id) -> bounds.get(id).y).thenComparingInt(id -> bounds.get(id).x));
+            if (tile) {
+                tile(ids, entry.getKey(), arranged);
+            } else {
+                cascade(ids, entry.getKey(), arranged);
+            }
+        }
+        return arranged;
+    }
+
+    // Cells fill the area but stay readable; what does not fit starts another grid a step down
+    private static void tile(List<String> ids, Rectangle area, Map<String, Rectangle> arranged) {
+        if (ids.isEmpty()) return;
+        int maxCols = Math.max(1, area.width / TILE_MIN_WIDTH);
+        int maxRows = Math.max(1, area.height / TILE_MIN_HEIGHT);
+        int onPage = Math.min(ids.size(), maxCols * maxRows);
+        int cols = Math.max(1, Math.min(maxCols, (int) Math.ceil(Math.sqrt(onPage * (double) area.width / area.height))));
+        int rows = Math.min(maxRows, (onPage + cols - 1) / cols);
+        int cellW = area.width / cols, cellH = area.height / rows;
+        for (int i = 0; i < ids.size(); i++) {
+            int page = i / (cols * rows), k = i % (cols * rows);
+            arranged.put(ids.get(i), new Rectangle(area.x + (k % cols) * cellW + GAP / 2 + page * CASCADE_STEP,
+                    area.y + (k / cols) * cellH + GAP / 2 + page * CASCADE_STEP, cellW - GAP, cellH - GAP));
+        }
+    }
+
+    private void cascade(List<String> ids, Rectangle area, Map<String, Rectangle> arranged) {
+        int x = area.x + GAP, y = area.y + GAP, column = 0;
+        for (String id : ids) {
+            Rectangle r = bounds.get(id);
+            if (y + r.height > area.y + area.height || x + r.width > area.x + area.width) {
+                column++;
+                x = area.x + GAP + column * CASCADE_STEP * 2;
+                y = area.y + GAP;
+                if (x + r.width > area.x + area.width) {
+                    column = 0;
+                    x = area.x + GAP;
+                }
+            }
+            arranged.put(id, new Rectangle(x, y, r.width, r.height));
+            x += CASCADE_STEP;
+            y += CASCADE_STEP;
+        }
+    }
+}
+
+// ----------------------------------------------------------------
+// REMINDER SCHEDULER (one thread and a hierarchical timing wheel for every note's reminders)
+//
+// LEVELS wheels of WHEEL_SIZE slots; a slot on level l spans WHEEL_SIZE^l ticks. A timer goes in
+// the lowest level whose range covers its due tick and moves down a level each time the wheel
+// above turns past it, so scheduling and cancelling are O(1) however many timers are pending.
+// Ticks are wall-clock time, so after the computer sleeps (or the clock is changed) the wheel is
+// rebuilt around the current time and everything overdue fires at once.
+class ReminderScheduler {
+    static final long TICK_MS = 100;
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int LEVELS = 5;
+
+    private static class Timer {
+        final String key;
+        final long dueTick;
+        Timer prev;
+        Timer next;
+        Timer[] slot;  // one-element array holding the head of the list this timer is in
+
+        Timer(String key, long dueTick) {
+            this.key = key;
+            this.dueTick = dueTick;
+        }
+    }
+
+    private final Timer[][][] wheels = new Timer[LEVELS][WHEEL_SIZE][1];
+    // Beyond the top level's range (years); moved into the wheels whenever the top level turns
+    private final Timer[] overflow = new Timer[1];
+    private final Map<String, Timer> timers = new HashMap<>();
+    private final Consumer<String> onDue;
+    private long currentTick = System.currentTimeMillis() / TICK_MS;
+
+    ReminderScheduler(Consumer<String> onDue) {
+        this.onDue = onDue;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::run, "reminders");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Replaces any timer already under key
+    public synchronized void schedule(String key, long dueMillis) {
+        cancel(key);
+        Timer timer = new Timer(key, (dueMillis + TICK_MS - 1) / TICK_MS);
+        timers.put(key, timer);
+        place(timer, 1);
+        notifyAll();
+    }
+
+    public synchronized boolean cancel(String key) {
+        Timer timer = timers.remove(key);
+        if (timer == null) return false;
+        unlink(timer);
+        return true;
+    }
+
+    public synchronized int size() {
+        return timers.size();
+    }
+
+    private void run() {
+        while (true) {
+            for (String key : advanceTo(System.currentTimeMillis())) {
+                try {
+                    onDue.accept(key);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                synchronized (this) {
+                    if (timers.isEmpty()) {
+                        wait();
+                    } else {
+                        wait(TICK_MS - System.currentTimeMillis() % TICK_MS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Turns the wheels to nowMillis and returns the keys of the timers that came due
+    synchronized List<String> advanceTo(long nowMillis) {
+        List<String> due = new ArrayList<>();
+        long target = nowMillis / TICK_MS;
+        if (target < currentTick || target - currentTick > WHEEL_SIZE) {
+            // Slept, or the clock moved: cheaper to re-place every timer than to turn tick by tick
+            List<Timer> all = new ArrayList<>(timers.values());
+            for (Timer timer : all) unlink(timer);
+            currentTick = target;
+            for (Timer timer : all) {
+                if (timer.dueTick <= target) {
+                    timers.remove(timer.key);
+                    due.add(timer.key);
+                } else {
+                    place(timer, 1);
+                }
+            }
+            return due;
+        }
+        while (currentTick < target) {
+            currentTick++;
+            // Higher levels first, so timers cascading into a lower level's current slot move on again
+            for (int level = LEVELS - 1; level >= 1; level--) {
+                if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0) continue;
+                if (level == LEVELS - 1) cascade(overflow);
+                cascade(wheels[level][(int) (currentTick >>> (WHEEL_BITS * level)) & (WHEEL_SIZE - 1)]);
+            }
+            Timer[] slot = wheels[0][(int) currentTick & (WHEEL_SIZE - 1)];
+            while (slot[0] != null) {
+                Timer timer = slot[0];
+                unlink(timer);
+                timers.remove(timer.key);
+                due.add(timer.key);
+            }
+        }
+        return due;
+    }
+
+    private void cascade(Timer[] slot) {
+        Timer timer = slot[0];
+        slot[0] = null;
+        while (timer != null) {
+            Timer next = timer.next;
+            timer.prev = timer.next = null;
+            timer.slot = null;
+            place(timer, 0);
+            timer = next;
+        }
+    }
+
+    // Cascading timers may land in the slot about to fire (minDelta 0); newly scheduled overdue
+    // ones go in the next slot to turn (minDelta 1), since the current one has already fired
+    private void place(Timer timer, long minDelta) {
+        long delta = Math.max(minDelta, timer.dueTick - currentTick);
+        long tick = currentTick + delta;
+        Timer[] slot = overflow;
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (WHEEL_BITS * (level + 1))) {
+                slot = wheels[level][(int) (tick >>> (WHEEL_BITS * level)) & (WHEEL_SIZE - 1)];
+                break;
+            }
+        }
+        timer.slot = slot;
+        timer.next = slot[0];
+        if (slot[0] != null) slot[0].prev = timer;
+        slot[0] = timer;
+    }
+
+    private static void unlink(Timer timer) {
+        if (timer.slot == null) return;
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            timer.slot[0] = timer.next;
+        }
+        if (timer.next != null) timer.next.prev = timer.prev;
+        timer.prev = timer.next = null;
+        timer.slot = null;
+    }
+}
+
+// ----------------------------------------------------------------
+// SINGLE INSTANCE (FileChannel lock in the data directory plus a loopback hand-off socket)
+class SingleInstance {
+    private static final String LOCK_FILE = "notes.lock";
+    private static final String PORT_FILE = "notes.port";
+    private static final int HANDOFF_TIMEOUT_MS = 2000;
+
+    private static FileChannel lockChannel;
+    private static FileLock lock;
+    private static ServerSocket server;
+
+    // Returns true if this process now owns the store in dataDir
+    public static synchronized boolean acquire(File dataDir) {
+        if (lock != null) return true;
+        try {
+            dataDir.mkdirs();
+            lockChannel = FileChannel.open(new File(dataDir, LOCK_FILE).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lock = lockChannel.tryLock();
+        } catch (IOException | OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null && lockChannel != null) {
+            try { lockChannel.close(); } catch (IOException ignored) { }
+            lockChannel = null;
+        }
+        return lock != null;
+    }
+
+    // Accepts commands from later launches; the port and a one-time token go into the data directory
+    public static void listen(File dataDir, Consumer<String> handler) {
+        String token = UUID.randomUUID().toString();
+        File portFile = new File(dataDir, PORT_FILE);
+        try {
+            server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            // Holds the token, so only the owner may read it
+            NoteStore.writeOwnerOnly(portFile, (server.getLocalPort() + "\n" + token + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(portFile::delete));
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try (Socket socket = server.accept()) {
+                    socket.setSoTimeout(HANDOFF_TIMEOUT_MS);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                    if (!token.equals(in.readLine())) continue;
+                    String command = in.readLine();
+                    if (command != null) handler.accept(command);
+                    out.write("ok\n");
+                    out.flush();
+                } catch (IOException e) {
+                    if (!server.isClosed()) e.printStackTrace();
+                }
+            }
+        }, "single-instance");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // Sends a command to the instance that owns dataDir; returns false if nothing answered
+    public static boolean send(File dataDir, String command) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(new File(dataDir, PORT_FILE).toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return false;
+        }
+        if (lines.size() < 2) return false;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(lines.get(0).trim())),
+                    HANDOFF_TIMEOUT_MS);
+            socket.setSoTimeout(HANDOFF_TIMEOUT_MS);
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            out.write(lines.get(1) + "\n" + command + "\n");
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            return "ok".equals(in.readLine());
+        } catch (IOException | NumberFormatException e) {
+            return false;
+        }
+    }
+}
+
+// ----------------------------------------------------------------
+// NOTE DATA MODEL (with minWidth and minHeight to enforce lower bound)
+class NoteData {
+    public String id;
+    public String title;
+    public String content;
+    public int x;
+    public int y;
+    public int width;
+    public int height;
+    public boolean isLocked;
+    public boolean alwaysOnTop;
+    public float transparency;
+    public Color noteBackground;
+    public Color toolbarColor;
+    public String fontFamily;
+    public int fontSize;
+    public int minWidth;
+    public int minHeight;
+    // Reminders, as epoch milliseconds (0 = none): remindAt brings the note to the front, every
+    // repeatMillis after that if set; hideAt hides it, showForMillis after each reminder if set
+    public long remindAt;
+    public long repeatMillis;
+    public long hideAt;
+    public long showForMillis;
+    // Lower-case tags, and the notebook the note is filed in ("" = none)
+    public Set<String> tags = new TreeSet<>();
+    public String notebook = "";
+    // Live Markdown and code highlighting in the note window (display only, never saved into the text)
+    public boolean markdown;
+
+    public NoteData copy() {
+        NoteData copy = new NoteData();
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    public void copyFrom(NoteData other) {
+        id = other.id;
+        title = other.title;
+        content = other.content;
+        x = other.x;
+        y = other.y;
+        width = other.width;
+        height = other.height;
+        isLocked = other.isLocked;
+        alwaysOnTop = other.alwaysOnTop;
+        transparency = other.transparency;
+        noteBackground = other.noteBackground;
+        toolbarColor = other.toolbarColor;
+        fontFamily = other.fontFamily;
+        fontSize = other.fontSize;
+        minWidth = other.minWidth;
+        minHeight = other.minHeight;
+        remindAt = other.remindAt;
+        repeatMillis = other.repeatMillis;
+        hideAt = other.hideAt;
+        showForMillis = other.showForMillis;
+        tags = new TreeSet<>(other.tags);
+        notebook = other.notebook;
+        markdown = other.markdown;
+    }
+}
+
+// ----------------------------------------------------------------
+// MARKDOWN HIGHLIGHTING (live Markdown and fenced-code styling in a note window)
+//
+// The highlighting lives in the views, never in the document, so it does not bump the note's
+// version or reach the RTF files, sync or the change feed. Kit gives the pane a paragraph view
+// whose flow strategy cuts runs at token boundaries and a label view that lays the token's style
+// over the run's own attributes. An edit only records the damaged range; a coalescing timer then
+// re-lexes those paragraphs, and the ones after them for as long as a fenced block's open/closed
+// state keeps changing, CHUNK_LINES at a time on the EDT, and lays out just that range again.
+class NoteHighlighter implements DocumentListener {
+    static final int COALESCE_MS = 40;
+    static final int CHUNK_LINES = 400;
+
+    // Token kinds, as indexes into STYLES
+    static final int HEADING = 0, STRONG = 1, EMPHASIS = 2, CODE = 3, FENCE = 4, QUOTE = 5, LIST = 6, LINK = 7,
+            KEYWORD = 8, STRING = 9, COMMENT = 10, NUMBER = 11;
+
+    private static final Color CODE_BACKGROUND = new Color(0, 0, 0, 22);
+    private static final AttributeSet[] STYLES = {
+            style(StyleConstants.Bold, true, StyleConstants.Foreground, new Color(0x1F3A93)),
+            style(StyleConstants.Bold, true),
+            style(StyleConstants.Italic, true),
+            style(StyleConstants.FontFamily, Font.MONOSPACED, StyleConstants.Background, CODE_BACKGROUND),
+            style(StyleConstants.FontFamily, Font.MONOSPACED, StyleConstants.Foreground, Color.GRAY),
+            style(StyleConstants.Italic, true, StyleConstants.Foreground, new Color(0x5F6B73)),
+            style(StyleConstants.Bold, true, StyleConstants.Foreground, new Color(0xB5651D)),
+            style(StyleConstants.Underline, true, StyleConstants.Foreground, new Color(0x1565C0)),
+            style(StyleConstants.FontFamily, Font.MONOSPACED, StyleConstants.Background, CODE_BACKGROUND,
+                    StyleConstants.Bold, true, StyleConstants.Foreground, new Color(0x7A1FA2)),
+            style(StyleConstants.FontFamily, Font.MONOSPACED, StyleConstants.Background, CODE_BACKGROUND,
+                    StyleConstants.Foreground, new Color(0x2E7D32)),
+            style(StyleConstants.FontFamily, Font.MONOSPACED, StyleConstants.Background, CODE_BACKGROUND,
+                    StyleConstants.Italic, true, StyleConstants.Foreground, Color.GRAY),
+            style(StyleConstants.FontFamily, Font.MONOSPACED, StyleConstants.Background, CODE_BACKGROUND,
+                    StyleConstants.Foreground, new Color(0xC62828)),
+    };
+
+    // Keywords of the languages notes most often quote, highlighted inside fenced blocks
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+            "abstract", "as", "async", "await", "boolean", "break", "case", "catch", "char", "class", "const",
+            "continue", "def", "default", "do", "double", "elif", "else", "enum", "except", "export", "extends",
+            "false", "False", "final", "finally", "float", "fn", "for", "from", "func", "function", "if",
+            "implements", "import", "in", "instanceof", "int", "interface", "is", "lambda", "let", "long", "new",
+            "nil", "None", "not", "null", "package", "pass", "private", "protected", "public", "raise", "return",
+            "self", "static", "struct", "super", "switch", "this", "throw", "throws", "true", "True", "try",
+            "type", "var", "void", "while", "with", "yield"));
+
+    private final JTextPane pane;
+    private final AbstractDocument document;
+    // Paragraph element -> its tokens; read by the views, written by relex(), both on the EDT
+    private final Map<Element, Line> lines = new WeakHashMap<>();
+    // Run attributes with each token style laid over them, keyed by the run's pooled set rather than
+    // its element (views hand over the element itself), and weakly, so sets no run uses any more go
+    private final Map<AttributeSet, AttributeSet[]> overlays = new WeakHashMap<>();
+    private final Segment text = new Segment();
+    private final javax.swing.Timer timer = new javax.swing.Timer(COALESCE_MS, e -> relex());
+    // Range still to re-lex, carried through later edits by the document (null = none)
+    private Position damageStart, damageEnd;
+
+    // One paragraph's tokens as (start, end, kind) triples relative to its start, the kind of the
+    // text between them (-1 = plain), and whether a fenced block was open before and after it
+    private static final class Line {
+        final int[] tokens;
+        final int base;
+        final boolean startsInFence;
+        final boolean inFence;
+
+        Line(int[] tokens, int base, boolean startsInFence, boolean inFence) {
+            this.tokens = tokens;
+            this.base = base;
+            this.startsInFence = startsInFence;
+            this.inFence = inFence;
+        }
+
+        // Index of the first token that ends after rel, or tokens.length
+        int next(int rel) {
+            int lo = 0, hi = tokens.length / 3;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (tokens[mid * 3 + 1] <= rel) lo = mid + 1; else hi = mid;
+            }
+            return lo * 3;
+        }
+    }
+
+    private static final class Tokens {
+        int[] values = new int[24];
+        int size;
+
+        void add(int start, int end, int kind) {
+            if (size + 3 > values.length) values = Arrays.copyOf(values, values.length * 2);
+            values[size++] = start;
+            values[size++] = end;
+            values[size++] = kind;
+        }
+    }
+
+    NoteHighlighter(JTextPane pane) {
+        this.pane = pane;
+        this.document = (AbstractDocument) pane.getStyledDocument();
+        timer.setRepeats(false);
+    }
+
+    public void start() {
+        document.putProperty(NoteHighlighter.class, this);
+        document.addDocumentListener(this);
+        damage(0, document.getLength());
+    }
+
+    public void stop() {
+        timer.stop();
+        document.removeDocumentListener(this);
+        document.putProperty(NoteHighlighter.class, null);
+        damageStart = damageEnd = null;
+        lines.clear();
+        overlays.clear();
+        relayout(0, document.getLength());
+    }
+
+    public void insertUpdate(DocumentEvent e) { damage(e.getOffset(), e.getOffset() + e.getLength()); }
+    public void removeUpdate(DocumentEvent e) { damage(e.getOffset(), e.getOffset()); }
+    public void changedUpdate(DocumentEvent e) { }
+
+    private void damage(int start, int end) {
+        if (damageStart != null) {
+            start = Math.min(start, damageStart.getOffset());
+            end = Math.max(end, damageEnd.getOffset());
+        }
+        try {
+            damageStart = document.createPosition(start);
+            damageEnd = document.createPosition(end);
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+        if (!timer.isRunning()) timer.start();
+    }
+
+    // Re-lexes up to CHUNK_LINES damaged paragraphs, lays them out again and queues the rest
+    private void relex() {
+        if (damageStart == null) return;
+        int from, to;
+        document.readLock();
+        try {
+            Element root = document.getDefaultRootElement();
+            int count = root.getElementCount();
+            int first = root.getElementIndex(damageStart.getOffset()), last = root.getElementIndex(damageEnd.getOffset());
+            Line before = first > 0 ? lines.get(root.getElement(first - 1)) : null;
+            boolean inFence = before != null && before.inFence;
+            boolean settled = false;
+            int i = first;
+            for (int budget = CHUNK_LINES; i < count && budget > 0 && !settled; i++, budget--) {
+                Element paragraph = root.getElement(i);
+                int start = paragraph.getStartOffset(), end = Math.min(paragraph.getEndOffset() - 1, document.getLength());
+                document.getText(start, end - start, text);
+                Line line = lex(text, inFence);
+                lines.put(paragraph, line);
+                inFence = line.inFence;
+                // Past the edit the text is unchanged, so once the next paragraph was lexed from
+                // the same fence state everything after it still holds
+                if (i >= last) {
+                    Line next = i + 1 < count ? lines.get(root.getElement(i + 1)) : null;
+                    settled = i + 1 == count || next != null && next.startsInFence == inFence;
+                }
+            }
+            from = root.getElement(first).getStartOffset();
+            to = Math.min(root.getElement(i - 1).getEndOffset(), document.getLength());
+            if (settled || i == count) {
+                damageStart = damageEnd = null;
+            } else {
+                damageStart = document.createPosition(root.getElement(i).getStartOffset());
+                if (damageEnd.getOffset() < damageStart.getOffset()) damageEnd = damageStart;
+            }
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+            damageStart = damageEnd = null;
+            return;
+        } finally {
+            document.readUnlock();
+        }
+        relayout(from, to);
+        if (damageStart != null && !timer.isRunning()) SwingUtilities.invokeLater(this::relex);
+    }
+
+    // Sends the views a change event for the range so they pick up the new token styles
+    private void relayout(int from, int to) {
+        View root = pane.getUI().getRootView(pane);
+        Insets insets = pane.getInsets();
+        Rectangle alloc = pane.getWidth() > 0 ? new Rectangle(insets.left, insets.top,
+                pane.getWidth() - insets.left - insets.right, pane.getHeight() - insets.top - insets.bottom) : null;
+        document.readLock();
+        try {
+            root.changedUpdate(document.new DefaultDocumentEvent(from, to - from, DocumentEvent.EventType.CHANGE),
+                    alloc, root.getViewFactory());
+        } finally {
+            document.readUnlock();
+        }
+    }
+
+    // A run's attributes with the style of the token at offset laid over them
+    AttributeSet attributesAt(Element paragraph, int offset, AttributeSet attrs) {
+        Line line = lines.get(paragraph);
+        if (line == null) return attrs;
+        int rel = offset - paragraph.getStartOffset(), k = line.next(rel);
+        int kind = k < line.tokens.length && line.tokens[k] <= rel ? line.tokens[k + 2] : line.base;
+        if (kind < 0) return attrs;
+        AttributeSet[] styled = overlays.computeIfAbsent(attrs.copyAttributes(), a -> new AttributeSet[STYLES.length]);
+        if (styled[kind] == null) styled[kind] = NoteStyleContext.overlay(attrs, STYLES[kind]);
+        return styled[kind];
+    }
+
+    // Where a run starting at offset has to end to stay within one token, at most limit
+    int boundary(Element paragraph, int offset, int limit) {
+        Line line = lines.get(paragraph);
+        if (line == null) return limit;
+        int start = paragraph.getStartOffset(), rel = offset - start, k = line.next(rel);
+        if (k == line.tokens.length) return limit;
+        int end = start + (line.tokens[k] <= rel ? line.tokens[k + 1] : line.tokens[k]);
+        return Math.max(offset + 1, Math.min(end, limit));
+    }
+
+    static Line lex(CharSequence s, boolean inFence) {
+        Tokens out = new Tokens();
+        int n = s.length(), i = 0;
+        while (i < n && i < 3 && s.charAt(i) == ' ') i++;
+        if (startsWith(s, i, "```") || startsWith(s, i, "~~~")) return line(out, FENCE, inFence, !inFence);
+        if (inFence) {
+            lexCode(s, out);
+            return line(out, CODE, true, true);
+        }
+        int hashes = i;
+        while (hashes < n && s.charAt(hashes) == '#') hashes++;
+        if (hashes > i && hashes - i <= 6 && (hashes == n || s.charAt(hashes) == ' ')) return line(out, HEADING, false, false);
+        int base = -1;
+        if (i < n && s.charAt(i) == '>') {
+            base = QUOTE;
+            for (i++; i < n && s.charAt(i) == ' '; i++) { }
+        }
+        int marker = listMarker(s, i);
+        if (marker > i) {
+            out.add(i, marker, LIST);
+            i = marker;
+        }
+        lexInline(s, i, out);
+        return line(out, base, false, false);
+    }
+
+    private static Line line(Tokens out, int base, boolean startsInFence, boolean inFence) {
+        return new Line(Arrays.copyOf(out.values, out.size), base, startsInFence, inFence);
+    }
+
+    // End of a "- ", "* ", "+ ", "1. " or "1) " list marker at i, or i if there is none
+    private static int listMarker(CharSequence s, int i) {
+        int n = s.length(), j = i;
+        if (j < n && "-*+".indexOf(s.charAt(j)) >= 0) {
+            j++;
+        } else {
+            while (j < n && j - i < 9 && Character.isDigit(s.charAt(j))) j++;
+            if (j == i || j == n || (s.charAt(j) != '.' && s.charAt(j) != ')')) return i;
+            j++;
+        }
+        return j < n && s.charAt(j) == ' ' ? j + 1 : i;
+    }
+
+    // `code`, **strong**, __strong__, *emphasis*, _emphasis_, [links](url) and bare http(s) URLs
+    private static void lexInline(CharSequence s, int i, Tokens out) {
+        int n = s.length();
+        while (i < n) {
+            char c = s.charAt(i);
+            int end = -1, kind = -1;
+            if (c == '`') {
+                end = indexOf(s, "`", i + 1);
+                if (end >= 0) end++;
+                kind = CODE;
+            } else if ((c == '*' || c == '_') && i + 1 < n && s.charAt(i + 1) == c) {
+                end = indexOf(s, c == '*' ? "**" : "__", i + 2);
+                end = end > i + 2 ? end + 2 : -1;
+                kind = STRONG;
+            } else if ((c == '*' || c == '_') && i + 1 < n && s.charAt(i + 1) != ' '
+                    && (c == '*' || i == 0 || !Character.isLetterOrDigit(s.charAt(i - 1)))) {
+                end = indexOf(s, String.valueOf(c), i + 1);
+                end = end > i + 1 ? end + 1 : -1;
+                kind = EMPHASIS;
+            } else if (c == '[') {
+                int close = indexOf(s, "](", i + 1);
+                end = close < 0 ? -1 : indexOf(s, ")", close + 2);
+                if (end >= 0) end++;
+                kind = LINK;
+            } else if (c == 'h' && (i == 0 || Character.isWhitespace(s.charAt(i - 1)))
+                    && (startsWith(s, i, "http://") || startsWith(s, i, "https://"))) {
+                for (end = i; end < n && !Character.isWhitespace(s.charAt(end)); end++) { }
+                kind = LINK;
+            }
+            if (end > i) {
+                out.add(i, end, kind);
+                i = end;
+            } else {
+                i++;
+            }
+        }
+    }
+
+    // Keywords, strings, numbers and // # /* */ comments on one line of a fenced block
+    private static void lexCode(CharSequence s, Tokens out) {
+        int n = s.length(), i = 0;
+        while (i < n) {
+            char c = s.charAt(i);
+            int start = i;
+            if (c == '#' || c == '/' && startsWith(s, i, "//")) {
+                out.add(i, n, COMMENT);
+                return;
+            } else if (c == '/' && startsWith(s, i, "/*")) {
+                int close = indexOf(s, "*/", i + 2);
+                i = close < 0 ? n : close + 2;
+                out.add(start, i, COMMENT);
+            } else if (c == '"' || c == '\'') {
+                for (i++; i < n && s.charAt(i) != c; i += s.charAt(i) == '\\' ? 2 : 1) { }
+                i = Math.min(i + 1, n);
+                out.add(start, i, STRING);
+            } else if (Character.isDigit(c)) {
+                while (i < n && (Character.isLetterOrDigit(s.charAt(i)) || s.charAt(i) == '.')) i++;
+                out.add(start, i, NUMBER);
+            } else if (Character.isJavaIdentifierStart(c)) {
+                while (i < n && Character.isJavaIdentifierPart(s.charAt(i))) i++;
+                if (KEYWORDS.contains(s.subSequence(start, i).toString())) out.add(start, i, KEYWORD);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private static boolean startsWith(CharSequence s, int at, String prefix) {
+        if (at + prefix.length() > s.length()) return false;
+        for (int k = 0; k < prefix.length(); k++) {
+            if (s.charAt(at + k) != prefix.charAt(k)) return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence s, String find, int from) {
+        for (int i = from; i + find.length() <= s.length(); i++) {
+            if (startsWith(s, i, find)) return i;
+        }
+        return -1;
+    }
+
+    private static AttributeSet style(Object... namesAndValues) {
+        SimpleAttributeSet set = new SimpleAttributeSet();
+        for (int i = 0; i < namesAndValues.length; i += 2) set.addAttribute(namesAndValues[i], namesAndValues[i + 1]);
+        return set;
+    }
+
+    // Editor kit for note panes: plain StyledEditorKit views unless the document has a highlighter
+    static final class Kit extends StyledEditorKit {
+        private static final long serialVersionUID = 1L;
+        private static final ViewFactory STYLED = new StyledEditorKit().getViewFactory();
+        private static final ViewFactory FACTORY = elem -> {
+            if (AbstractDocument.ContentElementName.equals(elem.getName())) return new TokenView(elem);
+            if (AbstractDocument.ParagraphElementName.equals(elem.getName())) return new LineView(elem);
+            return STYLED.create(elem);
+        };
+
+        @Override
+        public ViewFactory getViewFactory() {
+            return FACTORY;
+        }
+    }
+
+    private static NoteHighlighter of(Document document) {
+        return (NoteHighlighter) document.getProperty(NoteHighlighter.class);
+    }
+
+    // A run of text drawn with the style of the token it lies in
+    private static final class TokenView extends LabelView {
+        TokenView(Element elem) {
+            super(elem);
+        }
+
+        @Override
+        public AttributeSet getAttributes() {
+            AttributeSet attrs = super.getAttributes();
+            NoteHighlighter highlighter = of(getDocument());
+            return highlighter == null ? attrs : highlighter.attributesAt(getElement().getParentElement(), getStartOffset(), attrs);
+        }
+
+        // A fragment can start in a different token than the run it was cut from
+        @Override
+        public View createFragment(int p0, int p1) {
+            TokenView fragment = (TokenView) super.createFragment(p0, p1);
+            fragment.setPropertiesFromAttributes();
+            return fragment;
+        }
+    }
+
+    // A paragraph whose rows are built from runs cut at token boundaries
+    private static final class LineView extends ParagraphView {
+        LineView(Element elem) {
+            super(elem);
+            // Bidirectional text keeps Swing's own layout strategy, and so plain styling
+            if (strategy.getClass() == FlowStrategy.class) strategy = new TokenStrategy();
+        }
+    }
+
+    private static final class TokenStrategy extends FlowView.FlowStrategy {
+        @Override
+        protected View createView(FlowView fv, int startOffset, int spanLeft, int rowIndex) {
+            View v = super.createView(fv, startOffset, spanLeft, rowIndex);
+            NoteHighlighter highlighter = of(fv.getDocument());
+            if (v == null || highlighter == null) return v;
+            int end = highlighter.boundary(fv.getElement(), startOffset, v.getEndOffset());
+            return end < v.getEndOffset() ? v.createFragment(startOffset, end) : v;
+        }
+    }
+}
+
+// ----------------------------------------------------------------
+// SPELLING DICTIONARY (bundled English word list as a minimal DAWG)
+//
+// The word list (about 170,000 words in every regional spelling, from the SCOWL-based English
+// dictionaries that Vim distributes) is kept as a minimal deterministic acyclic word graph: words
+// share their prefixes as in a trie and also their endings ("-ing", "-ness", "'s"), so there are
+// far fewer edges than letters. An edge is one int: alphabet index (8 bits), word-ends-here and
+// last-edge-of-node flags, and the index of the target node's first edge (0 for a node with no
+// edges). The whole dictionary is a single int[] read in bulk from a gzipped resource.
+class NoteDictionary {
+    static final String RESOURCE = "/dictionary/en.dawg";
+    private static final int MAGIC = 0x44415747; // "DAWG"
+    private static final int FINAL = 1 << 8, LAST = 1 << 9, TARGET_SHIFT = 10;
+
+    private final char[] alphabet;
+    private final int[] edges;
+    private final int root;
+
+    private NoteDictionary(char[] alphabet, int[] edges, int root) {
+        this.alphabet = alphabet;
+        this.edges = edges;
+        this.root = root;
+    }
+
+    public int edgeCount() {
+        return edges.length;
+    }
+
+    public boolean contains(CharSequence word) {
+        int node = root;
+        boolean end = false;
+        for (int i = 0; i < word.length(); i++) {
+            int letter = Arrays.binarySearch(alphabet, word.charAt(i));
+            if (node == 0 || letter < 0) return false;
+            int e = node;
+            while ((edges[e] & 0xFF) != letter) {
+                if ((edges[e] & LAST) != 0) return false;
+                e++;
+            }
+            end = (edges[e] & FINAL) != 0;
+            node = edges[e] >>> TARGET_SHIFT;
+        }
+        return end;
+    }
+
+    // Every word, in order
+    public List<String> words() {
+        List<String> words = new ArrayList<>();
+        collect(root, new StringBuilder(), words);
+        return words;
+    }
+
+    private void collect(int node, StringBuilder prefix, List<String> words) {
+        for (int e = node; node != 0; e++) {
+            prefix.append(alphabet[edges[e] & 0xFF]);
+            if ((edges[e] & FINAL) != 0) words.add(prefix.toString());
+            collect(edges[e] >>> TARGET_SHIFT, prefix, words);
+            prefix.setLength(prefix.length() - 1);
+            if ((edges[e] & LAST) != 0) break;
+        }
+    }
+
+    // Known words one edit (a swap, a missing, wrong or extra letter) away, capitalized like word
+    public List<String> suggest(String word, int max) {
+        Set<String> found = new LinkedHashSet<>();
+        String lower = word.toLowerCase(Locale.ROOT);
+        StringBuilder candidate = new StringBuilder();
+        for (int i = 0; i + 1 < lower.length(); i++) {
+            candidate.setLength(0);
+            candidate.append(lower).setCharAt(i, lower.charAt(i + 1));
+            candidate.setCharAt(i + 1, lower.charAt(i));
+            if (contains(candidate)) found.add(candidate.toString());
+        }
+        for (int i = 0; i < lower.length(); i++) {
+            candidate.setLength(0);
+            candidate.append(lower).deleteCharAt(i);
+            if (contains(candidate)) found.add(candidate.toString());
+        }
+        for (int i = 0; i <= lower.length(); i++) {
+            for (char c : alphabet) {
+                if (!Character.isLowerCase(c) && c != '\'') continue;
+                if (i < lower.length()) {
+                    candidate.setLength(0);
+                    candidate.append(lower).setCharAt(i, c);
+                    if (contains(candidate)) found.add(candidate.toString());
+                }
+                candidate.setLength(0);
+                candidate.append(lower).insert(i, c);
+                if (contains(candidate)) found.add(candidate.toString());
+            }
+        }
+        found.remove(lower);
+        List<String> suggestions = new ArrayList<>();
+        for (String s : found) {
+            if (suggestions.size() == max) break;
+            suggestions.add(Character.isUpperCase(word.charAt(0)) ? Character.toUpperCase(s.charAt(0)) + s.substring(1) : s);
+        }
+        return suggestions;
+    }
+
+    public static NoteDictionary read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+        if (data.readInt() != MAGIC) throw new IOException("Not a dictionary file");
+        char[] alphabet = new char[data.readUnsignedByte()];
+        for (int i = 0; i < alphabet.length; i++) alphabet[i] = data.readChar();
+        int root = data.readInt();
+        byte[] raw = new byte[data.readInt() * 4];
+        data.readFully(raw);
+        int[] edges = new int[raw.length / 4];
+        ByteBuffer.wrap(raw).asIntBuffer().get(edges);
+        return new NoteDictionary(alphabet, edges, root);
+    }
+
+    public void write(OutputStream out) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(gzip));
+        data.writeInt(MAGIC);
+        data.writeByte(alphabet.length);
+        for (char c : alphabet) data.writeChar(c);
+        data.writeInt(root);
+        data.writeInt(edges.length);
+        for (int edge : edges) data.writeInt(edge);
+        data.flush();
+        gzip.finish();
+    }
+
+    // Incremental construction from sorted words (Daciuk et al.): after each word, the part of
+    // the previous word it does not share is final, so its nodes are merged with equal ones
+    public static NoteDictionary build(Collection<String> input) {
+        TreeSet<String> words = new TreeSet<>(input);
+        words.remove("");
+        TreeSet<Character> letters = new TreeSet<>();
+        for (String word : words) {
+            for (int i = 0; i < word.length(); i++) letters.add(word.charAt(i));
+        }
+        if (letters.size() > 255) throw new IllegalArgumentException("More than 255 distinct characters");
+        char[] alphabet = new char[letters.size()];
+        int a = 0;
+        for (char c : letters) alphabet[a++] = c;
+
+        Map<Node, Node> register = new HashMap<>();
+        List<Node> path = new ArrayList<>();
+        path.add(new Node());
+        String previous = "";
+        for (String word : words) {
+            int common = 0;
+            while (common < word.length() && common < previous.length() && word.charAt(common) == previous.charAt(common)) common++;
+            minimize(path, common, register);
+            Node node = path.get(common);
+            for (int i = common; i < word.length(); i++) {
+                Node next = new Node();
+                node.add(word.charAt(i), next);
+                path.add(next);
+                node = next;
+            }
+            node.end = true;
+            previous = word;
+        }
+        minimize(path, 0, register);
+
+        // Lay the nodes out with each node's edges side by side, the root's first at 1
+        Node root = path.get(0);
+        List<Node> order = new ArrayList<>();
+        Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        seen.add(root);
+        int size = 1;
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            order.add(node);
+            node.position = node.count == 0 ? 0 : size;
+            size += node.count;
+            for (int i = node.count - 1; i >= 0; i--) {
+                if (seen.add(node.targets[i])) stack.push(node.targets[i]);
+            }
+        }
+        if (size >= 1 << (32 - TARGET_SHIFT)) throw new IllegalArgumentException("Too many edges: " + size);
+        int[] edges = new int[size];
+        for (Node node : order) {
+            for (int i = 0; i < node.count; i++) {
+                Node target = node.targets[i];
+                edges[node.position + i] = Arrays.binarySearch(alphabet, node.labels[i]) | (target.end ? FINAL : 0)
+                        | (i == node.count - 1 ? LAST : 0) | target.position << TARGET_SHIFT;
+            }
+        }
+        return new NoteDictionary(alphabet, edges, root.count == 0 ? 0 : root.position);
+    }
+
+    private static void minimize(List<Node> path, int downTo, Map<Node, Node> register) {
+        for (int i = path.size() - 1; i > downTo; i--) {
+            Node child = path.remove(i), parent = path.get(i - 1);
+            Node same = register.putIfAbsent(child, child);
+            if (same != null) parent.targets[parent.count - 1] = same;
+        }
+    }
+
+    // Graph node while building; equal when they end words alike and lead to the same nodes by
+    // the same letters, which is all that matters once their targets are merged already
+    private static final class Node {
+        char[] labels = new char[2];
+        Node[] targets = new Node[2];
+        int count;
+        boolean end;
+        int position;
+
+        void add(char label, Node target) {
+            if (count == labels.length) {
+                labels = Arrays.copyOf(labels, count * 2);
+                targets = Arrays.copyOf(targets, count * 2);
+            }
+            labels[count] = label;
+            targets[count++] = target;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Node)) return false;
+            Node other = (Node) o;
+            if (end != other.end || count != other.count) return false;
+            for (int i = 0; i < count; i++) {
+                if (labels[i] != other.labels[i] || targets[i] != other.targets[i]) return false;
+            }
+            return true;
+        }
 
-        NoteWindow noteWindow = new NoteWindow(data);
-        NOTES.add(noteWindow);
-        noteWindow.setVisible(true);
+        @Override
+        public int hashCode() {
+            int hash = end ? 1 : 0;
+            for (int i = 0; i < count; i++) hash = hash * 31 + labels[i] * 17 + System.identityHashCode(targets[i]);
+            return hash;
+        }
     }
+}
 
-    public static void showNotesList() {
-        JDialog dialog = new JDialog((Frame) null, "All Notes", true);
-        dialog.setLayout(new BorderLayout());
-        JPanel listPanel = new JPanel();
-        listPanel.setLayout(new BoxLayout(listPanel, BoxLayout.Y_AXIS));
+// ----------------------------------------------------------------
+// SPELL CHECKER (edited words checked in the background, marked with squiggles)
+//
+// A DocumentEvent only records the edited range, as Positions, and queues it for the single
+// "spell-check" thread that all windows share. That thread widens the range to whole
+// whitespace-separated chunks, reads it under the document's read lock, looks the words up in
+// the dictionary, and the EDT then swaps the squiggles in that range for the new ones. A whole
+// note (when the window opens, or after an RTF load replaces its text) goes through CHUNK_CHARS
+// at a time, and the dictionary is loaded on that thread on first use, so the EDT never waits.
+class NoteSpellChecker implements DocumentListener {
+    static final int CHUNK_CHARS = 16 * 1024;
+    // How far past an edit to look for the ends of the chunk it is in
+    private static final int MARGIN = 256;
+    static final String USER_WORDS = "user_dictionary.txt";
 
-        for (NoteWindow note : NOTES) {
-            NoteData data = note.getNoteData();
-            JPanel rowPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
-            JButton openButton = new JButton(data.title);
-            openButton.addActionListener(e -> {
-                note.setVisible(true);
-                note.toFront();
-                dialog.dispose();
-            });
-            JButton deleteButton = new JButton("Delete");
-            deleteButton.addActionListener(e -> {
-                int result = JOptionPane.showConfirmDialog(dialog,
-                        "Are you sure you want to delete this note?", "Confirm Delete", JOptionPane.YES_NO_OPTION);
-                if (result == JOptionPane.YES_OPTION) {
-                    NotesManager.deleteNote(note);
-                    dialog.dispose();
-                    showNotesList();
+    private static final ExecutorService CHECKER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "spell-check");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Loaded on CHECKER; null until then, or if the resource is missing
+    private static volatile NoteDictionary dictionary;
+    private static boolean loaded;
+    private static final Set<String> USER = ConcurrentHashMap.newKeySet();
+
+    private static final Highlighter.HighlightPainter SQUIGGLE = new LayeredHighlighter.LayerPainter() {
+        public void paint(Graphics g, int p0, int p1, Shape bounds, JTextComponent c) { }
+
+        public Shape paintLayer(Graphics g, int p0, int p1, Shape bounds, JTextComponent c, View view) {
+            Rectangle r;
+            if (p0 == view.getStartOffset() && p1 == view.getEndOffset()) {
+                r = bounds.getBounds();
+            } else {
+                try {
+                    r = view.modelToView(p0, Position.Bias.Forward, p1, Position.Bias.Backward, bounds).getBounds();
+                } catch (BadLocationException e) {
+                    return null;
                 }
-            });
-            rowPanel.add(openButton);
-            rowPanel.add(deleteButton);
-            listPanel.add(rowPanel);
+            }
+            g.setColor(Color.RED);
+            int y = r.y + r.height - 3;
+            for (int x = r.x; x < r.x + r.width; x += 4) {
+                g.drawLine(x, y + 2, x + 2, y);
+                g.drawLine(x + 2, y, x + 4, y + 2);
+            }
+            return r;
         }
+    };
 
-        JScrollPane scrollPane = new JScrollPane(listPanel);
-        dialog.add(scrollPane, BorderLayout.CENTER);
-        dialog.setSize(300, 300);
-        dialog.setLocationRelativeTo(null);
-        dialog.setVisible(true);
+    private final JTextPane pane;
+    private final AbstractDocument document;
+    // Bumped by every edit, so results read before a later edit are checked again instead of drawn
+    private volatile long edits;
+    private volatile boolean stopped;
+
+    NoteSpellChecker(JTextPane pane) {
+        this.pane = pane;
+        this.document = (AbstractDocument) pane.getStyledDocument();
     }
 
-public static void saveNotes() {
-    Properties props = new Properties();
-    int index = 0;
+    public void start() {
+        document.addDocumentListener(this);
+        queue(0, document.getLength());
+    }
 
-    // Ensure the RTF folder exists
-    File rtfFolder = new File(NOTES_DATA_FILE.getParent(), "notes_rtf");
-    if (!rtfFolder.exists()) {
-        rtfFolder.mkdirs();
+    public void stop() {
+        stopped = true;
+        document.removeDocumentListener(this);
+        Highlighter highlighter = pane.getHighlighter();
+        for (Highlighter.Highlight h : highlighter.getHighlights()) {
+            if (h.getPainter() == SQUIGGLE) highlighter.removeHighlight(h);
+        }
     }
 
-    for (NoteWindow note : NOTES) {
-        NoteData data = note.getNoteData();
-        String prefix = "note." + index + ".";
-        props.setProperty(prefix + "id", data.id);
-        props.setProperty(prefix + "title", data.title);
-        props.setProperty(prefix + "x", String.valueOf(data.x));
-        props.setProperty(prefix + "y", String.valueOf(data.y));
-        props.setProperty(prefix + "width", String.valueOf(data.width));
-        props.setProperty(prefix + "height", String.valueOf(data.height));
-        props.setProperty(prefix + "locked", String.valueOf(data.isLocked));
-        props.setProperty(prefix + "ontop", String.valueOf(data.alwaysOnTop));
-        props.setProperty(prefix + "transparency", String.valueOf(data.transparency));
-        props.setProperty(prefix + "noteBackground", String.valueOf(data.noteBackground.getRGB()));
-        props.setProperty(prefix + "toolbarColor", String.valueOf(data.toolbarColor.getRGB()));
-        props.setProperty(prefix + "fontFamily", data.fontFamily);
-        props.setProperty(prefix + "fontSize", String.valueOf(data.fontSize));
-        props.setProperty(prefix + "minWidth", String.valueOf(data.minWidth));
-        props.setProperty(prefix + "minHeight", String.valueOf(data.minHeight));
+    public void insertUpdate(DocumentEvent e) {
+        edits++;
+        queue(e.getOffset(), e.getOffset() + e.getLength());
+    }
 
-        // Save styled content to a separate file in the "notes_rtf" folder
-        File styledContentFile = new File(rtfFolder, data.id + ".rtf");
-        try (FileOutputStream fos = new FileOutputStream(styledContentFile)) {
-            RTFEditorKit rtfEditorKit = new RTFEditorKit();
-            rtfEditorKit.write(fos, note.getStyledDocument(), 0, note.getStyledDocument().getLength());
-        } catch (IOException | BadLocationException e) {
+    public void removeUpdate(DocumentEvent e) {
+        edits++;
+        queue(e.getOffset(), e.getOffset());
+    }
+
+    public void changedUpdate(DocumentEvent e) { }
+
+    private void queue(int start, int end) {
+        try {
+            Position from = document.createPosition(start), to = document.createPosition(end);
+            CHECKER.execute(() -> check(from, to));
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // On CHECKER: checks the chunks around [from, to), at most CHUNK_CHARS of them before queueing the rest
+    private void check(Position from, Position to) {
+        NoteDictionary words = dictionary();
+        if (stopped || words == null) return;
+        int start, end;
+        long seen;
+        int[] spans;
+        Position rest = null;
+        document.readLock();
+        try {
+            seen = edits;
+            int length = document.getLength();
+            start = Math.min(from.getOffset(), length);
+            end = Math.max(start, Math.min(to.getOffset(), length));
+            if (end - start > CHUNK_CHARS) {
+                end = start + CHUNK_CHARS;
+                rest = document.createPosition(end);
+            }
+            int windowStart = Math.max(0, start - MARGIN), windowEnd = Math.min(length, end + MARGIN);
+            String text = document.getText(windowStart, windowEnd - windowStart);
+            // Widen to whitespace so a URL or address is always seen whole
+            int a = start - windowStart, b = end - windowStart;
+            while (a > 0 && !Character.isWhitespace(text.charAt(a - 1))) a--;
+            while (b < text.length() && !Character.isWhitespace(text.charAt(b))) b++;
+            if (rest != null) rest = document.createPosition(windowStart + b);
+            start = windowStart + a;
+            end = windowStart + b;
+            spans = misspellings(text.substring(a, b), start, words);
+        } catch (BadLocationException e) {
             e.printStackTrace();
+            return;
+        } finally {
+            document.readUnlock();
         }
-        props.setProperty(prefix + "contentFile", styledContentFile.getName());
-        index++;
+        int checkedStart = start, checkedEnd = end;
+        SwingUtilities.invokeLater(() -> {
+            if (stopped) return;
+            if (edits != seen) {
+                CHECKER.execute(() -> check(from, to));
+                return;
+            }
+            mark(checkedStart, checkedEnd, spans);
+        });
+        if (rest != null && rest.getOffset() < to.getOffset()) check(rest, to);
     }
-    props.setProperty("count", String.valueOf(index));
 
-    try (FileOutputStream fos = new FileOutputStream(NOTES_DATA_FILE)) {
-        props.store(fos, "Notes Data");
-    } catch (IOException e) {
-        e.printStackTrace();
+    // On the EDT: replaces the squiggles in [start, end] with spans
+    private void mark(int start, int end, int[] spans) {
+        Highlighter highlighter = pane.getHighlighter();
+        for (Highlighter.Highlight h : highlighter.getHighlights()) {
+            if (h.getPainter() != SQUIGGLE) continue;
+            int p0 = h.getStartOffset(), p1 = h.getEndOffset();
+            if (p0 < end && p1 > start || p0 == p1 && p0 >= start && p0 <= end) highlighter.removeHighlight(h);
+        }
+        try {
+            for (int i = 0; i < spans.length; i += 2) highlighter.addHighlight(spans[i], spans[i + 1], SQUIGGLE);
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
     }
-}
 
-public static void loadNotes() {
-    if (!NOTES_DATA_FILE.exists()) return;
-    Properties props = new Properties();
-    try (FileInputStream fis = new FileInputStream(NOTES_DATA_FILE)) {
-        props.load(fis);
-    } catch (IOException e) {
-        e.printStackTrace();
-        return;
+    // Start and end offsets (from base) of the misspelled words in text. Chunks that look like a
+    // URL or e-mail address are skipped, and so are words with digits or underscores, camelCase
+    // and words in capitals, which are usually code, names or acronyms
+    static int[] misspellings(String text, int base, NoteDictionary words) {
+        int[] spans = new int[16];
+        int count = 0;
+        int n = text.length(), i = 0;
+        while (i < n) {
+            while (i < n && Character.isWhitespace(text.charAt(i))) i++;
+            int chunkEnd = i;
+            while (chunkEnd < n && !Character.isWhitespace(text.charAt(chunkEnd))) chunkEnd++;
+            String chunk = text.substring(i, chunkEnd);
+            if (chunk.contains("://") || chunk.contains("@") || chunk.startsWith("www.")) {
+                i = chunkEnd;
+                continue;
+            }
+            while (i < chunkEnd) {
+                while (i < chunkEnd && !isWordChar(text.charAt(i))) i++;
+                int wordEnd = i;
+                while (wordEnd < chunkEnd && isWordChar(text.charAt(wordEnd))) wordEnd++;
+                // Quotes around a word are not part of it
+                int s = i, e = wordEnd;
+                while (s < e && isApostrophe(text.charAt(s))) s++;
+                while (e > s && isApostrophe(text.charAt(e - 1))) e--;
+                if (e - s > 1 && !accepts(text.substring(s, e).replace('\u2019', '\''), words)) {
+                    if (count == spans.length) spans = Arrays.copyOf(spans, count * 2);
+                    spans[count++] = base + s;
+                    spans[count++] = base + e;
+                }
+                i = wordEnd;
+            }
+        }
+        return Arrays.copyOf(spans, count);
     }
 
-    // Ensure the RTF folder exists
-    File rtfFolder = new File(NOTES_DATA_FILE.getParent(), "notes_rtf");
-    if (!rtfFolder.exists()) {
-        rtfFolder.mkdirs();
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || isApostrophe(c);
     }
 
-    int count = Integer.parseInt(props.getProperty("count", "0"));
-    for (int i = 0; i < count; i++) {
-        String prefix = "note." + i + ".";
-        NoteData data = new NoteData();
-        data.id = props.getProperty(prefix + "id");
-        data.title = props.getProperty(prefix + "title");
-        data.x = Integer.parseInt(props.getProperty(prefix + "x"));
-        data.y = Integer.parseInt(props.getProperty(prefix + "y"));
-        data.width = Integer.parseInt(props.getProperty(prefix + "width"));
-        data.height = Integer.parseInt(props.getProperty(prefix + "height"));
-        data.isLocked = Boolean.parseBoolean(props.getProperty(prefix + "locked"));
-        data.alwaysOnTop = Boolean.parseBoolean(props.getProperty(prefix + "ontop"));
-        data.transparency = Float.parseFloat(props.getProperty(prefix + "transparency"));
-        data.noteBackground = new Color(Integer.parseInt(props.getProperty(prefix + "noteBackground")));
-        data.toolbarColor = new Color(Integer.parseInt(props.getProperty(prefix + "toolbarColor")));
-        data.fontFamily = props.getProperty(prefix + "fontFamily");
-        data.fontSize = Integer.parseInt(props.getProperty(prefix + "fontSize"));
-        data.minWidth = Integer.parseInt(props.getProperty(prefix + "minWidth", String.valueOf(data.width)));
-        data.minHeight = Integer.parseInt(props.getProperty(prefix + "minHeight", String.valueOf(data.height)));
+    private static boolean isApostrophe(char c) {
+        return c == '\'' || c == '\u2019';
+    }
 
-        NoteWindow noteWindow = new NoteWindow(data);
+    private static boolean accepts(String word, NoteDictionary words) {
+        int capitals = 0;
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (Character.isDigit(c) || c == '_') return true;
+            if (Character.isUpperCase(c)) capitals++;
+        }
+        if (capitals > 1 || capitals == 1 && !Character.isUpperCase(word.charAt(0))) return true;
+        if (words.contains(word)) return true;
+        String lower = word.toLowerCase(Locale.ROOT);
+        return capitals == 1 && words.contains(lower) || USER.contains(lower);
+    }
 
-        // Load styled content from the file in the "notes_rtf" folder
-        String contentFileName = props.getProperty(prefix + "contentFile");
-        if (contentFileName != null) {
-            File styledContentFile = new File(rtfFolder, contentFileName);
-            try (FileInputStream fis = new FileInputStream(styledContentFile)) {
-                RTFEditorKit rtfEditorKit = new RTFEditorKit();
-                rtfEditorKit.read(fis, noteWindow.getStyledDocument(), 0);
-            } catch (IOException | BadLocationException e) {
+    // On CHECKER: the bundled dictionary and the words the user added, loaded once
+    private static NoteDictionary dictionary() {
+        if (loaded) return dictionary;
+        loaded = true;
+        try (InputStream in = NoteSpellChecker.class.getResourceAsStream(NoteDictionary.RESOURCE)) {
+            if (in == null) {
+                System.err.println("Spelling dictionary " + NoteDictionary.RESOURCE + " is missing");
+                return null;
+            }
+            dictionary = NoteDictionary.read(in);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        File userWords = new File(NotesManager.getDataDirectory(), USER_WORDS);
+        if (userWords.exists()) {
+            try {
+                for (String word : Files.readAllLines(userWords.toPath(), StandardCharsets.UTF_8)) {
+                    if (!word.trim().isEmpty()) USER.add(word.trim().toLowerCase(Locale.ROOT));
+                }
+            } catch (IOException e) {
                 e.printStackTrace();
             }
         }
-
-        NOTES.add(noteWindow);
-        noteWindow.setVisible(true);
+        return dictionary;
     }
-}
 
-    public static void deleteNote(NoteWindow noteWindow) {
-        NOTES.remove(noteWindow);
-    
-        // Delete the associated RTF file
-        NoteData data = noteWindow.getNoteData();
-        File rtfFolder = new File(NOTES_DATA_FILE.getParent(), "notes_rtf");
-        File styledContentFile = new File(rtfFolder, data.id + ".rtf");
-        if (styledContentFile.exists()) {
-            if (!styledContentFile.delete()) {
-                System.err.println("Failed to delete RTF file: " + styledContentFile.getAbsolutePath());
+    // The misspelled word at offset, or null
+    public String misspelledAt(int offset) {
+        for (Highlighter.Highlight h : pane.getHighlighter().getHighlights()) {
+            if (h.getPainter() == SQUIGGLE && h.getStartOffset() <= offset && offset < h.getEndOffset()) {
+                try {
+                    return document.getText(h.getStartOffset(), h.getEndOffset() - h.getStartOffset());
+                } catch (BadLocationException e) {
+                    return null;
+                }
             }
         }
-    
-        noteWindow.dispose();
-        saveNotes();
+        return null;
     }
-}
 
-// ----------------------------------------------------------------
-// NOTE DATA MODEL (with minWidth and minHeight to enforce lower bound)
-class NoteData {
-    public String id;
-    public String title;
-    public String content;
-    public int x;
-    public int y;
-    public int width;
-    public int height;
-    public boolean isLocked;
-    public boolean alwaysOnTop;
-    public float transparency;
-    public Color noteBackground;
-    public Color toolbarColor;
-    public String fontFamily;
-    public int fontSize;
-    public int minWidth;
-    public int minHeight;
+    // Suggestions and "Add to Dictionary" for the misspelled word at offset, or null if there is none
+    public JPopupMenu menuAt(int offset) {
+        String word = misspelledAt(offset);
+        NoteDictionary words = dictionary;
+        if (word == null || words == null) return null;
+        int start = offset;
+        for (Highlighter.Highlight h : pane.getHighlighter().getHighlights()) {
+            if (h.getPainter() == SQUIGGLE && h.getStartOffset() <= offset && offset < h.getEndOffset()) start = h.getStartOffset();
+        }
+        int wordStart = start;
+        JPopupMenu menu = new JPopupMenu();
+        for (String suggestion : words.suggest(word, 5)) {
+            JMenuItem item = new JMenuItem(suggestion);
+            item.addActionListener(e -> {
+                try {
+                    document.replace(wordStart, word.length(), suggestion,
+                            ((StyledDocument) document).getCharacterElement(wordStart).getAttributes().copyAttributes());
+                } catch (BadLocationException ex) {
+                    ex.printStackTrace();
+                }
+            });
+            menu.add(item);
+        }
+        if (menu.getComponentCount() == 0) {
+            JMenuItem none = new JMenuItem("(no suggestions)");
+            none.setEnabled(false);
+            menu.add(none);
+        }
+        menu.addSeparator();
+        JMenuItem add = new JMenuItem("Add \"" + word + "\" to Dictionary");
+        add.addActionListener(e -> addWord(word));
+        menu.add(add);
+        return menu;
+    }
+
+    // Remembers a word in the user dictionary and checks this note again
+    private void addWord(String word) {
+        String lower = word.replace('\u2019', '\'').toLowerCase(Locale.ROOT);
+        USER.add(lower);
+        CHECKER.execute(() -> {
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(
+                    new File(NotesManager.getDataDirectory(), USER_WORDS), true), StandardCharsets.UTF_8)) {
+                out.write(lower + System.lineSeparator());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        queue(0, document.getLength());
+    }
 }
 
 // ----------------------------------------------------------------
 // NOTE WINDOW
 class NoteWindow extends JFrame {
     private static final int TOOLBAR_HEIGHT = 30;
+    private final NoteModel noteModel;
     private NoteData noteData;
 
     private JTextField titleField;
     private JTextPane notePane;
     private JPanel toolbarPanel;
+    private NoteHighlighter highlighter;
+    private NoteSpellChecker spellChecker;
 
     // Icon labels and separators
     private JLabel closeLabel, settingsLabel, onTopLabel, lockLabel;
@@ -310,13 +7640,16 @@ class NoteWindow extends JFrame {
     private Point initialMousePos;
     private Rectangle initialBounds;
 
-    // For dragging via corner
+    // For dragging via corner; the window's unsnapped position follows the pointer from where it was pressed
     private Point cornerDragInitialScreen;
+    private Point cornerDragInitialLocation;
 
-    public NoteWindow(NoteData data) {
+    public NoteWindow(NoteModel model) {
         super();
         setIconImage(Toolkit.getDefaultToolkit().createImage(
                 getClass().getResource("/images/app_icon.png")));
+        NoteData data = model.getNoteData();
+        this.noteModel = model;
         this.noteData = data;
         currentTypingFontSize = noteData.fontSize;
         setUndecorated(true);
@@ -329,10 +7662,16 @@ class NoteWindow extends JFrame {
         initComponents();
         initListeners();
         applyTypingAttributes();
+        setHighlighting(noteData.markdown);
+        setSpellChecking(AppSettings.checkSpelling);
         // Round the corners of the window
         setShape(new RoundRectangle2D.Double(0, 0, getWidth(), getHeight(), 8, 8));
     }
 
+    public NoteModel getNoteModel() {
+        return noteModel;
+    }
+
     public NoteData getNoteData() {
         return noteData;
     }
@@ -341,6 +7680,70 @@ class NoteWindow extends JFrame {
         return notePane.getStyledDocument();
     }
 
+    // The components SessionReplay sends its key and mouse events to
+    JTextPane getNotePane() {
+        return notePane;
+    }
+
+    JLabel getDragCorner() {
+        return dragCornerLabel;
+    }
+
+    JLabel getCloseLabel() {
+        return closeLabel;
+    }
+
+    JLabel getFormatLabel(boolean bold) {
+        return bold ? boldLabel : italicLabel;
+    }
+
+    public void setTitleText(String title) {
+        titleField.setText(title);
+    }
+
+    // Re-applies NoteData after it was changed outside this window
+    public void refreshFromData() {
+        if (!titleField.getText().equals(noteData.title)) titleField.setText(noteData.title);
+        setBounds(noteData.x, noteData.y, noteData.width, noteData.height);
+        setAlwaysOnTop(noteData.alwaysOnTop);
+        onTopLabel.setIcon(noteData.alwaysOnTop ? onTopIcon : normalIcon);
+        notePane.setEditable(!noteData.isLocked);
+        lockLabel.setIcon(noteData.isLocked ? lockIcon : unlockIcon);
+        Font font = new Font(noteData.fontFamily, Font.PLAIN, noteData.fontSize);
+        if (!font.equals(notePane.getFont())) {
+            titleField.setFont(font);
+            notePane.setFont(font);
+            currentTypingFontSize = noteData.fontSize;
+        }
+        setHighlighting(noteData.markdown);
+        layoutComponents();
+        repaint();
+    }
+
+    // Starts or stops live Markdown highlighting of the note text
+    private void setHighlighting(boolean on) {
+        if (on == (highlighter != null)) return;
+        if (on) {
+            highlighter = new NoteHighlighter(notePane);
+            highlighter.start();
+        } else {
+            highlighter.stop();
+            highlighter = null;
+        }
+    }
+
+    // Starts or stops underlining misspelled words in the note text
+    public void setSpellChecking(boolean on) {
+        if (on == (spellChecker != null)) return;
+        if (on) {
+            spellChecker = new NoteSpellChecker(notePane);
+            spellChecker.start();
+        } else {
+            spellChecker.stop();
+            spellChecker = null;
+        }
+    }
+
     private void initComponents() {
         JPanel contentPanel = new JPanel(null) {
             @Override
@@ -460,8 +7863,11 @@ class NoteWindow extends JFrame {
         titleSeparator.setBounds(0, TOOLBAR_HEIGHT + 30, getWidth(), 1);
 
         // Note text pane with scrollpane (hidden scrollbars but scrolling works)
+        // The pane edits the model's document directly, so loaded content is already in place;
+        // its kit draws Markdown highlighting when the note turns it on
         notePane = new JTextPane();
-        notePane.setText(noteData.content);
+        notePane.setEditorKit(new NoteHighlighter.Kit());
+        notePane.setStyledDocument(noteModel.getStyledDocument());
         notePane.setFont(new Font(noteData.fontFamily, Font.PLAIN, noteData.fontSize));
         notePane.setOpaque(false);
         notePane.setEditable(!noteData.isLocked);
@@ -502,6 +7908,7 @@ class NoteWindow extends JFrame {
                 noteData.alwaysOnTop = !noteData.alwaysOnTop;
                 setAlwaysOnTop(noteData.alwaysOnTop);
                 onTopLabel.setIcon(noteData.alwaysOnTop ? onTopIcon : normalIcon);
+                NotesManager.updateIndex(noteData);
                 NotesManager.saveNotes();
             }
         });
@@ -511,6 +7918,7 @@ class NoteWindow extends JFrame {
                 noteData.isLocked = !noteData.isLocked;
                 notePane.setEditable(!noteData.isLocked);
                 lockLabel.setIcon(noteData.isLocked ? lockIcon : unlockIcon);
+                NotesManager.updateIndex(noteData);
                 NotesManager.saveNotes();
             }
         });
@@ -604,6 +8012,16 @@ class NoteWindow extends JFrame {
             public void removeUpdate(DocumentEvent e) { saveState(); }
             public void changedUpdate(DocumentEvent e) { saveState(); }
         });
+        // Spelling suggestions on the platform's popup trigger over a misspelled word
+        notePane.addMouseListener(new MouseAdapter() {
+            public void mousePressed(MouseEvent e) { showSpellingMenu(e); }
+            public void mouseReleased(MouseEvent e) { showSpellingMenu(e); }
+            private void showSpellingMenu(MouseEvent e) {
+                if (!e.isPopupTrigger() || spellChecker == null || noteData.isLocked) return;
+                JPopupMenu menu = spellChecker.menuAt(offsetAt(e.getPoint()));
+                if (menu != null) menu.show(notePane, e.getX(), e.getY());
+            }
+        });
         // Show/hide toolbar on hover
         getContentPane().addMouseMotionListener(new MouseMotionAdapter() {
             public void mouseMoved(MouseEvent e) { toolbarPanel.setVisible(true); }
@@ -617,18 +8035,25 @@ class NoteWindow extends JFrame {
         });
         // Draggable corner
         dragCornerLabel.addMouseListener(new MouseAdapter() {
-            public void mousePressed(MouseEvent e) { cornerDragInitialScreen = e.getLocationOnScreen(); }
+            public void mousePressed(MouseEvent e) {
+                cornerDragInitialScreen = e.getLocationOnScreen();
+                cornerDragInitialLocation = getLocation();
+            }
             public void mouseReleased(MouseEvent e) { cornerDragInitialScreen = null; saveState(); }
         });
         dragCornerLabel.addMouseMotionListener(new MouseMotionAdapter() {
             public void mouseDragged(MouseEvent e) {
                 if (cornerDragInitialScreen != null) {
-                    int thisX = getX(), thisY = getY();
                     Point current = e.getLocationOnScreen();
-                    int movedX = current.x - cornerDragInitialScreen.x;
-                    int movedY = current.y - cornerDragInitialScreen.y;
-                    setLocation(thisX + movedX, thisY + movedY);
-                    cornerDragInitialScreen = current;
+                    Rectangle proposed = new Rectangle(cornerDragInitialLocation.x + current.x - cornerDragInitialScreen.x,
+                            cornerDragInitialLocation.y + current.y - cornerDragInitialScreen.y, getWidth(), getHeight());
+                    // Snap to neighbouring notes and screen edges; Alt moves freely
+                    List<Rectangle> areas = NoteLayout.screenAreas();
+                    if (!e.isAltDown() && !areas.isEmpty()) {
+                        setLocation(NotesManager.getLayout().snap(noteData.id, proposed, NoteLayout.areaAt(current, areas)));
+                    } else {
+                        setLocation(proposed.getLocation());
+                    }
                 }
             }
         });
@@ -670,9 +8095,17 @@ class NoteWindow extends JFrame {
         addComponentListener(new ComponentAdapter() {
             public void componentMoved(ComponentEvent e) { saveState(); }
             public void componentResized(ComponentEvent e) { saveState(); layoutComponents(); }
+            public void componentShown(ComponentEvent e) { NotesManager.getLayout().put(noteData.id, getBounds()); }
+            public void componentHidden(ComponentEvent e) { NotesManager.getLayout().remove(noteData.id); }
         });
     }
 
+    // viewToModel2 only exists from Java 9, and the app still runs on Java 8 (Launch4j minVersion 1.8.0)
+    @SuppressWarnings("deprecation")
+    private int offsetAt(Point p) {
+        return notePane.viewToModel(p);
+    }
+
     private int getResizeEdge(Point p) {
         int margin = 5;
         int w = getWidth(), h = getHeight();
@@ -704,6 +8137,7 @@ class NoteWindow extends JFrame {
         noteData.y = getY();
         noteData.width = getWidth();
         noteData.height = getHeight();
+        if (isVisible()) NotesManager.getLayout().put(noteData.id, getBounds());
         noteData.title = titleField.getText();
         noteData.content = notePane.getText();
         NotesManager.saveNotes();
@@ -713,9 +8147,7 @@ class NoteWindow extends JFrame {
         StyledDocument doc = notePane.getStyledDocument();
         int start = notePane.getSelectionStart(), end = notePane.getSelectionEnd();
         if (start < end) {
-            MutableAttributeSet attr = new SimpleAttributeSet();
-            StyleConstants.setBold(attr, true);
-            doc.setCharacterAttributes(start, end - start, attr, false);
+            doc.setCharacterAttributes(start, end - start, NoteStyleContext.attribute(StyleConstants.Bold, Boolean.TRUE), false);
         }
     }
 
@@ -723,9 +8155,7 @@ class NoteWindow extends JFrame {
         StyledDocument doc = notePane.getStyledDocument();
         int start = notePane.getSelectionStart(), end = notePane.getSelectionEnd();
         if (start < end) {
-            MutableAttributeSet attr = new SimpleAttributeSet();
-            StyleConstants.setItalic(attr, true);
-            doc.setCharacterAttributes(start, end - start, attr, false);
+            doc.setCharacterAttributes(start, end - start, NoteStyleContext.attribute(StyleConstants.Italic, Boolean.TRUE), false);
         }
     }
 
@@ -754,9 +8184,7 @@ class NoteWindow extends JFrame {
             int start = notePane.getSelectionStart(), end = notePane.getSelectionEnd();
             if (start < end) {
                 StyledDocument doc = notePane.getStyledDocument();
-                MutableAttributeSet attr = new SimpleAttributeSet();
-                StyleConstants.setFontFamily(attr, newFont);
-                doc.setCharacterAttributes(start, end - start, attr, false);
+                doc.setCharacterAttributes(start, end - start, NoteStyleContext.attribute(StyleConstants.FontFamily, newFont), false);
             }
         } else {
             currentTypingFont = newFont;
@@ -771,9 +8199,7 @@ class NoteWindow extends JFrame {
             int start = notePane.getSelectionStart(), end = notePane.getSelectionEnd();
             if (start < end) {
                 StyledDocument doc = notePane.getStyledDocument();
-                MutableAttributeSet attr = new SimpleAttributeSet();
-                StyleConstants.setForeground(attr, chosen);
-                doc.setCharacterAttributes(start, end - start, attr, false);
+                doc.setCharacterAttributes(start, end - start, NoteStyleContext.attribute(StyleConstants.Foreground, chosen), false);
             }
         } else {
             currentTypingColor = chosen;
@@ -790,9 +8216,7 @@ class NoteWindow extends JFrame {
                 int start = notePane.getSelectionStart(), end = notePane.getSelectionEnd();
                 if (start < end) {
                     StyledDocument doc = notePane.getStyledDocument();
-                    MutableAttributeSet attr = new SimpleAttributeSet();
-                    StyleConstants.setFontSize(attr, newSize);
-                    doc.setCharacterAttributes(start, end - start, attr, false);
+                    doc.setCharacterAttributes(start, end - start, NoteStyleContext.attribute(StyleConstants.FontSize, newSize), false);
                 }
             } else {
                 currentTypingFontSize = newSize;
@@ -864,6 +8288,7 @@ class NoteSettingsWindow {
             if (chosen != null) {
                 data.noteBackground = chosen;
                 noteWindow.repaint();
+                NotesManager.updateIndex(data);
                 NotesManager.saveNotes();
             }
         });
@@ -880,6 +8305,7 @@ class NoteSettingsWindow {
             if (chosen != null) {
                 data.toolbarColor = chosen;
                 noteWindow.repaint();
+                NotesManager.updateIndex(data);
                 NotesManager.saveNotes();
             }
         });
@@ -932,6 +8358,111 @@ class NoteSettingsWindow {
         });
         dialog.add(heightSpinner, gbc);
 
+        // Tags (comma separated) and notebook
+        gbc.gridx = 0; gbc.gridy++;
+        JLabel tagsLabel = new JLabel("Tags:");
+        dialog.add(tagsLabel, gbc);
+        gbc.gridx = 1;
+        JTextField tagsField = new JTextField(String.join(", ", data.tags), 15);
+        tagsField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { applyTags(); }
+            public void removeUpdate(DocumentEvent e) { applyTags(); }
+            public void changedUpdate(DocumentEvent e) { applyTags(); }
+            private void applyTags() {
+                data.tags = NoteIndex.parseTags(tagsField.getText());
+                NotesManager.updateIndex(data);
+                NotesManager.saveNotes();
+            }
+        });
+        dialog.add(tagsField, gbc);
+
+        gbc.gridx = 0; gbc.gridy++;
+        JLabel notebookLabel = new JLabel("Notebook:");
+        dialog.add(notebookLabel, gbc);
+        gbc.gridx = 1;
+        Set<String> notebooks = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        notebooks.add("");
+        notebooks.addAll(NotesManager.getIndex().getNotebooks());
+        JComboBox<String> notebookBox = new JComboBox<>(notebooks.toArray(new String[0]));
+        notebookBox.setEditable(true);
+        notebookBox.setSelectedItem(data.notebook);
+        notebookBox.addActionListener(e -> {
+            Object chosen = notebookBox.getSelectedItem();
+            data.notebook = chosen == null ? "" : chosen.toString().trim();
+            NotesManager.updateIndex(data);
+            NotesManager.saveNotes();
+        });
+        dialog.add(notebookBox, gbc);
+
+        // Live Markdown and fenced code highlighting (display only)
+        gbc.gridx = 0; gbc.gridy++;
+        JLabel markdownLabel = new JLabel("Highlight Markdown:");
+        dialog.add(markdownLabel, gbc);
+        gbc.gridx = 1;
+        JCheckBox markdownBox = new JCheckBox("", data.markdown);
+        markdownBox.addActionListener(e -> {
+            data.markdown = markdownBox.isSelected();
+            NotesManager.refreshWindow(noteWindow.getNoteModel());
+            NotesManager.saveNotes();
+        });
+        dialog.add(markdownBox, gbc);
+
+        // Reminder: bring the note to the front at a time, optionally repeating
+        gbc.gridx = 0; gbc.gridy++;
+        JCheckBox remindBox = new JCheckBox("Remind At:", data.remindAt > 0);
+        dialog.add(remindBox, gbc);
+        gbc.gridx = 1;
+        long firstReminder = data.remindAt > 0 ? data.remindAt : System.currentTimeMillis() + 60 * 60 * 1000L;
+        JSpinner remindSpinner = new JSpinner(new SpinnerDateModel(new Date(firstReminder), null, null, Calendar.MINUTE));
+        remindSpinner.setEditor(new JSpinner.DateEditor(remindSpinner, "yyyy-MM-dd HH:mm"));
+        dialog.add(remindSpinner, gbc);
+
+        gbc.gridx = 0; gbc.gridy++;
+        JLabel repeatLabel = new JLabel("Repeat:");
+        dialog.add(repeatLabel, gbc);
+        gbc.gridx = 1;
+        String[] repeatNames = {"Never", "Hourly", "Daily", "Weekly"};
+        long[] repeatMillis = {0, 60 * 60 * 1000L, 24 * 60 * 60 * 1000L, 7 * 24 * 60 * 60 * 1000L};
+        JComboBox<String> repeatBox = new JComboBox<>(repeatNames);
+        for (int i = 0; i < repeatMillis.length; i++) {
+            if (repeatMillis[i] == data.repeatMillis) repeatBox.setSelectedIndex(i);
+        }
+        dialog.add(repeatBox, gbc);
+
+        gbc.gridx = 0; gbc.gridy++;
+        JLabel showForLabel = new JLabel("Show For (min, 0 = until closed):");
+        dialog.add(showForLabel, gbc);
+        gbc.gridx = 1;
+        JSpinner showForSpinner = new JSpinner(new SpinnerNumberModel((int) (data.showForMillis / 60000), 0, 24 * 60, 1));
+        dialog.add(showForSpinner, gbc);
+
+        Runnable applyReminder = () -> {
+            data.remindAt = remindBox.isSelected() ? ((Date) remindSpinner.getValue()).getTime() : 0;
+            data.repeatMillis = repeatMillis[repeatBox.getSelectedIndex()];
+            data.showForMillis = (int) showForSpinner.getValue() * 60000L;
+            NotesManager.scheduleReminders(data);
+            NotesManager.saveNotes();
+        };
+        remindBox.addActionListener(e -> applyReminder.run());
+        remindSpinner.addChangeListener(e -> { if (remindBox.isSelected()) applyReminder.run(); });
+        repeatBox.addActionListener(e -> applyReminder.run());
+        showForSpinner.addChangeListener(e -> applyReminder.run());
+
+        // Hide the note after a while (0 = stay open)
+        gbc.gridx = 0; gbc.gridy++;
+        JLabel hideLabel = new JLabel("Hide After (min, 0 = never):");
+        dialog.add(hideLabel, gbc);
+        gbc.gridx = 1;
+        long remaining = data.hideAt > 0 ? Math.max(1, (data.hideAt - System.currentTimeMillis() + 59999) / 60000) : 0;
+        JSpinner hideSpinner = new JSpinner(new SpinnerNumberModel((int) Math.min(remaining, 7 * 24 * 60), 0, 7 * 24 * 60, 1));
+        hideSpinner.addChangeListener(e -> {
+            int minutes = (int) hideSpinner.getValue();
+            data.hideAt = minutes > 0 ? System.currentTimeMillis() + minutes * 60000L : 0;
+            NotesManager.scheduleReminders(data);
+            NotesManager.saveNotes();
+        });
+        dialog.add(hideSpinner, gbc);
+
         // Delete note button
         gbc.gridx = 0; gbc.gridy++;
         gbc.gridwidth = 2;
@@ -940,7 +8471,7 @@ class NoteSettingsWindow {
             int result = JOptionPane.showConfirmDialog(dialog, "Are you sure you want to delete this note?",
                     "Confirm Delete", JOptionPane.YES_NO_OPTION);
             if (result == JOptionPane.YES_OPTION) {
-                NotesManager.deleteNote(noteWindow);
+                NotesManager.deleteNote(noteWindow.getNoteModel());
                 dialog.dispose();
             }
         });
@@ -1020,6 +8551,14 @@ class GlobalSettingsWindow {
         });
         dialog.add(fontSizeSpinner, gbc);
 
+        gbc.gridx = 0; gbc.gridy++;
+        JLabel restyleLabel = new JLabel("Existing Notes:");
+        dialog.add(restyleLabel, gbc);
+        gbc.gridx = 1;
+        JButton restyleButton = new JButton("Apply Defaults...");
+        restyleButton.addActionListener(e -> applyDefaults(dialog, restyleButton));
+        dialog.add(restyleButton, gbc);
+
         gbc.gridx = 0; gbc.gridy++;
         JLabel storageLabel = new JLabel("Data Storage Location:");
         dialog.add(storageLabel, gbc);
@@ -1040,6 +8579,90 @@ class GlobalSettingsWindow {
         });
         dialog.add(changeLocButton, gbc);
 
+        gbc.gridx = 0; gbc.gridy++;
+        JLabel automationLabel = new JLabel("Automation API Port (0 = off):");
+        dialog.add(automationLabel, gbc);
+        gbc.gridx = 1;
+        SpinnerNumberModel portModel = new SpinnerNumberModel(AppSettings.automationPort, 0, 65535, 1);
+        JSpinner portSpinner = new JSpinner(portModel);
+        portSpinner.setEditor(new JSpinner.NumberEditor(portSpinner, "#"));
+        dialog.add(portSpinner, gbc);
+        gbc.gridx = 2;
+        // Only on Apply: restarting on every spinner tick would hop the server through each port on the way
+        JButton portButton = new JButton("Apply");
+        portButton.addActionListener(e -> {
+            try {
+                portSpinner.commitEdit();
+            } catch (java.text.ParseException ex) {
+                portSpinner.setValue(AppSettings.automationPort);
+                return;
+            }
+            AppSettings.automationPort = (int) portSpinner.getValue();
+            AppSettings.saveGlobalSettings();
+            AutomationServer.stop();
+            if (AppSettings.automationPort > 0) AutomationServer.start(AppSettings.automationPort);
+        });
+        dialog.add(portButton, gbc);
+
+        gbc.gridx = 0; gbc.gridy++;
+        JLabel syncLabel = new JLabel("Sync Folder:");
+        dialog.add(syncLabel, gbc);
+        gbc.gridx = 1;
+        JTextField syncField = new JTextField(AppSettings.syncFolder.isEmpty() ? "Off" : AppSettings.syncFolder, 15);
+        syncField.setEditable(false);
+        dialog.add(syncField, gbc);
+        gbc.gridx = 2;
+        JButton syncButton = new JButton("Change...");
+        syncButton.addActionListener(e -> {
+            if (NotesManager.getStore().getCrypto() != null) {
+                JOptionPane.showMessageDialog(dialog, "Sync is not available while the notes are encrypted.");
+                return;
+            }
+            JFileChooser chooser = new JFileChooser();
+            chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            if (chooser.showOpenDialog(dialog) == JFileChooser.APPROVE_OPTION) {
+                AppSettings.syncFolder = chooser.getSelectedFile().getAbsolutePath();
+                syncField.setText(AppSettings.syncFolder + " (after restart)");
+                AppSettings.saveGlobalSettings();
+            }
+        });
+        dialog.add(syncButton, gbc);
+
+        gbc.gridx = 0; gbc.gridy++;
+        JLabel compressLabel = new JLabel("Compress Note Files:");
+        dialog.add(compressLabel, gbc);
+        gbc.gridx = 1;
+        JCheckBox compressBox = new JCheckBox("", AppSettings.compressNotes);
+        compressBox.addActionListener(e -> {
+            AppSettings.compressNotes = compressBox.isSelected();
+            AppSettings.saveGlobalSettings();
+        });
+        dialog.add(compressBox, gbc);
+
+        gbc.gridx = 0; gbc.gridy++;
+        JLabel spellingLabel = new JLabel("Check Spelling:");
+        dialog.add(spellingLabel, gbc);
+        gbc.gridx = 1;
+        JCheckBox spellingBox = new JCheckBox("", AppSettings.checkSpelling);
+        spellingBox.addActionListener(e -> {
+            AppSettings.checkSpelling = spellingBox.isSelected();
+            AppSettings.saveGlobalSettings();
+            NotesManager.setSpellChecking(AppSettings.checkSpelling);
+        });
+        dialog.add(spellingBox, gbc);
+
+        gbc.gridx = 0; gbc.gridy++;
+        JLabel encryptLabel = new JLabel("Encryption:");
+        dialog.add(encryptLabel, gbc);
+        gbc.gridx = 1;
+        JTextField encryptField = new JTextField(NotesManager.getStore().getCrypto() == null ? "Off" : "On", 15);
+        encryptField.setEditable(false);
+        dialog.add(encryptField, gbc);
+        gbc.gridx = 2;
+        JButton passphraseButton = new JButton("Passphrase...");
+        passphraseButton.addActionListener(e -> changePassphrase(dialog, encryptField, syncField));
+        dialog.add(passphraseButton, gbc);
+
         gbc.gridx = 0; gbc.gridy++;
         gbc.gridwidth = 3;
         JLabel versionLabel = new JLabel("Version: 1.0.0    Developer: Dominic Minnich");
@@ -1063,6 +8686,86 @@ class GlobalSettingsWindow {
         dialog.setLocationRelativeTo(null);
         dialog.setVisible(true);
     }
+
+    // Gives existing notes (all, or those matching a Notes List filter) the current defaults
+    private static void applyDefaults(JDialog dialog, JButton button) {
+        JCheckBox bgBox = new JCheckBox("Background color", true);
+        JCheckBox tbBox = new JCheckBox("Toolbar color", true);
+        JCheckBox fontBox = new JCheckBox("Font family (text in the note's own font)", true);
+        JCheckBox sizeBox = new JCheckBox("Font size (text in the note's own size)", true);
+        JRadioButton allButton = new JRadioButton("All notes", true);
+        JRadioButton filterButton = new JRadioButton("Notes matching:");
+        ButtonGroup scope = new ButtonGroup();
+        scope.add(allButton);
+        scope.add(filterButton);
+        JTextField filterField = new JTextField(20);
+        int choice = JOptionPane.showConfirmDialog(dialog,
+                new Object[] {"Apply the defaults for:", bgBox, tbBox, fontBox, sizeBox, "To:", allButton, filterButton, filterField},
+                "Apply Defaults to Existing Notes", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (choice != JOptionPane.OK_OPTION) return;
+
+        List<NoteModel> targets = new ArrayList<>();
+        if (allButton.isSelected()) {
+            targets.addAll(NotesManager.getNotes());
+        } else {
+            try {
+                for (String id : NotesManager.getIndex().filter(filterField.getText())) targets.add(NotesManager.findNote(id));
+            } catch (IllegalArgumentException ex) {
+                JOptionPane.showMessageDialog(dialog, "Invalid filter: " + ex.getMessage());
+                return;
+            }
+        }
+        NoteRestyle restyle = new NoteRestyle(
+                bgBox.isSelected() ? AppSettings.globalBgColor : null,
+                tbBox.isSelected() ? AppSettings.globalToolbarColor : null,
+                fontBox.isSelected() ? AppSettings.globalFontFamily : null,
+                sizeBox.isSelected() ? AppSettings.globalFontSize : null);
+        button.setEnabled(false);
+        button.setText("Applying...");
+        NotesManager.restyleNotes(targets, restyle, changed -> {
+            button.setText("Apply Defaults...");
+            button.setEnabled(true);
+            JOptionPane.showMessageDialog(dialog, "Updated " + changed + " of " + targets.size() + " notes.");
+        });
+    }
+
+    // Re-encrypts the whole store under a new passphrase; an empty one turns encryption off
+    private static void changePassphrase(JDialog dialog, JTextField status, JTextField syncField) {
+        JPasswordField first = new JPasswordField(20);
+        JPasswordField second = new JPasswordField(20);
+        int choice = JOptionPane.showConfirmDialog(dialog,
+                new Object[] {"New passphrase (leave empty to turn encryption off):", first, "Repeat it:", second},
+                "Notes Passphrase", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (choice != JOptionPane.OK_OPTION) return;
+        char[] passphrase = first.getPassword();
+        if (!Arrays.equals(passphrase, second.getPassword())) {
+            JOptionPane.showMessageDialog(dialog, "The passphrases do not match.");
+            return;
+        }
+        // Sync logs are plaintext, so encrypting the notes turns sync off
+        if (passphrase.length > 0 && !AppSettings.syncFolder.isEmpty()) {
+            if (JOptionPane.showConfirmDialog(dialog, "Encrypting the notes turns sync off. Continue?",
+                    "Notes Passphrase", JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION) return;
+            AppSettings.syncFolder = "";
+            AppSettings.saveGlobalSettings();
+            syncField.setText("Off");
+        }
+        status.setText("Re-encrypting...");
+        // Key derivation and rewriting every file stay off the EDT
+        new Thread(() -> {
+            String result;
+            try {
+                NoteCrypto next = passphrase.length == 0 ? null : NoteCrypto.create(passphrase);
+                NotesManager.getStore().rekey(next);
+                result = next == null ? "Off" : "On";
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                result = "Failed: " + ex.getMessage();
+            }
+            String text = result;
+            SwingUtilities.invokeLater(() -> status.setText(text));
+        }, "rekey").start();
+    }
 }
 
 // ----------------------------------------------------------------
@@ -1074,6 +8777,15 @@ class AppSettings {
     public static String globalFontFamily = "Arial";
     public static int globalFontSize = 14;
     public static File dataStorageLocation = new File(".");
+    // Port of the loopback-only automation API; 0 keeps it switched off
+    public static int automationPort = 0;
+    // Shared folder used to sync with other devices; empty keeps sync switched off
+    public static String syncFolder = "";
+    public static final long SYNC_INTERVAL_SECONDS = 5;
+    // Deflate note content with a dictionary trained on the notes themselves
+    public static boolean compressNotes = false;
+    // Underline words missing from the bundled and user dictionaries
+    public static boolean checkSpelling = true;
 
     public static void loadGlobalSettings() {
         if (!GLOBAL_SETTINGS_FILE.exists()) return;
@@ -1085,6 +8797,10 @@ class AppSettings {
             globalFontFamily = props.getProperty("globalFontFamily", globalFontFamily);
             globalFontSize = Integer.parseInt(props.getProperty("globalFontSize", String.valueOf(globalFontSize)));
             dataStorageLocation = new File(props.getProperty("dataStorageLocation", dataStorageLocation.getAbsolutePath()));
+            automationPort = Integer.parseInt(props.getProperty("automationPort", String.valueOf(automationPort)));
+            syncFolder = props.getProperty("syncFolder", syncFolder);
+            compressNotes = Boolean.parseBoolean(props.getProperty("compressNotes", String.valueOf(compressNotes)));
+            checkSpelling = Boolean.parseBoolean(props.getProperty("checkSpelling", String.valueOf(checkSpelling)));
         } catch (IOException e) { e.printStackTrace(); }
     }
 
@@ -1095,6 +8811,10 @@ class AppSettings {
         props.setProperty("globalFontFamily", globalFontFamily);
         props.setProperty("globalFontSize", String.valueOf(globalFontSize));
         props.setProperty("dataStorageLocation", dataStorageLocation.getAbsolutePath());
+        props.setProperty("automationPort", String.valueOf(automationPort));
+        props.setProperty("syncFolder", syncFolder);
+        props.setProperty("compressNotes", String.valueOf(compressNotes));
+        props.setProperty("checkSpelling", String.valueOf(checkSpelling));
         try (FileOutputStream fos = new FileOutputStream(GLOBAL_SETTINGS_FILE)) {
             props.store(fos, "Global Settings");
         } catch (IOException e) { e.printStackTrace(); }